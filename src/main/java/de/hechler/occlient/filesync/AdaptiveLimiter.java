@@ -0,0 +1,201 @@
+package de.hechler.occlient.filesync;
+
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive Begrenzung der gleichzeitig laufenden Requests (AIMD).
+ *
+ * Solange die Latenz eines Verbs stabil bleibt (höchstens doppelt so hoch wie ihr gleitender
+ * Durchschnitt), wächst das Limit additiv um etwa einen Request pro Round-Trip. Meldet der Server
+ * Überlast (429/503) oder laufen Requests in ein Timeout, wird das Limit halbiert, höchstens einmal
+ * pro Round-Trip. Ein Retry-After des Servers pausiert zusätzlich alle neuen Requests bis zum
+ * angegebenen Zeitpunkt.
+ *
+ * Ein Request belegt seinen Platz bis zum Ende der Übertragung: ein Upload bis zur Antwort, ein Download
+ * bis der Aufrufer den Inhalt geschlossen hat. Die Latenz eines Verbs umfasst entsprechend die ganze
+ * Übertragung, so dass GET und PUT gleichartig gemessen werden.
+ *
+ * Gewartet wird über ReentrantLock/Condition statt synchronized/wait, damit wartende virtuelle
+ * Threads (siehe {@link OpenCloudAsyncClient}) ihren Träger-Thread nicht blockieren.
+ */
+public class AdaptiveLimiter {
+
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final double LATENCY_SMOOTHING = 0.1;
+	private static final long MIN_DECREASE_INTERVAL_NANOS = 100_000_000L;
+	// Pause nach Überlast, wenn der Server kein Retry-After sendet
+	private static final long DEFAULT_PAUSE_MS = 1000;
+
+	private final int minLimit;
+	private final int maxLimit;
+
+	private double limit;
+	private int inFlight;
+	private long pauseUntilMillis;
+	private long lastDecreaseNanos;
+	private final Map<String, Double> avgLatencyNanos = new HashMap<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	/**
+	 * @param initialLimit Anzahl gleichzeitiger Requests zu Beginn
+	 * @param minLimit     Untergrenze beim Zurückfahren
+	 * @param maxLimit     Obergrenze beim Erhöhen (z.B. die Größe des Connection-Pools)
+	 */
+	public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+	}
+
+	/**
+	 * Wartet, bis eine eventuelle Pause abgelaufen und ein Platz frei ist.
+	 *
+	 * @throws InterruptedIOException wenn der Thread beim Warten unterbrochen wird
+	 */
+	public void acquire() throws InterruptedIOException {
+		lock.lock();
+		try {
+			while (true) {
+				long pause = pauseUntilMillis - System.currentTimeMillis();
+				if (pause > 0) {
+					changed.await(pause, TimeUnit.MILLISECONDS);
+				} else if (inFlight >= (int) limit) {
+					changed.await();
+				} else {
+					break;
+				}
+			}
+			inFlight++;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Warten auf freien Request-Platz unterbrochen");
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gibt einen Platz nach erfolgreichem Request frei und erhöht bei stabiler Latenz das Limit.
+	 *
+	 * @param verb         HTTP-Methode, die Latenz wird pro Verb verglichen
+	 * @param latencyNanos Dauer des Requests
+	 */
+	public void onSuccess(String verb, long latencyNanos) {
+		lock.lock();
+		try {
+			Double avg = avgLatencyNanos.get(verb);
+			if (avg == null || latencyNanos <= avg * LATENCY_TOLERANCE) {
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			}
+			avgLatencyNanos.put(verb, avg == null ? latencyNanos : avg + LATENCY_SMOOTHING * (latencyNanos - avg));
+			release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gibt einen Platz nach einem Fehler frei, der nichts über die Last aussagt (z.B. 404).
+	 */
+	public void onError() {
+		lock.lock();
+		try {
+			release();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Meldet Überlast (429/503 oder Timeout): halbiert das Limit und pausiert neue Requests.
+	 * Wird auch direkt von den Transports aufgerufen, sobald eine Antwort mit 429/503 eintrifft.
+	 *
+	 * @param retryAfterMs vom Server verlangte Wartezeit oder -1, wenn keine angegeben ist
+	 */
+	public void onOverload(long retryAfterMs) {
+		lock.lock();
+		try {
+			long now = System.nanoTime();
+			if (now - lastDecreaseNanos >= MIN_DECREASE_INTERVAL_NANOS) {
+				limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+				lastDecreaseNanos = now;
+				System.err.println("  Server overloaded, reducing concurrency to " + (int) limit);
+			}
+			long pause = retryAfterMs >= 0 ? retryAfterMs : DEFAULT_PAUSE_MS;
+			pauseUntilMillis = Math.max(pauseUntilMillis, System.currentTimeMillis() + pause);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return das aktuelle Limit gleichzeitiger Requests
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true, wenn Requests auf einen freien Platz oder das Ende einer Pause warten
+	 */
+	public boolean hasWaiters() {
+		lock.lock();
+		try {
+			return lock.hasWaiters(changed);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release() {
+		inFlight--;
+		changed.signalAll();
+	}
+
+	/**
+	 * Wertet einen Retry-After-Header aus (Sekunden oder HTTP-Datum).
+	 *
+	 * @param value Der Header-Wert oder null
+	 * @return Wartezeit in ms oder -1, wenn der Wert fehlt oder ungültig ist
+	 */
+	public static long parseRetryAfter(String value) {
+		if (value == null || value.isBlank()) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			// kein Zahlenwert, HTTP-Datum versuchen
+		}
+		try {
+			ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+			return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true für Status-Codes, mit denen der Server Überlast meldet
+	 */
+	public static boolean isOverloadStatus(int status) {
+		return status == 429 || status == 503;
+	}
+
+}
@@ -0,0 +1,215 @@
+package de.hechler.occlient.filesync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.yaml.snakeyaml.Yaml;
+
+import com.github.sardine.impl.SardineException;
+
+/**
+ * Upload vieler kleiner Dateien in einem Request über den Bulk-Endpunkt im Stil von Nextcloud
+ * (POST auf .../remote.php/dav/bulk mit einem multipart/related-Body, ein Teil pro Datei).
+ *
+ * Jeder Teil trägt Zielpfad, mtime und MD5 des übertragenen (ggf. verschlüsselten) Inhalts; die
+ * Antwort ist ein JSON-Objekt mit dem Ergebnis pro Pfad. Der Endpunkt adressiert Pfade relativ zum
+ * Benutzerverzeichnis, daher wird Bulk nur für Basis-URLs der Form .../remote.php/dav/files/USER/
+ * verwendet. Antwortet der Server mit 404/405/501, gilt der Endpunkt für den Rest des Laufs als
+ * nicht vorhanden; der Aufrufer lädt die Dateien dann einzeln hoch.
+ */
+public class BulkUploader {
+
+	private static final String DAV_ROOT = "/remote.php/dav/";
+	private static final String FILES_PREFIX = "files/";
+
+	private final OpenCloudClient client;
+	private final OpenCloudClient.TransferSettings settings;
+	// URL des Bulk-Endpunkts und Pfad der Basis-URL relativ zum Benutzerverzeichnis, null wenn nicht anwendbar
+	private final String bulkUrl;
+	private final String basePath;
+
+	private volatile boolean supported;
+
+	/**
+	 * @param client   Der Client, über dessen Verbindungen die Requests laufen
+	 * @param baseUrl  Die Basis-URL (mit abschließendem Slash)
+	 * @param settings Grenzen für Anzahl und Größe der Dateien pro Request
+	 */
+	public BulkUploader(OpenCloudClient client, String baseUrl, OpenCloudClient.TransferSettings settings) {
+		this.client = client;
+		this.settings = settings;
+		int idx = baseUrl.indexOf(DAV_ROOT);
+		String rest = idx < 0 ? "" : baseUrl.substring(idx + DAV_ROOT.length());
+		int userEnd = rest.startsWith(FILES_PREFIX) ? rest.indexOf('/', FILES_PREFIX.length()) : -1;
+		if (userEnd < 0) {
+			this.bulkUrl = null;
+			this.basePath = null;
+		} else {
+			this.bulkUrl = baseUrl.substring(0, idx + DAV_ROOT.length()) + "bulk";
+			// beginnt und endet mit "/", z.B. "/Documents/"
+			this.basePath = rest.substring(userEnd);
+		}
+		this.supported = bulkUrl != null && settings.bulkMaxFiles() > 1;
+	}
+
+	/**
+	 * @return true, solange der Bulk-Endpunkt verwendet werden kann
+	 */
+	public boolean isSupported() {
+		return supported;
+	}
+
+	/**
+	 * @param contentLength Größe des zu übertragenden (ggf. verschlüsselten) Inhalts
+	 * @return true, wenn die Datei klein genug für den Bulk-Upload ist
+	 */
+	public boolean accepts(long contentLength) {
+		return contentLength <= settings.bulkFileMaxBytes();
+	}
+
+	/**
+	 * Lädt die Dateien in Requests mit höchstens bulkMaxFiles Dateien bzw. bulkMaxBytes Bytes hoch.
+	 *
+	 * @param files    Die hochzuladenden Dateien (nur solche, für die {@link #accepts(long)} gilt)
+	 * @param uploaded erhält jede hochgeladene Datei mit ihrer ETag aus der Antwort (null, wenn keine gemeldet wird)
+	 * @return Die Dateien, die nicht per Bulk hochgeladen wurden (Fehler einzelner Dateien oder
+	 *         Endpunkt nicht vorhanden); der Aufrufer lädt sie einzeln hoch
+	 */
+	public List<OpenCloudClient.UploadRequest> upload(List<OpenCloudClient.UploadRequest> files, BiConsumer<OpenCloudClient.UploadRequest, String> uploaded) {
+		List<OpenCloudClient.UploadRequest> remaining = new ArrayList<>();
+		List<Part> batch = new ArrayList<>();
+		long batchBytes = 0;
+		for (OpenCloudClient.UploadRequest file : files) {
+			if (!supported) {
+				remaining.add(file);
+				continue;
+			}
+			Part part;
+			try {
+				part = readPart(file);
+			} catch (IOException e) {
+				// beim Einzel-Upload erneut versuchen, dort wird der Fehler gemeldet
+				remaining.add(file);
+				continue;
+			}
+			if (!batch.isEmpty() && (batch.size() >= settings.bulkMaxFiles() || batchBytes + part.content().length > settings.bulkMaxBytes())) {
+				remaining.addAll(send(batch, uploaded));
+				batch.clear();
+				batchBytes = 0;
+			}
+			batch.add(part);
+			batchBytes += part.content().length;
+		}
+		if (!batch.isEmpty()) {
+			remaining.addAll(send(batch, uploaded));
+		}
+		return remaining;
+	}
+
+	private record Part(OpenCloudClient.UploadRequest file, String filePath, byte[] content, String md5) {}
+
+	private Part readPart(OpenCloudClient.UploadRequest file) throws IOException {
+		byte[] content;
+		try (InputStream in = new FileUploadEntity(file.file(), file.encryptPassphrase()).getContent()) {
+			content = in.readAllBytes();
+		}
+		String path = file.path().startsWith("/") ? file.path().substring(1) : file.path();
+		return new Part(file, basePath + path, content, HexFormat.of().formatHex(md5(content)));
+	}
+
+	/**
+	 * Sendet einen Bulk-Request und liefert die nicht erfolgreich hochgeladenen Dateien.
+	 */
+	private List<OpenCloudClient.UploadRequest> send(List<Part> batch, BiConsumer<OpenCloudClient.UploadRequest, String> uploaded) {
+		List<OpenCloudClient.UploadRequest> failed = new ArrayList<>();
+		if (!supported) {
+			// Endpunkt fehlt, bereits gelesene Dateien einzeln hochladen
+			batch.forEach(p -> failed.add(p.file()));
+			return failed;
+		}
+		String boundary = "boundary_" + UUID.randomUUID();
+		HttpPost post = new HttpPost(bulkUrl);
+		ByteArrayEntity entity = new ByteArrayEntity(buildBody(batch, boundary));
+		entity.setContentType("multipart/related; boundary=" + boundary);
+		post.setEntity(entity);
+		Map<?, ?> result;
+		try {
+			HttpResponse response = client.execute(post);
+			int status = response.getStatusLine().getStatusCode();
+			if (status == 404 || status == 405 || status == 501) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				System.out.println("  Bulk upload not supported by server (" + status + "), uploading files individually");
+				supported = false;
+				batch.forEach(p -> failed.add(p.file()));
+				return failed;
+			}
+			if (status / 100 != 2) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				throw new SardineException("Unexpected response for bulk upload", status, response.getStatusLine().getReasonPhrase());
+			}
+			// JSON ist eine Teilmenge von YAML
+			Object parsed = new Yaml().load(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+			result = parsed instanceof Map<?, ?> map ? map : Map.of();
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Bulk upload of " + batch.size() + " files failed, uploading individually: " + e.getMessage());
+			batch.forEach(p -> failed.add(p.file()));
+			return failed;
+		}
+		for (Part part : batch) {
+			Object fileResult = result.get(part.filePath());
+			if (fileResult == null) {
+				fileResult = result.get(part.filePath().substring(1));
+			}
+			if (!(fileResult instanceof Map<?, ?> map) || !Boolean.FALSE.equals(map.get("error"))) {
+				Object message = fileResult instanceof Map<?, ?> map ? map.get("message") : "no result";
+				System.err.println("  Bulk upload failed for " + part.file().path() + " (" + message + "), retrying individually");
+				failed.add(part.file());
+			} else {
+				Object etag = map.get("etag");
+				uploaded.accept(part.file(), etag != null ? etag.toString() : null);
+			}
+		}
+		return failed;
+	}
+
+	private static byte[] buildBody(List<Part> batch, String boundary) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (Part part : batch) {
+			String headers = "--" + boundary + "\r\n"
+					+ "X-File-Path: " + part.filePath() + "\r\n"
+					+ "X-File-MD5: " + part.md5() + "\r\n"
+					+ "OC-Checksum: MD5:" + part.md5() + "\r\n"
+					+ "X-File-Mtime: " + part.file().lastModified() / 1000L + "\r\n"
+					+ "Content-Length: " + part.content().length + "\r\n"
+					+ "\r\n";
+			body.writeBytes(headers.getBytes(StandardCharsets.UTF_8));
+			body.writeBytes(part.content());
+			body.writeBytes("\r\n".getBytes(StandardCharsets.UTF_8));
+		}
+		body.writeBytes(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+		return body.toByteArray();
+	}
+
+	private static byte[] md5(byte[] content) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(content);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("MD5 nicht verfügbar", e);
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package de.hechler.occlient.filesync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Cache für aufwendig berechnete Prüfsummen, vor allem die MD5 des verschlüsselten Inhalts, für die
+ * jedes Mal die Schlüsselableitung (PBKDF2) läuft und die ganze Datei verschlüsselt wird.
+ *
+ * Erste Quelle für die Prüfsummen einer Datei ist der {@link LocalIndex} ihres Mappings; der Cache wird
+ * nur befragt, wenn dieser keinen passenden Eintrag hat. {@link FolderSync} lädt den Cache einmal und
+ * übergibt ihn jedem Index, es gibt keine prozessweite Instanz.
+ *
+ * Schlüssel ist der Stand der Datei (Datei-Schlüssel des Dateisystems, z.B. Inode, ersatzweise der Pfad,
+ * Größe und mtime) zusammen mit einem Fingerabdruck der Passphrase und dem Verfahren. Ändert sich die
+ * Datei, passt ihr Stand nicht mehr und die Prüfsumme wird neu berechnet; der veraltete Eintrag wird
+ * irgendwann verdrängt. Anders als der nach Pfad geführte {@link LocalIndex} gilt der Cache für alle
+ * Mappings, auch wenn eine Datei umbenannt oder über ein anderes Mapping erreicht wird.
+ *
+ * Höchstens maxEntries Einträge werden gehalten, bei Überlauf fällt der am längsten nicht benutzte weg.
+ * Die Einträge liegen in der Reihenfolge ihrer letzten Verwendung in checksums.txt im Status-Verzeichnis
+ * (upload.stateDir), die über {@link StateFiles} atomar ersetzt wird:
+ *
+ * <pre>
+ *   ocsync-checksums 1
+ *   &lt;md5&gt;	&lt;verfahren&gt;|&lt;passphrase&gt;|&lt;größe&gt;|&lt;mtime&gt;|&lt;datei-schlüssel&gt;
+ * </pre>
+ */
+public class ChecksumCache {
+
+	private static final String HEADER = "ocsync-checksums 1";
+	private static final String FILE_NAME = "checksums.txt";
+
+	private final Path cacheFile;
+	private final int maxEntries;
+	// in Zugriffsreihenfolge, der älteste Eintrag zuerst
+	private final LinkedHashMap<String, String> entries;
+	private boolean changed;
+
+	private ChecksumCache(Path cacheFile, int maxEntries) {
+		this.cacheFile = cacheFile;
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > ChecksumCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Lädt den Cache aus dem Status-Verzeichnis; ein fehlender oder unlesbarer Cache ist leer.
+	 *
+	 * @param stateDir   Das Status-Verzeichnis
+	 * @param maxEntries Anzahl gehaltener Einträge, 0 schaltet den Cache aus
+	 */
+	public static ChecksumCache load(String stateDir, int maxEntries) {
+		ChecksumCache cache = new ChecksumCache(Paths.get(stateDir).resolve(FILE_NAME), Math.max(0, maxEntries));
+		if (cache.maxEntries == 0 || !Files.isRegularFile(cache.cacheFile)) {
+			return cache;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(cache.cacheFile, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new IOException("Unbekanntes Format");
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int idx = line.indexOf('\t');
+				if (idx > 0) {
+					cache.entries.put(line.substring(idx + 1), line.substring(0, idx));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Ignoring unreadable checksum cache " + cache.cacheFile + ": " + e.getMessage());
+			cache.entries.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * Liefert die Prüfsumme aus dem Cache, wenn die Datei seit ihrer Berechnung unverändert ist, sonst wird
+	 * sie berechnet und gespeichert. Die Attribute werden vor dem Berechnen gelesen, eine währenddessen
+	 * geänderte Datei wird daher beim nächsten Mal neu berechnet.
+	 *
+	 * @param algorithm  Das Verfahren, z.B. "md5-enc"
+	 * @param passphrase Die Passphrase des Verfahrens oder null
+	 * @param compute    berechnet die Prüfsumme, liefert null bei Fehlern
+	 */
+	public String get(Path file, String algorithm, String passphrase, Supplier<String> compute) {
+		if (maxEntries == 0) {
+			return compute.get();
+		}
+		String key;
+		try {
+			key = key(file, algorithm, passphrase);
+		} catch (IOException e) {
+			return compute.get();
+		}
+		synchronized (this) {
+			String md5 = entries.get(key);
+			if (md5 != null) {
+				return md5;
+			}
+		}
+		String md5 = compute.get();
+		if (md5 != null) {
+			synchronized (this) {
+				entries.put(key, md5);
+				changed = true;
+			}
+		}
+		return md5;
+	}
+
+	/**
+	 * Schreibt den Cache, falls er sich geändert hat.
+	 */
+	public void save() {
+		List<String> lines;
+		synchronized (this) {
+			if (!changed) {
+				return;
+			}
+			lines = new ArrayList<>(entries.size());
+			entries.forEach((key, md5) -> lines.add(md5 + "\t" + key));
+			changed = false;
+		}
+		try {
+			StateFiles.replace(cacheFile, out -> {
+				Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+				writer.write(HEADER + "\n");
+				for (String line : lines) {
+					writer.write(line + "\n");
+				}
+				writer.flush();
+			});
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Speichern des Prüfsummen-Cache: " + cacheFile + " - " + e.getMessage());
+		}
+	}
+
+	private static String key(Path file, String algorithm, String passphrase) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		Object fileKey = attrs.fileKey();
+		String id = fileKey != null ? fileKey.toString() : file.toAbsolutePath().normalize().toString();
+		// the key is one line of the file
+		id = id.replace('\n', ' ').replace('\r', ' ');
+		return algorithm + "|" + fingerprint(passphrase) + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis() + "|" + id;
+	}
+
+	private static String fingerprint(String passphrase) {
+		return passphrase != null ? toHex(ChecksumUtil.calculateMD5bytes("checksum:" + passphrase)) : "-";
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+}
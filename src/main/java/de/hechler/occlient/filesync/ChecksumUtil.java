@@ -24,11 +24,17 @@ public final class ChecksumUtil {
 		}
     }
     
-    public static String calculateMD5dec(Path path, String decryptPassphrase) {
+    /**
+     * MD5 des entschlüsselten Inhalts einer verschlüsselten Datei. Wie die MD5 des verschlüsselten Inhalts
+     * kostet sie Schlüsselableitung und Entschlüsselung der ganzen Datei, sie wird daher über den Cache geholt.
+     *
+     * @param checksums Cache für den aktuellen Stand der Datei, Verfahren "md5dec" bzw. "md5" ohne Passphrase
+     */
+    public static String calculateMD5dec(Path path, String decryptPassphrase, ChecksumCache checksums) {
     	if (decryptPassphrase != null) {
-			return calcDecryptedMD5(path, decryptPassphrase);
+			return checksums.get(path, "md5dec", decryptPassphrase, () -> calcDecryptedMD5(path, decryptPassphrase));
 		} else {
-			return calculateMD5(path);
+			return checksums.get(path, "md5", null, () -> calculateMD5(path));
 		}
     }
     
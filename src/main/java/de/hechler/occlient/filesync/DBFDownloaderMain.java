@@ -8,6 +8,13 @@ public class DBFDownloaderMain {
 	
 	
 	public static void main(String[] args) {
+		main(args, SyncPlan.Options.NONE);
+	}
+	
+	/**
+	 * @param options Planen statt direkt synchronisieren, siehe {@link Main}
+	 */
+	public static void main(String[] args, SyncPlan.Options options) {
 		
 		// test args
 		if (args == null || args.length == 0) {
@@ -21,6 +28,7 @@ public class DBFDownloaderMain {
 			System.err.println("sync:");
 			System.err.println("  - localFolder: <local-folder1>");
 			System.err.println("    remoteFolder: <remote-folder1>");
+			System.err.println("    pack: true   (optional, transfer as archive segments plus index)");
 			System.err.println("    ignore:");
 			System.err.println("      - <glob-pattern-to-ignore1>");
 			System.err.println("      - <glob-pattern-to-ignore2>");
@@ -48,15 +56,15 @@ public class DBFDownloaderMain {
 		}
 		
 		// Client erstellen
-		OpenCloudClient client = new OpenCloudClient(
-			config.getServerUrl(), 
-			config.getUsername(), 
-			config.getPassword()
-		);
+		OpenCloudClient client = new OpenCloudClient(config);
 		
-		FolderSync folderSync = new FolderSync(client);
+		FolderSync folderSync = new FolderSync(client, config.getSyncSettings());
+		PackSync packSync = new PackSync(client, folderSync.getChecksumCache());
+		
+		PlanSession planSession = new PlanSession(options);
 		
 		SyncConfig sConf = SyncConfig.load(syncConfigYaml);
+		planSession.checkMappings(false, sConf.sync);
 		
 		for (SyncEntry sync : sConf.sync) {
 			String localFolder = sync.localFolder;
@@ -79,8 +87,15 @@ public class DBFDownloaderMain {
 				System.err.println("invalid mapping " + remoteFolder + " -> " + localFolder);
 				System.exit(6);
 			}
-			folderSync.syncLocalFolder(localFolder, remoteFolder, sync.getIgnoreMatchers(), decryptPassphrase);
+			if (sync.pack && planSession.isActive()) {
+				System.err.println("Pack mapping " + remoteFolder + " -> " + localFolder + " cannot be planned, skipped");
+			} else if (sync.pack) {
+				packSync.download(localFolder, remoteFolder, sync.getIgnoreMatchers(), decryptPassphrase);
+			} else {
+				planSession.download(folderSync, localFolder, remoteFolder, sync.getIgnoreMatchers(), decryptPassphrase);
+			}
 		}
+		planSession.finish();
 	}
 
 }
\ No newline at end of file
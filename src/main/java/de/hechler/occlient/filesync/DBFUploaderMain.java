@@ -6,6 +6,13 @@ import de.hechler.occlient.filesync.SyncConfig.SyncTransformType;
 public class DBFUploaderMain {
 	
 	public static void main(String[] args) {
+		main(args, SyncPlan.Options.NONE);
+	}
+	
+	/**
+	 * @param options Planen statt direkt synchronisieren, siehe {@link Main}
+	 */
+	public static void main(String[] args, SyncPlan.Options options) {
 		
 //		// test args
 		if (args == null || args.length == 0) {
@@ -20,6 +27,7 @@ public class DBFUploaderMain {
 			System.err.println("sync:");
 			System.err.println("  - localFolder: <local-folder1>");
 			System.err.println("    remoteFolder: <remote-folder1>");
+			System.err.println("    pack: true   (optional, transfer as archive segments plus index)");
 			System.err.println("    ignore:");
 			System.err.println("      - <glob-pattern-to-ignore1>");
 			System.err.println("      - <glob-pattern-to-ignore2>");
@@ -47,15 +55,15 @@ public class DBFUploaderMain {
 		}
 		
 		// Client erstellen
-		OpenCloudClient client = new OpenCloudClient(
-			config.getServerUrl(), 
-			config.getUsername(), 
-			config.getPassword()
-		);
+		OpenCloudClient client = new OpenCloudClient(config);
 		
-		FolderSync folderSync = new FolderSync(client);
+		FolderSync folderSync = new FolderSync(client, config.getSyncSettings());
+		PackSync packSync = new PackSync(client, folderSync.getChecksumCache());
+		
+		PlanSession planSession = new PlanSession(options);
 		
 		SyncConfig sConf = SyncConfig.load(syncConfigYaml);
+		planSession.checkMappings(true, sConf.sync);
 		
 		for (SyncEntry sync : sConf.sync) {
 			String localFolder = sync.localFolder;
@@ -78,8 +86,15 @@ public class DBFUploaderMain {
 				System.err.println("invalid mapping " + remoteFolder + " -> " + localFolder);
 				System.exit(6);
 			}
-			folderSync.syncRemoteFolder(remoteFolder, localFolder, sync.getIgnoreMatchers(), encryptPassphrase);
+			if (sync.pack && planSession.isActive()) {
+				System.err.println("Pack mapping " + localFolder + " -> " + remoteFolder + " cannot be planned, skipped");
+			} else if (sync.pack) {
+				packSync.upload(localFolder, remoteFolder, sync.getIgnoreMatchers(), encryptPassphrase);
+			} else {
+				planSession.upload(folderSync, remoteFolder, localFolder, sync.getIgnoreMatchers(), encryptPassphrase);
+			}
 		}
+		planSession.finish();
 		
 	}
 }
\ No newline at end of file
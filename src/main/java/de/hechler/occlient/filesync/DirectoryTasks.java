@@ -0,0 +1,175 @@
+package de.hechler.occlient.filesync;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Zählt die offenen Aufgaben eines Verzeichnisses beim Abgleich im Transfer-Pool.
+ *
+ * Pro Verzeichnis gibt es nur zwei Zähler statt eines Objekts pro Datei, und ein fertiger Teilbaum wird
+ * nicht mehr referenziert, so dass der Speicher auch bei Millionen Dateien nur von den gerade bearbeiteten
+ * Verzeichnissen abhängt. Sind die Aufgaben des Verzeichnisses selbst erledigt (und der Durchlauf des
+ * Verzeichnisses beendet), läuft sein Abschluss, z.B. das Löschen unbekannter Einträge. Ist zusätzlich jedes
+ * Unterverzeichnis fertig, gilt der Teilbaum als fertig und meldet sich beim Elternverzeichnis.
+ */
+public class DirectoryTasks {
+
+	private final DirectoryTasks parent;
+	private final DirectoryTasks root;
+	private final Executor pool;
+	private final Runnable afterSubtree;
+	// Aufgaben des Verzeichnisses, plus 1 solange es durchlaufen wird
+	private final AtomicInteger tasks = new AtomicInteger(1);
+	// Unterverzeichnisse, plus 1 solange die eigenen Aufgaben laufen
+	private final AtomicInteger open = new AtomicInteger(1);
+	private volatile Runnable afterTasks = () -> {};
+	private volatile boolean failed;
+
+	// nur an der Wurzel: Ende des ganzen Baums, erster unerwarteter Fehler, unvollständiger Abgleich
+	private final CompletableFuture<Void> done;
+	private final AtomicReference<RuntimeException> failure;
+	private volatile boolean incomplete;
+
+	private DirectoryTasks(DirectoryTasks parent, Executor pool, Runnable afterSubtree) {
+		this.parent = parent;
+		this.root = parent != null ? parent.root : this;
+		this.pool = pool;
+		this.afterSubtree = afterSubtree;
+		this.done = parent != null ? null : new CompletableFuture<>();
+		this.failure = parent != null ? null : new AtomicReference<>();
+	}
+
+	/**
+	 * @param pool Der Transfer-Pool, in dem die Aufgaben laufen
+	 */
+	public static DirectoryTasks root(Executor pool) {
+		return new DirectoryTasks(null, pool, () -> {});
+	}
+
+	/**
+	 * Meldet ein Unterverzeichnis an, bevor es durchlaufen wird.
+	 *
+	 * @param afterSubtree läuft, wenn der ganze Teilbaum ohne unerwarteten Fehler fertig ist
+	 */
+	public DirectoryTasks child(Runnable afterSubtree) {
+		open.incrementAndGet();
+		return new DirectoryTasks(this, pool, afterSubtree);
+	}
+
+	/**
+	 * Führt eine Aufgabe des Verzeichnisses im Pool aus.
+	 */
+	public void submit(Runnable task) {
+		tasks.incrementAndGet();
+		try {
+			pool.execute(() -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					fail(e);
+				} finally {
+					taskDone();
+				}
+			});
+		} catch (RuntimeException e) {
+			taskDone();
+			throw e;
+		}
+	}
+
+	/**
+	 * Beendet den Durchlauf des Verzeichnisses.
+	 *
+	 * @param afterTasks läuft, sobald alle Aufgaben des Verzeichnisses erledigt sind
+	 */
+	public void scanned(Runnable afterTasks) {
+		this.afterTasks = afterTasks;
+		taskDone();
+	}
+
+	/**
+	 * Bricht den Durchlauf des Verzeichnisses ab; sein Abschluss entfällt, laufende Aufgaben werden noch beendet.
+	 */
+	public void abort(RuntimeException e) {
+		fail(e);
+		taskDone();
+	}
+
+	/**
+	 * Markiert den Abgleich als unvollständig, z.B. nach einem gemeldeten Fehler bei einer Datei.
+	 */
+	public void markIncomplete() {
+		root.incomplete = true;
+	}
+
+	/**
+	 * @return true, wenn keine Aufgabe einen Fehler gemeldet hat (nur an der Wurzel nach {@link #await()})
+	 */
+	public boolean isComplete() {
+		return !incomplete && failure.get() == null;
+	}
+
+	/**
+	 * Wartet, bis alle Aufgaben des Baums erledigt sind, ohne Fehler weiterzugeben.
+	 */
+	public void waitForTasks() {
+		done.join();
+	}
+
+	/**
+	 * Wartet, bis alle Aufgaben des Baums erledigt sind, und gibt den ersten unerwarteten Fehler weiter.
+	 */
+	public void await() {
+		waitForTasks();
+		RuntimeException e = failure.get();
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	private void fail(RuntimeException e) {
+		root.failure.compareAndSet(null, e);
+		root.incomplete = true;
+		for (DirectoryTasks t = this; t != null; t = t.parent) {
+			t.failed = true;
+		}
+	}
+
+	private void taskDone() {
+		if (tasks.decrementAndGet() != 0) {
+			return;
+		}
+		try {
+			if (!failed) {
+				afterTasks.run();
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+		} finally {
+			afterTasks = null;
+			subtreeDone();
+		}
+	}
+
+	private void subtreeDone() {
+		if (open.decrementAndGet() != 0) {
+			return;
+		}
+		try {
+			if (!failed) {
+				afterSubtree.run();
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+		} finally {
+			if (parent != null) {
+				parent.subtreeDone();
+			} else {
+				done.complete(null);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package de.hechler.occlient.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistente ETags der Remote-Verzeichnisse eines lokalen Ordners.
+ *
+ * Der Server ändert die ETag eines Verzeichnisses, sobald sich darunter etwas ändert, so dass unveränderte
+ * Teilbäume übersprungen werden können. Die ETags der einzelnen Dateien stehen im {@link LocalIndex},
+ * zusammen mit dem Stand der lokalen Datei, für den sie gelten.
+ *
+ * Außerdem merkt sich der Store die Startzeit des letzten erfolgreichen und des letzten vollständigen Syncs,
+ * ab der beim nächsten Lauf nach Änderungen gesucht wird.
+ *
+ * Die Einträge liegen als Properties-Datei im Status-Verzeichnis (upload.stateDir), eine Datei pro
+ * lokalem Ordner; Schlüssel ist der relative Pfad mit "/" als Trenner und "/" am Ende.
+ */
+public class EtagStore {
+
+	// Reservierte Schlüssel für die Sync-Zeiten; relative Pfade enthalten nie "//"
+	private static final String LAST_SYNC_KEY = "//lastSync";
+	private static final String LAST_FULL_SYNC_KEY = "//lastFullSync";
+	private static final String FORMAT_KEY = "//format";
+	// bis Format 1 standen auch die Dateien im Store, als size|mtime|etag
+	private static final String FORMAT = "2";
+
+	private final Path stateFile;
+	private final Map<String, String> dirEtags = new ConcurrentHashMap<>();
+	private volatile long lastSync;
+	private volatile long lastFullSync;
+	private volatile boolean changed;
+
+	private EtagStore(Path stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Lädt den Store für einen lokalen Ordner; ein fehlender oder unlesbarer Store ist leer.
+	 *
+	 * @param stateDir    Das Status-Verzeichnis
+	 * @param localFolder Der lokale Ordner des Mappings
+	 */
+	public static EtagStore load(String stateDir, String localFolder) {
+		String key = toHex(ChecksumUtil.calculateMD5bytes(Paths.get(localFolder).toAbsolutePath().normalize().toString()));
+		EtagStore store = new EtagStore(Paths.get(stateDir).resolve("etags-" + key + ".properties"));
+		if (!Files.isRegularFile(store.stateFile)) {
+			return store;
+		}
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(store.stateFile)) {
+			props.load(in);
+			store.lastSync = Long.parseLong(props.getProperty(LAST_SYNC_KEY, "0"));
+			store.lastFullSync = Long.parseLong(props.getProperty(LAST_FULL_SYNC_KEY, "0"));
+			boolean legacy = !FORMAT.equals(props.getProperty(FORMAT_KEY));
+			for (String path : props.stringPropertyNames()) {
+				if (path.startsWith("//") || !path.endsWith("/")) {
+					// die Validatoren der Dateien aus Format 1 werden nicht übernommen
+					continue;
+				}
+				String etag = props.getProperty(path);
+				store.dirEtags.put(path, legacy ? etag.split("\\|", 3)[2] : etag);
+			}
+			store.changed = legacy;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Ignoring unreadable ETag store " + store.stateFile + ": " + e.getMessage());
+			store.dirEtags.clear();
+			store.lastSync = 0;
+			store.lastFullSync = 0;
+		}
+		return store;
+	}
+
+	/**
+	 * @param relPath Der relative Pfad des Verzeichnisses, "" für die Wurzel
+	 * @return die ETag des Remote-Verzeichnisses beim letzten vollständigen Sync oder null
+	 */
+	public String getDirEtag(String relPath) {
+		return dirEtags.get(dirKey(relPath));
+	}
+
+	/**
+	 * Speichert die ETag eines Remote-Verzeichnisses, nachdem sein Teilbaum synchronisiert wurde.
+	 */
+	public void putDirEtag(String relPath, String etag) {
+		if (etag == null) {
+			return;
+		}
+		if (!etag.equals(dirEtags.put(dirKey(relPath), etag))) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * @return Anzahl der gespeicherten Verzeichnisse unterhalb des Verzeichnisses
+	 */
+	public int countDirsUnder(String relPath) {
+		String prefix = relPath.isEmpty() ? "" : relPath + "/";
+		String self = dirKey(relPath);
+		int count = 0;
+		for (String key : dirEtags.keySet()) {
+			if (key.startsWith(prefix) && !key.equals(self)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Entfernt die Einträge aller direkten Kinder des Verzeichnisses (samt Inhalt), die nicht
+	 * mehr in names enthalten sind, z.B. remote gelöschte oder inzwischen ignorierte Einträge.
+	 */
+	public void retainChildren(String relPath, Set<String> names) {
+		String prefix = relPath.isEmpty() ? "" : relPath + "/";
+		String self = dirKey(relPath);
+		if (dirEtags.keySet().removeIf(key -> {
+			if (!key.startsWith(prefix) || key.equals(self)) {
+				return false;
+			}
+			String rest = key.substring(prefix.length());
+			int idx = rest.indexOf('/');
+			return !names.contains(idx < 0 ? rest : rest.substring(0, idx));
+		})) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * @return Startzeit des letzten erfolgreichen Syncs in ms, 0 wenn unbekannt
+	 */
+	public long getLastSync() {
+		return lastSync;
+	}
+
+	/**
+	 * @return Startzeit des letzten vollständigen Syncs (Abgleich des ganzen Baums) in ms, 0 wenn unbekannt
+	 */
+	public long getLastFullSync() {
+		return lastFullSync;
+	}
+
+	/**
+	 * Merkt sich die Startzeit eines erfolgreich abgeschlossenen Syncs.
+	 *
+	 * @param time Startzeit des Syncs in ms
+	 * @param full true, wenn der ganze Baum abgeglichen wurde
+	 */
+	public void setLastSync(long time, boolean full) {
+		lastSync = time;
+		if (full) {
+			lastFullSync = time;
+		}
+		changed = true;
+	}
+
+	// Verzeichnisse enden auf "/", damit sie nicht mit Dateien gleichen Namens kollidieren
+	private static String dirKey(String relPath) {
+		return relPath + "/";
+	}
+
+	/**
+	 * Entfernt die Einträge eines Verzeichnisses samt Inhalt.
+	 */
+	public void remove(String relPath) {
+		String prefix = relPath + "/";
+		if (dirEtags.keySet().removeIf(p -> p.startsWith(prefix))) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * Schreibt den Store, falls er sich geändert hat.
+	 */
+	public void save() {
+		if (!changed) {
+			return;
+		}
+		Properties props = new Properties();
+		props.putAll(dirEtags);
+		props.setProperty(FORMAT_KEY, FORMAT);
+		if (lastSync > 0) {
+			props.setProperty(LAST_SYNC_KEY, Long.toString(lastSync));
+			props.setProperty(LAST_FULL_SYNC_KEY, Long.toString(lastFullSync));
+		}
+		try {
+			StateFiles.replace(stateFile, out -> props.store(out, "ETags of remote directories"));
+			changed = false;
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Speichern der ETags: " + stateFile + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Vergleicht zwei ETags unabhängig von Anführungszeichen und Weak-Präfix, da PROPFIND (getetag)
+	 * und GET (ETag-Header) sie bei manchen Servern unterschiedlich formatieren.
+	 */
+	public static boolean sameEtag(String a, String b) {
+		return a != null && b != null && normalize(a).equals(normalize(b));
+	}
+
+	private static String normalize(String etag) {
+		String e = etag.trim();
+		if (e.startsWith("W/")) {
+			e = e.substring(2);
+		}
+		return e.replace("\"", "");
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,102 @@
+package de.hechler.occlient.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Wiederholbare HTTP-Entity, die den Inhalt direkt aus einer lokalen Datei streamt.
+ * Optional wird der Inhalt beim Senden mit EncryptedInputStream verschlüsselt.
+ *
+ * Da die Datei bei jedem Senden neu geöffnet wird, kann HttpClient den Request
+ * wiederholen (z.B. nach einer Auth-Challenge), ohne dass der Inhalt im Speicher liegt.
+ */
+public class FileUploadEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path file;
+	private final String encryptPassphrase;
+	private final long contentLength;
+
+	/**
+	 * @param file              die hochzuladende lokale Datei
+	 * @param encryptPassphrase Passphrase für die Verschlüsselung oder null für Klartext
+	 * @throws IOException wenn die Dateigröße nicht gelesen werden kann
+	 */
+	public FileUploadEntity(Path file, String encryptPassphrase) throws IOException {
+		this.file = file;
+		this.encryptPassphrase = encryptPassphrase;
+		long size = Files.size(file);
+		this.contentLength = encryptPassphrase != null ? EncryptedInputStream.getEncryptedSizeForInputSize(size) : size;
+		setContentType("application/octet-stream");
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		InputStream in = Files.newInputStream(file);
+		if (encryptPassphrase != null) {
+			in = new EncryptedInputStream(in, encryptPassphrase);
+		}
+		return in;
+	}
+
+	/**
+	 * Öffnet den (ggf. verschlüsselten) Inhalt ab dem angegebenen Offset.
+	 * Bei Verschlüsselung muss bis zum Offset gelesen werden, da der Cipher-Zustand
+	 * von allen vorherigen Blöcken abhängt.
+	 *
+	 * @param offset Position im gesendeten Inhalt
+	 * @return InputStream ab dem Offset
+	 * @throws IOException bei Lesefehlern oder wenn der Inhalt kürzer als der Offset ist
+	 */
+	public InputStream getContent(long offset) throws IOException {
+		InputStream in = getContent();
+		if (encryptPassphrase == null) {
+			in.skipNBytes(offset);
+			return in;
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = offset;
+		while (remaining > 0) {
+			int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (len == -1) {
+				in.close();
+				throw new IOException("Inhalt kürzer als Offset " + offset + ": " + file);
+			}
+			remaining -= len;
+		}
+		return in;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		try (InputStream in = getContent()) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+}
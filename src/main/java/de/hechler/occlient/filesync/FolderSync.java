@@ -2,32 +2,328 @@ package de.hechler.occlient.filesync;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FolderSync {
 
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String ETAG_SUFFIX = ".etag";
+	private static final String DEC_SUFFIX = ".dec.tmp";
+	// Abstand, nach dem statt der Suche nach Änderungen wieder der ganze Baum abgeglichen wird; so lange
+	// können Dateien ausbleiben, die mit alter mtime hochgeladen wurden (siehe syncChangedSince)
+	private static final long FULL_SYNC_INTERVAL_MS = 24L * 60 * 60 * 1000;
+	// Sicherheitsabstand für die Suche nach Änderungen, gleicht Uhrenabweichungen zum Server aus
+	private static final long CLOCK_SKEW_MS = 5L * 60 * 1000;
+	// so viele Aufgaben pro Worker dürfen im Transfer-Pool warten
+	private static final int QUEUED_TASKS_PER_WORKER = 4;
+	// gleichzeitige Listings im Hintergrund und Anzahl vorab gelesener, noch nicht durchlaufener Verzeichnisse
+	private static final int LISTING_PARALLELISM = 8;
+	private static final int PREFETCHED_LISTINGS = 64;
+	// so viele geplante Uploads werden beim Ausführen eines Plans gemeinsam übertragen
+	private static final int PLANNED_UPLOAD_BATCH = 500;
+
+	/**
+	 * Einstellungen des Ordner-Abgleichs (sync.*), siehe {@link OpenCloudConfig#getSyncSettings()}.
+	 *
+	 * @param workers              Anzahl Dateien, die gleichzeitig abgeglichen werden (Prüfsummen und Übertragung)
+	 * @param checksumCacheEntries Anzahl gespeicherter Prüfsummen im {@link ChecksumCache}, 0 schaltet den Cache aus
+	 */
+	public record Settings(int workers, int checksumCacheEntries) {
+		public static final Settings DEFAULTS = new Settings(8, 100_000);
+	}
+
 	protected OpenCloudClient client;
+	protected Settings settings;
 	protected String passphrase;
+	protected SyncManifest manifest;
+	// checksums of file states across runs and mappings, behind the per-mapping LocalIndex
+	protected ChecksumCache checksums;
 	
 	public FolderSync(OpenCloudClient client) {
-		this(client, null);
+		this(client, Settings.DEFAULTS, null);
+	}
+
+	public FolderSync(OpenCloudClient client, Settings settings) {
+		this(client, settings, null);
 	}
 
 	public FolderSync(OpenCloudClient client, String passphrase) {
+		this(client, Settings.DEFAULTS, passphrase);
+	}
+
+	public FolderSync(OpenCloudClient client, Settings settings, String passphrase) {
 		this.client = client;
+		this.settings = settings;
 		this.passphrase = passphrase;
+		this.manifest = new SyncManifest(client);
+		this.checksums = ChecksumCache.load(client.getTransferSettings().stateDir(), settings.checksumCacheEntries());
+	}
+
+	/**
+	 * @return der Prüfsummen-Cache dieses Syncs, zum Teilen mit {@link PackSync}
+	 */
+	public ChecksumCache getChecksumCache() {
+		return checksums;
 	}
 
 	public void syncLocalFolder(String localFolder, String remoteFolder, List<PathMatcher> ignorePatterns, String decryptPassphrase) {
+		syncLocalFolder(new SyncPlan(false, localFolder, remoteFolder), false, ignorePatterns, decryptPassphrase);
+	}
+
+	/**
+	 * Plant den Download, ohne lokal etwas zu ändern; die gespeicherten ETags bleiben unverändert.
+	 */
+	public SyncPlan planLocalFolder(String localFolder, String remoteFolder, List<PathMatcher> ignorePatterns, String decryptPassphrase) {
+		SyncPlan plan = new SyncPlan(false, localFolder, remoteFolder);
+		syncLocalFolder(plan, true, ignorePatterns, decryptPassphrase);
+		return plan;
+	}
+
+	/**
+	 * @param planOnly true, wenn die Operationen nur in den Plan aufgenommen statt ausgeführt werden
+	 */
+	private void syncLocalFolder(SyncPlan plan, boolean planOnly, List<PathMatcher> ignorePatterns, String decryptPassphrase) {
+		String localFolder = plan.getLocalFolder();
+		String remoteFolder = plan.getRemoteFolder();
+		// ETags of earlier downloads, validators for skipping unchanged files and subtrees
+		EtagStore etags = EtagStore.load(client.getTransferSettings().stateDir(), localFolder);
+		LocalIndex index = LocalIndex.load(client.getTransferSettings().stateDir(), localFolder, decryptPassphrase, checksums);
+		try (ExecutorService pool = newTransferPool(); RemoteLister lister = newRemoteLister()) {
+			long start = System.currentTimeMillis();
+			// read the folder's ETag before listing, so changes during the sync show up next run
+			OpenCloudClient.FileInfo root = client.getFileInfo(remoteFolder);
+			String rootEtag = root != null ? root.etag() : null;
+			// the full walk is a consistency check: it also runs when the stored ETags claim nothing changed,
+			// since an incremental run records the root ETag without having compared unreported subtrees
+			boolean fullDue = etags.getLastSync() > 0 && start - etags.getLastFullSync() >= FULL_SYNC_INTERVAL_MS;
+			if (!fullDue && isUnchanged(rootEtag, Paths.get(localFolder), "", etags, index, ignorePatterns)) {
+				System.out.println("Remote folder '" + remoteFolder + "' unchanged since last sync, nothing to do");
+				etags.setLastSync(start, false);
+				return;
+			}
+			if (etags.getDirEtag("") != null && etags.getLastSync() > 0 && !fullDue
+					&& syncChangedSince(localFolder, remoteFolder, etags.getLastSync() - CLOCK_SKEW_MS, ignorePatterns, decryptPassphrase, etags, new Stages(new HashMap<>(), lister, pool, plan, planOnly, index, null))) {
+				etags.putDirEtag("", rootEtag);
+				etags.setLastSync(start, false);
+				if (planOnly) {
+					detectMoves(plan, decryptPassphrase, index);
+				}
+				return;
+			}
+			// plan the run from the uploader's manifest, unless the full walk is due
+			Map<String, List<OpenCloudClient.FileInfo>> remoteTree = fullDue ? null : manifest.loadTree(remoteFolder, root, decryptPassphrase);
+			boolean full = remoteTree == null;
+			if (full) {
+				// list directory by directory, ahead of the traversal; unchanged subtrees are skipped by their ETag
+				remoteTree = new HashMap<>();
+			}
+			DirectoryTasks tasks = DirectoryTasks.root(pool);
+			syncLocalFolder(localFolder, remoteFolder, "", ignorePatterns, decryptPassphrase, etags, true, new Stages(remoteTree, lister, pool, plan, planOnly, index, null), tasks);
+			tasks.await();
+			etags.putDirEtag("", rootEtag);
+			etags.setLastSync(start, full);
+			if (planOnly) {
+				detectMoves(plan, decryptPassphrase, index);
+			}
+		} finally {
+			// a plan changes nothing locally, so the store must not record it as synced
+			if (!planOnly) {
+				etags.save();
+			}
+			// checksums are valid either way
+			index.save();
+			checksums.save();
+		}
+	}
+
+	/**
+	 * Inkrementeller Sync: fragt per SEARCH die seit since geänderten Ressourcen ab und gleicht nur die
+	 * Verzeichnisse ab, in denen sich etwas geändert hat. Jedes solche Verzeichnis wird mit Depth 1 neu
+	 * gelistet, da gelöschte oder umbenannte Einträge in der Suche nicht auftauchen, wohl aber die
+	 * geänderte mtime ihres Elternverzeichnisses. Neue Verzeichnisse werden vollständig synchronisiert.
+	 *
+	 * Die Suche vergleicht getlastmodified, und das ist die vom hochladenden Client gesetzte mtime
+	 * (X-OC-Mtime), nicht der Zeitpunkt des Uploads. Eine Datei, die mit einer mtime vor since hochgeladen
+	 * wird, z.B. aus einem Backup oder von einem Client mit nachgehender Uhr, wird nicht gefunden. Ob sich
+	 * dabei die mtime des Elternverzeichnisses ändert, hängt vom Server ab. Solche Änderungen holt erst der
+	 * nächste vollständige Abgleich, ein inkrementeller Lauf kann also bis zu FULL_SYNC_INTERVAL_MS veraltet
+	 * sein. Nach dem Upload-Zeitpunkt (oc:upload_time) wird bewusst nicht gesucht: ein Server, der die
+	 * Eigenschaft in SEARCH nicht kennt, ließe jede Suche scheitern und damit jeden Lauf zum vollständigen Abgleich werden.
+	 *
+	 * @return false, wenn der Server SEARCH nicht unterstützt oder die Suche fehlschlägt; der Aufrufer
+	 *         gleicht dann den ganzen Baum ab
+	 */
+	private boolean syncChangedSince(String localFolder, String remoteFolder, long since, List<PathMatcher> ignorePatterns, String decryptPassphrase, EtagStore etags, Stages stages) {
+		Map<String, OpenCloudClient.FileInfo> changes;
+		try {
+			changes = client.searchModifiedSince(remoteFolder, new Date(since));
+		} catch (RuntimeException e) {
+			System.err.println("  Suche nach Änderungen fehlgeschlagen, gleiche den ganzen Baum ab: " + e.getMessage());
+			return false;
+		}
+		if (changes == null) {
+			return false;
+		}
+		System.out.println("Syncing " + changes.size() + " changed entries of remote folder '" + remoteFolder + "'");
+		// sorted, so that parents are synced before their subdirectories
+		Set<String> dirs = new TreeSet<>();
+		for (Map.Entry<String, OpenCloudClient.FileInfo> change : changes.entrySet()) {
+			String rel = change.getKey();
+			int idx = rel.lastIndexOf('/');
+			dirs.add(idx < 0 ? "" : rel.substring(0, idx));
+			if (change.getValue().isDirectory()) {
+				dirs.add(rel);
+			}
+		}
+		Path localPath = Paths.get(localFolder);
+		for (String dir : dirs) {
+			if (isIgnoredPath(dir, ignorePatterns)) {
+				continue;
+			}
+			OpenCloudClient.FileInfo fi = changes.get(dir);
+			Path target = dir.isEmpty() ? localPath : localPath.resolve(dir);
+			if (fi != null && isUnchanged(fi.etag(), target, dir, etags, stages.index(), ignorePatterns)) {
+				// already synced as part of a new parent directory
+				continue;
+			}
+			String remoteDir = dir.isEmpty() ? remoteFolder : childRemotePath(remoteFolder, dir);
+			DirectoryTasks tasks = DirectoryTasks.root(stages.pool());
+			try {
+				// wait per directory, a subdirectory may already have been synced with a new parent
+				syncLocalFolder(target.toString(), remoteDir, dir, ignorePatterns, decryptPassphrase, etags, false, stages, tasks);
+				tasks.await();
+			} catch (RuntimeException e) {
+				// no transfer may still be running when the full walk starts
+				tasks.waitForTasks();
+				System.err.println("  Fehler beim Abgleich von " + remoteDir + ", gleiche den ganzen Baum ab: " + e.getMessage());
+				return false;
+			}
+			if (fi != null) {
+				etags.putDirEtag(dir, fi.etag());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Pool für Dateiübertragungen samt Prüfsummen (AES, MD5) über den ganzen Baum. Die Warteschlange ist
+	 * begrenzt; ist sie voll, erledigt der den Baum durchlaufende Thread die Aufgabe selbst.
+	 */
+	private ExecutorService newTransferPool() {
+		int workers = Math.max(1, settings.workers());
+		AtomicInteger threadCount = new AtomicInteger();
+		return new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(workers * QUEUED_TASKS_PER_WORKER), r -> {
+			Thread t = new Thread(r, "sync-worker-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	private RemoteLister newRemoteLister() {
+		return new RemoteLister(client, LISTING_PARALLELISM, PREFETCHED_LISTINGS);
+	}
+
+	/**
+	 * Die Stufen eines Laufs, verbunden über begrenzte Warteschlangen: der Durchlauf (lokaler Scan und
+	 * Remote-Listing, vorausschauend im RemoteLister) füttert den Transfer-Pool, in dem verglichen,
+	 * gehasht und übertragen wird. Ist die Warteschlange des Pools voll, arbeitet der Durchlauf selbst mit
+	 * und liest solange nichts Neues ein.
+	 *
+	 * @param remoteTree bereits bekannte Listings (aus dem Manifest oder frisch angelegte Verzeichnisse)
+	 * @param plan       Richtung und Ordner des Laufs; beim reinen Planen auch die geplanten Operationen
+	 * @param planOnly   true, wenn Operationen nur geplant statt sofort ausgeführt werden
+	 * @param index      Index der lokalen Dateien, liefert deren MD5-Werte ohne erneutes Lesen
+	 * @param manifest   Das beim Upload nebenher geschriebene Manifest, sonst null
+	 */
+	private record Stages(Map<String, List<OpenCloudClient.FileInfo>> remoteTree, RemoteLister lister, ExecutorService pool, SyncPlan plan, boolean planOnly, LocalIndex index,
+			SyncManifest.Writer manifest) {}
+
+	private boolean isIgnoredPath(String relPath, List<PathMatcher> ignorePatterns) {
+		for (String name : relPath.split("/")) {
+			if (!name.isEmpty() && checkIgnore(name, ignorePatterns)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Ein Teilbaum ist unverändert, wenn die ETag des Remote-Verzeichnisses der beim letzten Sync
+	 * gespeicherten entspricht (der Server ändert sie bei jeder Änderung darunter) und lokal jede Datei
+	 * noch dem Stand ihres Downloads entspricht (ETag im Index) und kein Eintrag hinzugekommen oder verschwunden ist.
+	 */
+	private boolean isUnchanged(String remoteEtag, Path localDir, String relPath, EtagStore etags, LocalIndex index, List<PathMatcher> ignorePatterns) {
+		if (!EtagStore.sameEtag(remoteEtag, etags.getDirEtag(relPath)) || !Files.isDirectory(localDir)) {
+			return false;
+		}
+		try {
+			int count = countUnchanged(localDir, relPath, etags, index, ignorePatterns);
+			return count >= 0 && count == etags.countDirsUnder(relPath) + index.countEtagsUnder(relPath);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return Anzahl der lokalen Einträge unterhalb des Verzeichnisses, oder -1 sobald einer nicht zu Store oder Index passt
+	 */
+	private int countUnchanged(Path localDir, String relPath, EtagStore etags, LocalIndex index, List<PathMatcher> ignorePatterns) throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(localDir)) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				if (checkIgnore(name, ignorePatterns) || isManifest(relPath, name)) {
+					continue;
+				}
+				String rel = childRelPath(relPath, name);
+				if (Files.isDirectory(p)) {
+					int sub = etags.getDirEtag(rel) != null ? countUnchanged(p, rel, etags, index, ignorePatterns) : -1;
+					if (sub < 0) {
+						return -1;
+					}
+					count += sub + 1;
+				} else if (index.getEtag(rel, p) != null) {
+					count++;
+				} else {
+					return -1;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param recursive false, wenn nur dieses Verzeichnis abgeglichen wird; bekannte Unterverzeichnisse werden
+	 *                  dann nicht betreten, nur neue oder noch nie vollständig synchronisierte
+	 * @param tasks     Die Aufgaben dieses Verzeichnisses; Dateien werden im Pool abgeglichen, das Verzeichnis
+	 *                  selbst sofort durchlaufen
+	 */
+	private void syncLocalFolder(String localFolder, String remoteFolder, String relPath, List<PathMatcher> ignorePatterns, String decryptPassphrase, EtagStore etags, boolean recursive, Stages stages, DirectoryTasks tasks) {
 		// check local folder, create if not exists
 		// update local folder to match remote folder
 		// compare local and remote files and sync
@@ -35,145 +331,299 @@ public class FolderSync {
 		// download missing files from remote to local
 		// delete local files not present in remote
 		System.out.println("Syncing local folder '" + localFolder + "' from remote folder '" + remoteFolder + "'");
-		
-		Path localPath = Paths.get(localFolder);
-		try {
-			if (!Files.exists(localPath)) {
-				Files.createDirectories(localPath);
-			}
-		} catch (IOException e) {
-			throw new RuntimeException("Konnte lokalen Ordner nicht erstellen: " + localFolder, e);
-		}
-		
-		// Hole Remote-Einträge
-		List<OpenCloudClient.FileInfo> remoteEntries;
 		try {
-			remoteEntries = client.listFiles(remoteFolder);
-		} catch (Exception e) {
-			throw new RuntimeException("Fehler beim Listen des Remote-Ordners: " + remoteFolder, e);
-		}
-		
-		// Sammle Remote-Namen für Lösch-Entscheidung
-		Set<String> remoteNames = new HashSet<>();
-		for (OpenCloudClient.FileInfo fi : remoteEntries) {
-			if (checkIgnore(fi.name(), ignorePatterns)) {
-				continue;
+			Path localPath = Paths.get(localFolder);
+			if (!Files.exists(localPath) && !apply(stages, SyncPlan.Operation.createDir(relPath), decryptPassphrase, etags)) {
+				throw new RuntimeException("Konnte lokalen Ordner nicht erstellen: " + localFolder);
 			}
-			remoteNames.add(fi.name());
-			Path target = localPath.resolve(fi.name());
-			if (fi.isDirectory()) {
-				// ensure directory exists and recurse
-				try {
-					if (Files.exists(target) && !Files.isDirectory(target)) {
+			
+			// Hole Remote-Einträge
+			List<OpenCloudClient.FileInfo> remoteEntries = getRemoteEntries(stages, relPath, remoteFolder);
+			
+			// Sammle Remote-Namen für Lösch-Entscheidung
+			Set<String> remoteNames = new HashSet<>();
+			// subdirectories are descended after all files of this directory are queued, their listings run ahead
+			List<OpenCloudClient.FileInfo> subdirs = new ArrayList<>();
+			for (OpenCloudClient.FileInfo fi : remoteEntries) {
+				if (checkIgnore(fi.name(), ignorePatterns) || isManifest(relPath, fi.name())) {
+					continue;
+				}
+				remoteNames.add(fi.name());
+				Path target = localPath.resolve(fi.name());
+				String childRel = childRelPath(relPath, fi.name());
+				if (fi.isDirectory()) {
+					// ensure directory exists and recurse
+					if (!Files.isDirectory(target)) {
 						// conflict: local is file, remote is directory -> delete local file
-						Files.deleteIfExists(target);
+						if (Files.exists(target) && !apply(stages, SyncPlan.Operation.delete(childRel), decryptPassphrase, etags)) {
+							continue;
+						}
+						if (!apply(stages, SyncPlan.Operation.createDir(childRel), decryptPassphrase, etags)) {
+							continue;
+						}
 					}
-					if (!Files.exists(target)) {
-						Files.createDirectories(target);
+					if (isUnchanged(fi.etag(), target, childRel, etags, stages.index(), ignorePatterns)) {
+						// neither remote nor local changed below this directory, skip without listing
+						continue;
 					}
-					// build remote child path
-					String childRemote = remoteFolder.endsWith("/") ? remoteFolder + fi.name() : remoteFolder + "/" + fi.name();
-					syncLocalFolder(target.toString(), childRemote, ignorePatterns, decryptPassphrase);
-				} catch (IOException e) {
-					System.err.println("  Fehler beim Erstellen/Syncen von Verzeichnis: " + target + " - " + e.getMessage());
+					if (!recursive && etags.getDirEtag(childRel) != null) {
+						// incremental sync: a changed subdirectory is synced on its own
+						continue;
+					}
+					subdirs.add(fi);
+					prefetch(stages, childRel, childRemotePath(remoteFolder, fi.name()));
+				} else {
+					tasks.submit(() -> syncRemoteFile(target, childRel, fi, decryptPassphrase, etags, stages));
 				}
-			} else {
-				// file: decide whether to download
-				boolean download = false;
-				try {
-					if (Files.exists(target) && Files.isDirectory(target)) {
-						// conflict: local is dir, remote is file -> delete local dir
-						deleteRecursively(target);
-						download = true;
-					} else if (!Files.exists(target)) {
-						download = true;
-					} else {
-						long localSize = Files.size(target);
-						long remoteSize = fi.contentLength();
-						
-						if (decryptPassphrase != null) {
-							localSize = EncryptedInputStream.getEncryptedSizeForInputSize(localSize);
-						}
-						
-						long localLast = Files.getLastModifiedTime(target).toMillis();
-						long remoteLast = fi.last_modified() != null ? fi.last_modified().getTime() : 0L;
-						// consider difference if size differs or remote newer (allow small clock skew)
-						if (localSize != remoteSize) {
-							download = true;
-						} else if (Math.abs(remoteLast - localLast) >= 1000) {
-							download = true;
+			}
+			for (OpenCloudClient.FileInfo fi : subdirs) {
+				String childRel = childRelPath(relPath, fi.name());
+				syncLocalFolder(localPath.resolve(fi.name()).toString(), childRemotePath(remoteFolder, fi.name()), childRel, ignorePatterns, decryptPassphrase, etags, true, stages,
+						tasks.child(() -> etags.putDirEtag(childRel, fi.etag())));
+			}
+			
+			// delete only after this directory's transfers, their temp files would otherwise count as unknown entries
+			tasks.scanned(() -> {
+				// Lösche lokale Dateien/Verzeichnisse, die nicht in remoteNames sind
+				if (!Files.isDirectory(localPath)) {
+					// only planned: the directory does not exist yet
+					return;
+				}
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(localPath)) {
+					for (Path p : ds) {
+						String name = p.getFileName().toString();
+						if (checkIgnore(name, ignorePatterns) || isManifest(relPath, name)) {
+							continue;
 						}
-						if (download && (localSize == remoteSize) && fi.md5() != null) {
-							// if md5 available, check it
-							String localMd5 = ChecksumUtil.calculateMD5enc(target, decryptPassphrase);
-							if (fi.md5().equalsIgnoreCase(localMd5)) {
-								download = false;
-								// set last modified time to remote's timestamp if available
-								if (fi.last_modified() != null) {
-									Files.setLastModifiedTime(target, FileTime.fromMillis(fi.last_modified().getTime()));
-								}							}
+						if (!remoteNames.contains(name) && !isPartialDownloadOf(name, remoteNames)) {
+							// delete file or directory recursively
+							apply(stages, SyncPlan.Operation.delete(childRelPath(relPath, name)), decryptPassphrase, etags);
 						}
 					}
 				} catch (IOException e) {
-					System.err.println("  Fehler beim Prüfen der lokalen Datei: " + target + " - " + e.getMessage());
+					System.err.println("  Fehler beim Auflisten des lokalen Ordners: " + localPath + " - " + e.getMessage());
+				}
+				// forget remote entries that disappeared or are ignored now
+				etags.retainChildren(relPath, remoteNames);
+				stages.index().retainChildren(relPath, remoteNames);
+			});
+		} catch (RuntimeException e) {
+			tasks.abort(e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gleicht eine Datei ab und lädt sie bei Bedarf herunter; läuft als Aufgabe im Transfer-Pool.
+	 * Fehler werden ausgegeben, die Datei gilt dann beim nächsten Lauf nicht als aktuell.
+	 */
+	private void syncRemoteFile(Path target, String rel, OpenCloudClient.FileInfo fi, String decryptPassphrase, EtagStore etags, Stages stages) {
+		// file: decide whether to download
+		boolean download = false;
+		// same content, only the local timestamp differs
+		boolean touch = false;
+		// ETag of the local version, sent as If-None-Match when only the timestamp differs
+		String ifNoneMatch = null;
+		try {
+			if (Files.exists(target) && Files.isDirectory(target)) {
+				// conflict: local is dir, remote is file -> delete local dir
+				if (!apply(stages, SyncPlan.Operation.delete(rel), decryptPassphrase, etags)) {
+					return;
+				}
+				download = true;
+			} else if (!Files.exists(target)) {
+				download = true;
+			} else {
+				long localSize = Files.size(target);
+				long remoteSize = fi.contentLength();
+				
+				if (decryptPassphrase != null) {
+					localSize = EncryptedInputStream.getEncryptedSizeForInputSize(localSize);
+				}
+				
+				long localLast = Files.getLastModifiedTime(target).toMillis();
+				long remoteLast = fi.last_modified() != null ? fi.last_modified().getTime() : 0L;
+				// consider difference if size differs or remote newer (allow small clock skew)
+				if (localSize != remoteSize) {
+					download = true;
+				} else if (Math.abs(remoteLast - localLast) >= 1000) {
 					download = true;
 				}
-
+				String storedEtag = download && localSize == remoteSize ? stages.index().getEtag(rel, target) : null;
+				if (EtagStore.sameEtag(storedEtag, fi.etag())) {
+					// remote unchanged since our download, only the timestamp differs
+					download = false;
+					touch = true;
+				} else if (download && (localSize == remoteSize) && fi.md5() != null) {
+					// if md5 available, check it (from the index while the local file is unchanged)
+					String localMd5 = stages.index().getEncMd5(rel, target);
+					if (fi.md5().equalsIgnoreCase(localMd5)) {
+						download = false;
+						touch = true;
+					}
+				}
 				if (download) {
-					String remoteFilePath = remoteFolder.endsWith("/") ? remoteFolder + fi.name() : remoteFolder + "/" + fi.name();
-					System.out.println("  Downloading: " + remoteFilePath + " -> " + target);
-					try (InputStream fin = client.downloadFile(remoteFilePath)) {
-						InputStream in = fin;
-						if (decryptPassphrase != null) {
-							// wrap input stream with decryption
-							in = new DecryptedInputStream(in, decryptPassphrase);
-						}
-						// ensure parent exists
-						if (target.getParent() != null && !Files.exists(target.getParent())) {
-							Files.createDirectories(target.getParent());
-						}
-						// write to temp file then move atomically
-						Path tmp = target.resolveSibling(target.getFileName().toString() + ".tmp");
-						Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
-						try {
-							Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-						} catch (IOException moveEx) {
-							// fallback if atomic move not supported
-							Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
-						}
-						// set last modified time to remote's timestamp if available
-						if (fi.last_modified() != null) {
-							Files.setLastModifiedTime(target, FileTime.fromMillis(fi.last_modified().getTime()));
-						}
-					} catch (Exception e) {
-						System.err.println("  Fehler beim Herunterladen der Datei " + remoteFilePath + ": " + e.getMessage());
+					ifNoneMatch = storedEtag;
+				} else if (touch && fi.last_modified() != null) {
+					// set last modified time to remote's timestamp
+					apply(stages, SyncPlan.Operation.setMtime(rel, fi.last_modified().getTime(), fi.etag()), decryptPassphrase, etags);
+				} else if (fi.etag() != null) {
+					stages.index().putEtag(rel, target, fi.etag());
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Prüfen der lokalen Datei: " + target + " - " + e.getMessage());
+			download = true;
+		}
+
+		if (download) {
+			apply(stages, SyncPlan.Operation.download(rel, fi, ifNoneMatch), decryptPassphrase, etags);
+		}
+	}
+
+	/**
+	 * Lädt eine Datei herunter, als bedingter GET, wenn die lokale Version eine ETag hat.
+	 *
+	 * @return false, wenn der Download fehlgeschlagen ist; die Datei gilt dann beim nächsten Lauf nicht als aktuell
+	 */
+	private boolean download(SyncPlan plan, SyncPlan.Operation op, String decryptPassphrase, LocalIndex index) {
+		Path target = localPath(plan, op.path());
+		String remoteFilePath = remotePath(plan, op.path());
+		String rel = op.path();
+		OpenCloudClient.FileInfo fi = op.remoteFile();
+		String ifNoneMatch = op.ifNoneMatch();
+		System.out.println("  Downloading: " + remoteFilePath + " -> " + target);
+		try {
+			// ensure parent exists
+			if (target.getParent() != null && !Files.exists(target.getParent())) {
+				Files.createDirectories(target.getParent());
+			}
+			// download raw (possibly encrypted) content to a resumable temp file
+			Path tmp = target.resolveSibling(target.getFileName().toString() + TMP_SUFFIX);
+			String etag;
+			if (ifNoneMatch != null) {
+				// conditional GET: unchanged content costs a 304 instead of the full body
+				OpenCloudClient.RangedDownload dl = client.downloadFileIfNoneMatch(remoteFilePath, ifNoneMatch);
+				if (dl == null) {
+					System.out.println("  Not modified: " + remoteFilePath);
+					if (fi.last_modified() != null) {
+						Files.setLastModifiedTime(target, FileTime.fromMillis(fi.last_modified().getTime()));
 					}
+					index.putEtag(rel, target, fi.etag() != null ? fi.etag() : ifNoneMatch);
+					return true;
+				}
+				try (InputStream in = dl.content()) {
+					Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
 				}
+				etag = dl.etag() != null ? dl.etag() : fi.etag();
+			} else {
+				etag = downloadResumable(remoteFilePath, fi, tmp);
 			}
+			if (decryptPassphrase != null) {
+				// decrypt the complete temp file, then move atomically
+				Path dec = target.resolveSibling(target.getFileName().toString() + DEC_SUFFIX);
+				try (InputStream in = new DecryptedInputStream(Files.newInputStream(tmp), decryptPassphrase)) {
+					Files.copy(in, dec, StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException | RuntimeException decEx) {
+					// staged content is unusable, do not resume from it next run
+					Files.deleteIfExists(dec);
+					Files.deleteIfExists(tmp);
+					throw decEx;
+				}
+				moveReplacing(dec, target);
+				Files.deleteIfExists(tmp);
+			} else {
+				moveReplacing(tmp, target);
+			}
+			Files.deleteIfExists(tmp.resolveSibling(tmp.getFileName().toString() + ETAG_SUFFIX));
+			// set last modified time to remote's timestamp if available
+			if (fi.last_modified() != null) {
+				Files.setLastModifiedTime(target, FileTime.fromMillis(fi.last_modified().getTime()));
+			}
+			// the new local file is the remote version, no need to hash it when its timestamp drifts
+			index.putEtag(rel, target, etag);
+			return true;
+		} catch (Exception e) {
+			// the local file no longer counts as up to date, so its directory is synced again next run
+			index.putEtag(rel, target, null);
+			System.err.println("  Fehler beim Herunterladen der Datei " + remoteFilePath + ": " + e.getMessage());
+			return false;
 		}
-		
-		// Lösche lokale Dateien/Verzeichnisse, die nicht in remoteNames sind
-		try (DirectoryStream<Path> ds = Files.newDirectoryStream(localPath)) {
-			for (Path p : ds) {
-				String name = p.getFileName().toString();
-				if (checkIgnore(name, ignorePatterns)) {
-					continue;
+	}
+
+	/**
+	 * Lädt die Remote-Datei in die Temp-Datei. Existiert von einem abgebrochenen Lauf bereits
+	 * ein Teil mit passender ETag, wird nur der Rest per Range-Request (mit If-Range) geholt.
+	 * Die ETag des Teil-Downloads steht in einer Datei neben der Temp-Datei.
+	 *
+	 * @return die ETag des heruntergeladenen Inhalts oder null, wenn unbekannt
+	 */
+	private String downloadResumable(String remoteFilePath, OpenCloudClient.FileInfo fi, Path tmp) throws IOException {
+		Path etagFile = tmp.resolveSibling(tmp.getFileName().toString() + ETAG_SUFFIX);
+		long offset = 0;
+		String ifRange = null;
+		if (fi.etag() != null && !fi.etag().startsWith("W/") && Files.isRegularFile(tmp) && Files.isRegularFile(etagFile)) {
+			String storedEtag = Files.readString(etagFile).trim();
+			if (storedEtag.equals(fi.etag())) {
+				offset = Files.size(tmp);
+				ifRange = storedEtag;
+			}
+		}
+		if (offset > 0 && offset == fi.contentLength()) {
+			// already completely downloaded in a previous run
+			return ifRange;
+		}
+		if (offset > 0) {
+			System.out.println("  Resuming download at byte " + offset + ": " + remoteFilePath);
+		} else {
+			// large files: fetch byte ranges in parallel; only a complete download is kept
+			try {
+				if (client.downloadFileSegmented(remoteFilePath, tmp, fi.contentLength(), fi.etag())) {
+					return fi.etag();
 				}
-				if (!remoteNames.contains(name)) {
-					// delete file or directory recursively
-					try {
-						deleteRecursively(p);
-						System.out.println("  Deleted local entry not present on remote: " + p);
-					} catch (IOException e) {
-						System.err.println("  Fehler beim Löschen lokaler Datei/Verzeichnis: " + p + " - " + e.getMessage());
-					}
+			} catch (RuntimeException e) {
+				Files.deleteIfExists(tmp);
+				throw e;
+			}
+		}
+		OpenCloudClient.RangedDownload dl = client.downloadFile(remoteFilePath, offset, ifRange);
+		try (InputStream in = dl.content()) {
+			String etag = dl.etag() != null ? dl.etag() : fi.etag();
+			if (etag != null) {
+				Files.writeString(etagFile, etag);
+			}
+			if (dl.partial()) {
+				try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.APPEND)) {
+					in.transferTo(out);
 				}
+			} else {
+				Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
 			}
-		} catch (IOException e) {
-			System.err.println("  Fehler beim Auflisten des lokalen Ordners: " + localPath + " - " + e.getMessage());
+			return etag;
 		}
 	}
-	
+
+	private static void moveReplacing(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException moveEx) {
+			// fallback if atomic move not supported
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Temp-Dateien eines unterbrochenen Downloads bleiben erhalten, solange die Remote-Datei existiert.
+	 */
+	private static boolean isPartialDownloadOf(String name, Set<String> remoteNames) {
+		for (String suffix : new String[] { TMP_SUFFIX + ETAG_SUFFIX, TMP_SUFFIX }) {
+			if (name.endsWith(suffix) && remoteNames.contains(name.substring(0, name.length() - suffix.length()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	private boolean checkIgnore(String name, List<PathMatcher> ignorePatterns) {
 		if (ignorePatterns == null) {
 			return false;
@@ -198,180 +648,682 @@ public class FolderSync {
 	}
 
 	public void syncRemoteFolder(String remoteFolder, String localFolder, List<PathMatcher> ignorePatterns, String encryptPassphrase) {
-		System.out.println("Syncing remote folder '" + remoteFolder + "' with local folder '" + localFolder + "'");
+		syncRemoteFolder(new SyncPlan(true, localFolder, remoteFolder), false, ignorePatterns, encryptPassphrase);
+	}
+
+	/**
+	 * Plant den Upload, ohne remote etwas zu ändern.
+	 */
+	public SyncPlan planRemoteFolder(String remoteFolder, String localFolder, List<PathMatcher> ignorePatterns, String encryptPassphrase) {
+		SyncPlan plan = new SyncPlan(true, localFolder, remoteFolder);
+		syncRemoteFolder(plan, true, ignorePatterns, encryptPassphrase);
+		return plan;
+	}
+
+	/**
+	 * @param planOnly true, wenn die Operationen nur in den Plan aufgenommen statt ausgeführt werden
+	 */
+	private void syncRemoteFolder(SyncPlan plan, boolean planOnly, List<PathMatcher> ignorePatterns, String encryptPassphrase) {
+		String remoteFolder = plan.getRemoteFolder();
+		String localFolder = plan.getLocalFolder();
 		Path localPath = Paths.get(localFolder);
-		// If local doesn't exist -> remove remote
-		if (!Files.exists(localPath)) {
-			System.out.println("  Local folder does not exist: " + localFolder + " -> deleting remote if exists");
-			try {
-				if (client.exists(remoteFolder)) {
-					deleteRemoteRecursively(remoteFolder);
+		boolean complete;
+		OpenCloudClient.FileInfo remoteManifest;
+		LocalIndex index = LocalIndex.load(client.getTransferSettings().stateDir(), localFolder, encryptPassphrase, checksums);
+		try (ExecutorService pool = newTransferPool(); RemoteLister lister = newRemoteLister();
+				SyncManifest.Writer writer = planOnly ? null : manifest.newWriter(client.getTransferSettings().stateDir())) {
+			// list directory by directory, ahead of the traversal
+			Map<String, List<OpenCloudClient.FileInfo>> remoteTree = new HashMap<>();
+			Stages stages = new Stages(remoteTree, lister, pool, plan, planOnly, index, writer);
+			// If local doesn't exist -> remove remote
+			if (!Files.exists(localPath)) {
+				System.out.println("  Local folder does not exist: " + localFolder + " -> deleting remote if exists");
+				try {
+					if (client.exists(remoteFolder)) {
+						apply(stages, SyncPlan.Operation.delete(""), encryptPassphrase, null);
+					}
+				} catch (Exception e) {
+					System.err.println("  Error deleting remote folder " + remoteFolder + ": " + e.getMessage());
 				}
-			} catch (Exception e) {
-				System.err.println("  Error deleting remote folder " + remoteFolder + ": " + e.getMessage());
+				return;
 			}
-			return;
-		}
-		
-		// ensure remote folder exists
-		try {
+			
+			// ensure remote folder exists (including missing parents)
 			if (!client.exists(remoteFolder)) {
-				client.createDirectory(remoteFolder);
+				if (!apply(stages, SyncPlan.Operation.createDir(""), encryptPassphrase, null)) {
+					throw new RuntimeException("Fehler beim Sicherstellen des Remote-Ordners: " + remoteFolder);
+				}
+				remoteTree.put("", new ArrayList<>());
+			} else {
+				remoteTree.put("", getRemoteEntries(stages, "", remoteFolder));
 			}
-		} catch (Exception e) {
-			throw new RuntimeException("Fehler beim Sicherstellen des Remote-Ordners: " + remoteFolder, e);
-		}
-		
-		// list remote entries
-		List<OpenCloudClient.FileInfo> remoteEntries;
-		try {
-			remoteEntries = client.listFiles(remoteFolder);
-		} catch (Exception e) {
-			throw new RuntimeException("Fehler beim Listen des Remote-Ordners: " + remoteFolder, e);
-		}
-		// map remote by name
-		Set<String> remoteNames = new HashSet<>();
-		for (OpenCloudClient.FileInfo fi : remoteEntries) {
-			if (checkIgnore(fi.name(), ignorePatterns)) {
-				continue;
+			remoteManifest = findRemote(remoteTree.get(""), SyncManifest.FILE_NAME);
+			DirectoryTasks tasks = DirectoryTasks.root(pool);
+			syncRemoteFolder(remoteFolder, localPath, "", ignorePatterns, encryptPassphrase, stages, tasks);
+			tasks.await();
+			complete = tasks.isComplete();
+			if (planOnly) {
+				detectMoves(plan, encryptPassphrase, index);
+				return;
+			}
+			if (complete) {
+				// after a complete sync only, so that downloaders can plan their run from it
+				writer.publish(remoteFolder, encryptPassphrase, remoteManifest);
+			} else {
+				// the remote folder changed after the old manifest, so downloaders ignore it
+				System.err.println("  Sync incomplete, manifest not published for " + remoteFolder);
 			}
-			remoteNames.add(fi.name());
+		} finally {
+			index.save();
+			checksums.save();
 		}
-		
-		// iterate local entries and upload/update
-		try (DirectoryStream<Path> ds = Files.newDirectoryStream(localPath)) {
-			for (Path p : ds) {
-				String name = p.getFileName().toString();
-				if (checkIgnore(name, ignorePatterns)) {
-					continue;
-				}
-				String remotePath = remoteFolder.endsWith("/") ? remoteFolder + name : remoteFolder + "/" + name;
-				if (Files.isDirectory(p)) {
-					// local is directory
-					// if remote exists and is file -> delete remote file
-					OpenCloudClient.FileInfo rem = findRemote(remoteEntries, name);
-					try {
-						if (rem != null && !rem.isDirectory()) {
-							client.delete(remotePath);
-							remoteNames.remove(name);
-						}
-						// ensure remote dir exists
-						if (!client.exists(remotePath)) {
-							client.createDirectory(remotePath);
-						}
-						// recurse
-						syncRemoteFolder(remotePath, p.toString(), ignorePatterns, encryptPassphrase);
-					} catch (Exception e) {
-						System.err.println("  Error syncing directory " + p + " -> " + remotePath + ": " + e.getMessage());
+	}
+
+	/**
+	 * @param tasks Die Aufgaben dieses Verzeichnisses; Dateien werden im Pool geprüft und hochgeladen, das
+	 *              Verzeichnis selbst sofort durchlaufen
+	 */
+	private void syncRemoteFolder(String remoteFolder, Path localPath, String relPath, List<PathMatcher> ignorePatterns, String encryptPassphrase, Stages stages, DirectoryTasks tasks) {
+		System.out.println("Syncing remote folder '" + remoteFolder + "' with local folder '" + localPath + "'");
+		try {
+			// remote entries from the listing
+			List<OpenCloudClient.FileInfo> remoteEntries = getRemoteEntries(stages, relPath, remoteFolder);
+			
+			// files to upload, sent together once all files are checked (bulk upload for small files)
+			Queue<SyncPlan.Operation> uploads = new ConcurrentLinkedQueue<>();
+			// subdirectories are descended after all files of this directory are queued, their listings run ahead
+			List<Path> subdirs = new ArrayList<>();
+			Set<String> localNames = new HashSet<>();
+			
+			// iterate local entries and upload/update
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(localPath)) {
+				for (Path p : ds) {
+					String name = p.getFileName().toString();
+					if (checkIgnore(name, ignorePatterns) || isManifest(relPath, name)) {
+						continue;
 					}
-				} else if (Files.isRegularFile(p)) {
-					// local is file -> determine upload needed
-					boolean upload = false;
-					OpenCloudClient.FileInfo rem = findRemote(remoteEntries, name);
-					try {
-						if (rem != null && rem.isDirectory()) {
-							// conflict: remote is directory -> delete it
-							deleteRemoteRecursively(remotePath);
-							upload = true;
-						} else if (rem == null) {
-							upload = true;
-						} else {
-							long localSize = Files.size(p);
-							long remoteSize = rem.contentLength();
-							if (encryptPassphrase != null) {
-								localSize = EncryptedInputStream.getEncryptedSizeForInputSize(localSize);
+					localNames.add(name);
+					String remotePath = childRemotePath(remoteFolder, name);
+					String childRel = childRelPath(relPath, name);
+					if (Files.isDirectory(p)) {
+						// local is directory
+						// if remote exists and is file -> delete remote file
+						OpenCloudClient.FileInfo rem = findRemote(remoteEntries, name);
+						if (rem != null && !rem.isDirectory() && !apply(stages, SyncPlan.Operation.delete(childRel), encryptPassphrase, null)) {
+							tasks.markIncomplete();
+							continue;
+						}
+						// ensure remote dir exists (the parent listing tells us whether it does)
+						if (rem == null || !rem.isDirectory()) {
+							if (!apply(stages, SyncPlan.Operation.createDir(childRel), encryptPassphrase, null)) {
+								tasks.markIncomplete();
+								continue;
 							}
-							System.out.println("Comparing local file " + p + " (size=" + localSize + ") with remote " + remotePath + " (size=" + remoteSize + ")");
-							long localLast = Files.getLastModifiedTime(p).toMillis();
-							long remoteLast = rem.last_modified() != null ? rem.last_modified().getTime() : 0L;
-							// rule: if same size AND same lastModified -> skip
-							if (localSize == remoteSize && remoteLast == localLast) {
-								upload = false;
-							} else if (localSize == remoteSize && rem.md5() != null) {
-								String localMd5 = ChecksumUtil.calculateMD5enc(p, encryptPassphrase);
-								if (localMd5 != null && rem.md5().equalsIgnoreCase(localMd5)) {
-									upload = false;
-									// set last modified time to remote's timestamp if available
-									if (rem.last_modified() != null) {
-										Files.setLastModifiedTime(p, FileTime.fromMillis(rem.last_modified().getTime()));
-									}
-								} else {
-									upload = true;
-								}
-						} else {
-							upload = true;
+							// freshly created -> known to be empty, no listing needed
+							stages.remoteTree().put(childRel, new ArrayList<>());
 						}
+						subdirs.add(p);
+						prefetch(stages, childRel, remotePath);
+					} else if (Files.isRegularFile(p)) {
+						OpenCloudClient.FileInfo rem = findRemote(remoteEntries, name);
+						tasks.submit(() -> {
+							SyncPlan.Operation upload = checkUpload(p, childRel, remotePath, rem, encryptPassphrase, stages, tasks);
+							if (upload == null) {
+								return;
+							}
+							if (stages.planOnly()) {
+								stages.plan().add(upload);
+							} else {
+								uploads.add(upload);
+							}
+						});
 					}
-					} catch (IOException e) {
-						System.err.println("  Fehler beim Prüfen der lokalen Datei: " + p + " - " + e.getMessage());
-						upload = true;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Fehler beim Lesen des lokalen Ordners: " + localPath, e);
+			}
+			// forget local files that disappeared or are ignored now
+			stages.index().retainChildren(relPath, localNames);
+			for (Path p : subdirs) {
+				String name = p.getFileName().toString();
+				String childRel = childRelPath(relPath, name);
+				OpenCloudClient.FileInfo rem = findRemote(remoteEntries, name);
+				// recurse; the manifest gets the directory once its subtree is done
+				syncRemoteFolder(childRemotePath(remoteFolder, name), p, childRel, ignorePatterns, encryptPassphrase, stages, tasks.child(() -> {
+					if (stages.manifest() != null) {
+						stages.manifest().directory(childRel, rem != null && rem.isDirectory() ? rem.etag() : null);
 					}
-					
-					if (upload) {
-						System.out.println("  Uploading: " + p + " -> " + remotePath);
-						try (InputStream fin = Files.newInputStream(p)) {
-							InputStream in = fin;
-							if (encryptPassphrase != null) {
-								// wrap input stream with encryption
-								in = new EncryptedInputStream(in, encryptPassphrase);
-							}
-							// ensure parent exists remotely
-							// (we assume parent exists because we created remoteFolder früher)
-							client.uploadFile(remotePath, in, Files.getLastModifiedTime(p).toMillis());
-							remoteNames.add(name);
-						} catch (Exception e) {
-							System.err.println("  Fehler beim Hochladen der Datei " + p + ": " + e.getMessage());
+				}));
+			}
+			
+			// once all files of this directory are checked: upload them, then delete remote entries that do not exist locally
+			tasks.scanned(() -> {
+				if (!uploads.isEmpty() && !uploadAll(stages.plan(), new ArrayList<>(uploads), encryptPassphrase, stages.index(), stages.manifest())) {
+					tasks.markIncomplete();
+				}
+				
+				// delete remote entries that do not exist locally
+				for (OpenCloudClient.FileInfo fi : remoteEntries) {
+					if (checkIgnore(fi.name(), ignorePatterns) || isManifest(relPath, fi.name())) {
+						continue;
+					}
+					if (!Files.exists(localPath.resolve(fi.name()))
+							&& !apply(stages, SyncPlan.Operation.deleteRemote(childRelPath(relPath, fi.name()), fi), encryptPassphrase, null)) {
+						tasks.markIncomplete();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			tasks.abort(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Prüft, ob eine lokale Datei hochgeladen werden muss; läuft als Aufgabe im Transfer-Pool.
+	 *
+	 * @return der Upload oder null, wenn die Remote-Datei aktuell ist
+	 */
+	private SyncPlan.Operation checkUpload(Path p, String rel, String remotePath, OpenCloudClient.FileInfo rem, String encryptPassphrase, Stages stages, DirectoryTasks tasks) {
+		// local is file -> determine upload needed
+		boolean upload = false;
+		try {
+			if (rem != null && rem.isDirectory()) {
+				// conflict: remote is directory -> delete it
+				if (!apply(stages, SyncPlan.Operation.delete(rel), encryptPassphrase, null)) {
+					tasks.markIncomplete();
+					return null;
+				}
+				upload = true;
+			} else if (rem == null) {
+				upload = true;
+			} else {
+				long localSize = Files.size(p);
+				long remoteSize = rem.contentLength();
+				if (encryptPassphrase != null) {
+					localSize = EncryptedInputStream.getEncryptedSizeForInputSize(localSize);
+				}
+				System.out.println("Comparing local file " + p + " (size=" + localSize + ") with remote " + remotePath + " (size=" + remoteSize + ")");
+				long localLast = Files.getLastModifiedTime(p).toMillis();
+				long remoteLast = rem.last_modified() != null ? rem.last_modified().getTime() : 0L;
+				// rule: if same size AND same lastModified -> skip
+				if (localSize == remoteSize && remoteLast == localLast) {
+					upload = false;
+				} else if (localSize == remoteSize && EtagStore.sameEtag(stages.index().getEtag(rel, p), rem.etag())) {
+					// neither side changed since they were found equal, only the timestamps differ
+					upload = false;
+				} else if (localSize == remoteSize && rem.md5() != null) {
+					// from the index while the local file is unchanged, otherwise hashed (and encrypted) once
+					String localMd5 = stages.index().getEncMd5(rel, p);
+					if (localMd5 != null && rem.md5().equalsIgnoreCase(localMd5)) {
+						upload = false;
+						stages.index().putEtag(rel, p, rem.etag());
+						// set last modified time to remote's timestamp if available
+						if (rem.last_modified() != null) {
+							apply(stages, SyncPlan.Operation.setMtime(rel, rem.last_modified().getTime(), null), encryptPassphrase, null);
 						}
+					} else {
+						upload = true;
 					}
+				} else {
+					upload = true;
 				}
 			}
 		} catch (IOException e) {
-			throw new RuntimeException("Fehler beim Lesen des lokalen Ordners: " + localPath, e);
+			System.err.println("  Fehler beim Prüfen der lokalen Datei: " + p + " - " + e.getMessage());
+			upload = true;
 		}
 		
-		// delete remote entries that do not exist locally
-		for (OpenCloudClient.FileInfo fi : remoteEntries) {
-			if (checkIgnore(fi.name(), ignorePatterns)) {
+		if (!upload && !record(stages.manifest(), stages.index(), rel, p, rem.etag())) {
+			tasks.markIncomplete();
+		}
+		if (upload) {
+			try {
+				// streamed from disk (encrypted on the fly if requested) in uploadAll
+				// (we assume parent exists because we created remoteFolder früher)
+				return SyncPlan.Operation.upload(rel, Files.getLastModifiedTime(p).toMillis());
+			} catch (Exception e) {
+				tasks.markIncomplete();
+				System.err.println("  Fehler beim Hochladen der Datei " + p + ": " + e.getMessage());
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Lädt die Dateien gemeinsam hoch (kleine per Bulk-Upload, siehe {@link OpenCloudClient#uploadFiles}).
+	 * Die ETag aus der Antwort des Uploads kommt in den Index und mit ihm in das Manifest.
+	 *
+	 * @param writer Das Manifest des Laufs oder null
+	 * @return false, wenn mindestens ein Upload fehlgeschlagen ist
+	 */
+	private boolean uploadAll(SyncPlan plan, List<SyncPlan.Operation> ops, String encryptPassphrase, LocalIndex index, SyncManifest.Writer writer) {
+		boolean complete = true;
+		List<OpenCloudClient.UploadRequest> batch = new ArrayList<>();
+		Map<String, String> relPaths = new HashMap<>();
+		for (SyncPlan.Operation op : ops) {
+			Path p = localPath(plan, op.path());
+			String remotePath = remotePath(plan, op.path());
+			System.out.println("  Uploading: " + p + " -> " + remotePath);
+			if (writer != null) {
+				writer.changed(op.path());
+			}
+			try {
+				batch.add(new OpenCloudClient.UploadRequest(remotePath, p, encryptPassphrase, Files.getLastModifiedTime(p).toMillis()));
+				relPaths.put(remotePath, op.path());
+			} catch (IOException e) {
+				complete = false;
+				System.err.println("  Fehler beim Hochladen der Datei " + p + ": " + e.getMessage());
+			}
+		}
+		Map<String, String> etags = new ConcurrentHashMap<>();
+		Map<String, RuntimeException> errors = client.uploadFiles(batch, (remotePath, etag) -> {
+			if (etag != null) {
+				etags.put(remotePath, etag);
+			}
+		});
+		for (OpenCloudClient.UploadRequest u : batch) {
+			RuntimeException e = errors.get(u.path());
+			if (e != null) {
+				complete = false;
+				System.err.println("  Fehler beim Hochladen der Datei " + u.file() + ": " + e.getMessage());
 				continue;
 			}
-			if (!Files.exists(localPath.resolve(fi.name()))) {
-				String remotePath = remoteFolder.endsWith("/") ? remoteFolder + fi.name() : remoteFolder + "/" + fi.name();
-				try {
-					deleteRemoteRecursively(remotePath);
-					System.out.println("  Deleted remote entry not present locally: " + remotePath);
-				} catch (Exception e) {
-					System.err.println("  Error deleting remote entry " + remotePath + ": " + e.getMessage());
-				}
+			String rel = relPaths.get(u.path());
+			String etag = etags.get(u.path());
+			index.putEtag(rel, u.file(), etag);
+			complete &= record(writer, index, rel, u.file(), etag);
+		}
+		return complete;
+	}
+
+	/**
+	 * Nimmt eine aktuelle oder gerade hochgeladene Datei in das Manifest auf, mit den MD5-Werten aus dem Index.
+	 *
+	 * @param writer Das Manifest des Laufs oder null
+	 * @param etag   Die ETag der Remote-Version oder null, wenn unbekannt
+	 * @return false, wenn die Datei nicht gelesen werden konnte; das Manifest wäre dann unvollständig
+	 */
+	private static boolean record(SyncManifest.Writer writer, LocalIndex index, String rel, Path p, String etag) {
+		if (writer == null) {
+			return true;
+		}
+		try {
+			long size = Files.size(p);
+			long mtime = Files.getLastModifiedTime(p).toMillis();
+			String plainMd5 = index.getPlainMd5(rel, p);
+			String encMd5 = index.getEncMd5(rel, p);
+			if (plainMd5 == null || encMd5 == null) {
+				throw new IOException("Prüfsumme nicht berechenbar");
 			}
+			writer.file(rel, size, mtime, plainMd5, encMd5, etag);
+			return true;
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Aufnehmen in das Manifest: " + p + " - " + e.getMessage());
+			return false;
 		}
 	}
 	
+	/**
+	 * Löscht eine Remote-Ressource. WebDAV DELETE auf ein Verzeichnis löscht rekursiv auf dem Server,
+	 * daher wird zuerst ein einzelner DELETE versucht. Nur wenn der Server diesen ablehnt (403, 405, 501)
+	 * oder einzelne Einträge nicht löschen konnte (207), wird der Baum clientseitig durchlaufen und Eintrag
+	 * für Eintrag gelöscht. Eine bereits fehlende Ressource (404) gilt als gelöscht, jeder andere Fehler
+	 * wird weitergereicht.
+	 */
 	private void deleteRemoteRecursively(String remotePath) {
 		try {
-			// try listing; if it fails or returns empty, just delete the resource
-			List<OpenCloudClient.FileInfo> entries = null;
-			try {
-				entries = client.listFiles(remotePath);
-			} catch (Exception e) {
-				// might be a file or non-listable resource
+			client.delete(remotePath);
+			return;
+		} catch (RuntimeException e) {
+			int status = OpenCloudClient.statusOf(e);
+			if (status == 404) {
+				return;
+			}
+			if (status != 403 && status != 405 && status != 501 && status != 207) {
+				throw e;
+			}
+			System.err.println("  Recursive DELETE rejected for " + remotePath + " (" + status + "), deleting entries individually");
+		}
+		deleteRemoteTree(remotePath);
+	}
+
+	private void deleteRemoteTree(String remotePath) {
+		OpenCloudClient.FileInfo info = client.getFileInfo(remotePath);
+		if (info == null) {
+			return;
+		}
+		if (info.isDirectory()) {
+			for (OpenCloudClient.FileInfo fi : client.listFiles(remotePath)) {
+				String childRemote = remotePath.endsWith("/") ? remotePath + fi.name() : remotePath + "/" + fi.name();
+				if (fi.isDirectory()) {
+					deleteRemoteTree(childRemote);
+				} else {
+					deleteRemoteEntry(childRemote);
+				}
+			}
+		}
+		// finally delete the resource itself
+		deleteRemoteEntry(remotePath);
+	}
+
+	private void deleteRemoteEntry(String remotePath) {
+		try {
+			client.delete(remotePath);
+		} catch (RuntimeException e) {
+			if (OpenCloudClient.statusOf(e) != 404) {
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Führt einen Plan aus, gruppiert nach Typ: zuerst wird gelöscht, dann werden Verzeichnisse angelegt
+	 * (Eltern vor Kindern), verschoben und schließlich übertragen und mtimes gesetzt. Die Operationen einer
+	 * Gruppe betreffen verschiedene Pfade und laufen parallel im Transfer-Pool; Uploads werden gesammelt
+	 * übertragen.
+	 *
+	 * Ein Manifest wird dabei nicht geschrieben: der Plan enthält nur die Änderungen, nicht die unveränderten
+	 * Dateien. Vor einem Upload-Plan wird das bisherige Manifest daher gelöscht; der nächste Upload-Lauf ohne
+	 * Plan schreibt es neu, bis dahin listen Downloader selbst.
+	 *
+	 * @param passphrase Passphrase zum Ver- bzw. Entschlüsseln, wie beim Planen
+	 * @return true, wenn alle Operationen erfolgreich waren
+	 */
+	public boolean execute(SyncPlan plan, String passphrase) {
+		System.out.println("Executing plan for local folder '" + plan.getLocalFolder() + "' and remote folder '" + plan.getRemoteFolder() + "'");
+		EtagStore etags = plan.isUpload() ? null : EtagStore.load(client.getTransferSettings().stateDir(), plan.getLocalFolder());
+		LocalIndex index = LocalIndex.load(client.getTransferSettings().stateDir(), plan.getLocalFolder(), passphrase, checksums);
+		boolean complete = true;
+		if (plan.isUpload() && !plan.getOperations().isEmpty()) {
+			deleteManifest(plan.getRemoteFolder());
+		}
+		try (ExecutorService pool = newTransferPool()) {
+			// entries below a deleted directory are gone with it
+			Set<String> deleted = new HashSet<>();
+			List<SyncPlan.Operation> deletes = new ArrayList<>();
+			for (SyncPlan.Operation op : plan.getOperations(SyncPlan.Type.DELETE)) {
+				if (!isBelow(op.path(), deleted)) {
+					deleted.add(op.path());
+					deletes.add(op);
 				}
-			if (entries != null && !entries.isEmpty()) {
-				for (OpenCloudClient.FileInfo fi : entries) {
-					String childRemote = remotePath.endsWith("/") ? remotePath + fi.name() : remotePath + "/" + fi.name();
-					if (fi.isDirectory()) {
-						deleteRemoteRecursively(childRemote);
+			}
+			complete &= executeAll(pool, plan, deletes, passphrase, etags, index);
+			// one level after another, so that parents exist before their children
+			Map<Integer, List<SyncPlan.Operation>> levels = new TreeMap<>();
+			for (SyncPlan.Operation op : plan.getOperations(SyncPlan.Type.CREATE_DIR)) {
+				levels.computeIfAbsent(op.path().isEmpty() ? 0 : op.path().split("/").length, k -> new ArrayList<>()).add(op);
+			}
+			for (List<SyncPlan.Operation> level : levels.values()) {
+				complete &= executeAll(pool, plan, level, passphrase, etags, index);
+			}
+			complete &= executeAll(pool, plan, plan.getOperations(SyncPlan.Type.MOVE), passphrase, etags, index);
+			List<SyncPlan.Operation> transfers = new ArrayList<>(plan.getOperations(SyncPlan.Type.DOWNLOAD));
+			transfers.addAll(plan.getOperations(SyncPlan.Type.SET_MTIME));
+			List<SyncPlan.Operation> uploads = plan.getOperations(SyncPlan.Type.UPLOAD);
+			DirectoryTasks tasks = DirectoryTasks.root(pool);
+			for (int i = 0; i < uploads.size(); i += PLANNED_UPLOAD_BATCH) {
+				List<SyncPlan.Operation> batch = uploads.subList(i, Math.min(uploads.size(), i + PLANNED_UPLOAD_BATCH));
+				tasks.submit(() -> {
+					if (!uploadAll(plan, batch, passphrase, index, null)) {
+						tasks.markIncomplete();
+					}
+				});
+			}
+			submitAll(tasks, plan, transfers, passphrase, etags, index);
+			tasks.scanned(() -> {});
+			tasks.await();
+			complete &= tasks.isComplete();
+		} finally {
+			if (etags != null) {
+				etags.save();
+			}
+			index.save();
+			checksums.save();
+		}
+		return complete;
+	}
+
+	/**
+	 * Löscht das Manifest eines Remote-Ordners, dessen Inhalt sich ändern wird, ohne dass es neu geschrieben wird.
+	 */
+	private void deleteManifest(String remoteFolder) {
+		String manifestPath = childRemotePath(remoteFolder, SyncManifest.FILE_NAME);
+		try {
+			if (client.exists(manifestPath)) {
+				client.delete(manifestPath);
+				System.out.println("  Deleted manifest: " + manifestPath);
+			}
+		} catch (RuntimeException e) {
+			System.err.println("  Fehler beim Löschen des Manifests " + manifestPath + ": " + e.getMessage());
+		}
+	}
+
+	private boolean executeAll(ExecutorService pool, SyncPlan plan, List<SyncPlan.Operation> ops, String passphrase, EtagStore etags, LocalIndex index) {
+		DirectoryTasks tasks = DirectoryTasks.root(pool);
+		submitAll(tasks, plan, ops, passphrase, etags, index);
+		tasks.scanned(() -> {});
+		tasks.await();
+		return tasks.isComplete();
+	}
+
+	private void submitAll(DirectoryTasks tasks, SyncPlan plan, List<SyncPlan.Operation> ops, String passphrase, EtagStore etags, LocalIndex index) {
+		for (SyncPlan.Operation op : ops) {
+			tasks.submit(() -> {
+				if (!execute(plan, op, passphrase, etags, index)) {
+					tasks.markIncomplete();
+				}
+			});
+		}
+	}
+
+	private static boolean isBelow(String relPath, Set<String> dirs) {
+		if (dirs.contains("")) {
+			return true;
+		}
+		for (int idx = relPath.lastIndexOf('/'); idx > 0; idx = relPath.lastIndexOf('/', idx - 1)) {
+			if (dirs.contains(relPath.substring(0, idx))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Führt eine geplante Operation sofort aus, oder nimmt sie beim reinen Planen nur in den Plan auf.
+	 *
+	 * @param etags Der Store des Downloads, beim Upload null
+	 * @return false, wenn die Ausführung fehlgeschlagen ist
+	 */
+	private boolean apply(Stages stages, SyncPlan.Operation op, String passphrase, EtagStore etags) {
+		if (stages.planOnly()) {
+			stages.plan().add(op);
+			return true;
+		}
+		if (stages.manifest() != null && op.type() != SyncPlan.Type.SET_MTIME) {
+			// changes the server, listed ETags of the parent directories are outdated
+			stages.manifest().changed(op.path());
+		}
+		return execute(stages.plan(), op, passphrase, etags, stages.index());
+	}
+
+	/**
+	 * Führt eine Operation aus; Fehler werden ausgegeben.
+	 *
+	 * @return false, wenn die Ausführung fehlgeschlagen ist
+	 */
+	private boolean execute(SyncPlan plan, SyncPlan.Operation op, String passphrase, EtagStore etags, LocalIndex index) {
+		Path local = localPath(plan, op.path());
+		String remote = remotePath(plan, op.path());
+		try {
+			switch (op.type()) {
+				case CREATE_DIR -> {
+					if (!plan.isUpload()) {
+						Files.createDirectories(local);
+					} else if (op.path().isEmpty()) {
+						// including missing parents
+						client.createDirectories(remote);
 					} else {
-						client.delete(childRemote);
+						client.createDirectory(remote);
 					}
 				}
+				case DELETE -> {
+					if (plan.isUpload()) {
+						deleteRemoteRecursively(remote);
+						System.out.println("  Deleted remote entry: " + remote);
+					} else {
+						etags.remove(op.path());
+						index.remove(op.path());
+						deleteRecursively(local);
+						System.out.println("  Deleted local entry: " + local);
+					}
+				}
+				case MOVE -> {
+					if (plan.isUpload()) {
+						client.move(remotePath(plan, op.source()), remote);
+						System.out.println("  Moved remote entry: " + remotePath(plan, op.source()) + " -> " + remote);
+					} else {
+						etags.remove(op.source());
+						index.remove(op.source());
+						moveReplacing(localPath(plan, op.source()), local);
+						System.out.println("  Moved local entry: " + localPath(plan, op.source()) + " -> " + local);
+					}
+				}
+				case SET_MTIME -> {
+					index.setLastModifiedTime(op.path(), local, op.mtime());
+					if (op.etag() != null) {
+						index.putEtag(op.path(), local, op.etag());
+					}
+				}
+				case DOWNLOAD -> {
+					return download(plan, op, passphrase, index);
+				}
+				case UPLOAD -> {
+					return uploadAll(plan, List.of(op), passphrase, index, null);
+				}
 			}
-			// finally delete the resource itself
-			client.delete(remotePath);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Fehler bei " + op + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Fasst im Plan das Löschen einer Datei und die Übertragung einer Datei gleichen Inhalts an anderer
+	 * Stelle zu einem MOVE zusammen, z.B. nach dem Umbenennen oder Verschieben einer Datei. Verglichen wird
+	 * die Größe und, nur bei gleicher Größe, der MD5 des übertragenen Inhalts.
+	 */
+	private void detectMoves(SyncPlan plan, String passphrase, LocalIndex index) {
+		// deleted files by size (as transferred)
+		Map<Long, List<SyncPlan.Operation>> deletedBySize = new HashMap<>();
+		for (SyncPlan.Operation op : plan.getOperations(SyncPlan.Type.DELETE)) {
+			long size = op.size();
+			if (!plan.isUpload()) {
+				Path p = localPath(plan, op.path());
+				try {
+					size = Files.isRegularFile(p) ? Files.size(p) : -1;
+				} catch (IOException e) {
+					size = -1;
+				}
+				if (size >= 0 && passphrase != null) {
+					size = EncryptedInputStream.getEncryptedSizeForInputSize(size);
+				}
+			} else if (op.md5() == null) {
+				continue;
+			}
+			if (size >= 0) {
+				deletedBySize.computeIfAbsent(size, k -> new ArrayList<>()).add(op);
+			}
+		}
+		if (deletedBySize.isEmpty()) {
+			return;
+		}
+		for (SyncPlan.Operation op : plan.getOperations(plan.isUpload() ? SyncPlan.Type.UPLOAD : SyncPlan.Type.DOWNLOAD)) {
+			try {
+				long size = op.size();
+				if (plan.isUpload()) {
+					size = Files.size(localPath(plan, op.path()));
+					if (passphrase != null) {
+						size = EncryptedInputStream.getEncryptedSizeForInputSize(size);
+					}
+				}
+				List<SyncPlan.Operation> candidates = deletedBySize.get(size);
+				if (candidates == null) {
+					continue;
+				}
+				// upload: the new local file against the deleted remote file, download: the reverse
+				String md5 = plan.isUpload() ? index.getEncMd5(op.path(), localPath(plan, op.path())) : op.md5();
+				if (md5 == null) {
+					continue;
+				}
+				for (SyncPlan.Operation del : candidates) {
+					String deletedMd5 = plan.isUpload() ? del.md5() : index.getEncMd5(del.path(), localPath(plan, del.path()));
+					if (md5.equalsIgnoreCase(deletedMd5)) {
+						candidates.remove(del);
+						plan.remove(del);
+						plan.remove(op);
+						plan.add(SyncPlan.Operation.move(del.path(), op.path()));
+						if (!plan.isUpload() && op.mtime() >= 0) {
+							plan.add(SyncPlan.Operation.setMtime(op.path(), op.mtime(), op.etag()));
+						}
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// no move, the planned transfer stays
+			}
+		}
+	}
+
+	private static Path localPath(SyncPlan plan, String relPath) {
+		return Paths.get(plan.getLocalFolder()).resolve(relPath);
+	}
+
+	private static String remotePath(SyncPlan plan, String relPath) {
+		return relPath.isEmpty() ? plan.getRemoteFolder() : childRemotePath(plan.getRemoteFolder(), relPath);
+	}
+
+	/**
+	 * Liefert die Remote-Einträge eines Verzeichnisses, aus dem Manifest bzw. als frisch angelegt bekannt,
+	 * sonst vom RemoteLister (vorab gelesen oder sofort gelistet).
+	 */
+	private List<OpenCloudClient.FileInfo> getRemoteEntries(Stages stages, String relPath, String remoteFolder) {
+		List<OpenCloudClient.FileInfo> entries = stages.remoteTree().get(relPath);
+		if (entries != null) {
+			return entries;
+		}
+		try {
+			return stages.lister().list(remoteFolder);
 		} catch (Exception e) {
-			throw new RuntimeException("Fehler beim rekursiven Löschen des Remote-Pfads: " + remotePath, e);
+			throw new RuntimeException("Fehler beim Listen des Remote-Ordners: " + remoteFolder, e);
+		}
+	}
+	
+	/**
+	 * Startet das Listing eines Unterverzeichnisses, das gleich durchlaufen wird, im Hintergrund.
+	 */
+	private static void prefetch(Stages stages, String relPath, String remoteFolder) {
+		if (!stages.remoteTree().containsKey(relPath)) {
+			stages.lister().prefetch(remoteFolder);
 		}
 	}
 	
+	private static String childRemotePath(String remoteFolder, String name) {
+		return remoteFolder.endsWith("/") ? remoteFolder + name : remoteFolder + "/" + name;
+	}
+	
+	/**
+	 * Das Manifest im Wurzelordner gehört nicht zum synchronisierten Inhalt.
+	 */
+	private static boolean isManifest(String relPath, String name) {
+		return relPath.isEmpty() && SyncManifest.FILE_NAME.equals(name);
+	}
+
+	private static String childRelPath(String relPath, String name) {
+		return relPath.isEmpty() ? name : relPath + "/" + name;
+	}
+	
 	private OpenCloudClient.FileInfo findRemote(List<OpenCloudClient.FileInfo> remoteEntries, String name) {
 		if (remoteEntries == null) return null;
 		for (OpenCloudClient.FileInfo fi : remoteEntries) {
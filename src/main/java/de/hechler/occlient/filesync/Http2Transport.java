@@ -0,0 +1,245 @@
+package de.hechler.occlient.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLContext;
+
+import com.github.sardine.impl.SardineException;
+
+/**
+ * Alternativer Transport für {@link OpenCloudClient} auf Basis von java.net.http.HttpClient.
+ *
+ * Statt vieler HTTP/1.1-Verbindungen aus dem Pool werden alle Requests als Streams über
+ * eine gemeinsame HTTP/2-Verbindung gemultiplext (ALPN bei https, sonst h2c-Upgrade).
+ * Spricht der Server nur HTTP/1.1, fällt der HttpClient automatisch darauf zurück.
+ *
+ * Fehlerhafte Status werden wie bei Sardine als {@link SardineException} gemeldet, damit
+ * OpenCloudClient die Status-Codes (z.B. 405/409 bei MKCOL) unabhängig vom Transport auswerten kann.
+ */
+public class Http2Transport {
+
+	private final HttpClient client;
+	private final String authorization;
+	private final Duration requestTimeout;
+	private final AdaptiveLimiter limiter;
+
+	/**
+	 * @param user     Der Benutzername für Basic-Auth
+	 * @param password Das Passwort für Basic-Auth
+	 * @param settings Timeouts und TLS-Session-Cache
+	 * @param limiter  Erhält Überlast-Meldungen (429/503 mit Retry-After)
+	 */
+	public Http2Transport(String user, String password, OpenCloudClient.HttpSettings settings, AdaptiveLimiter limiter) {
+		SSLContext sslContext;
+		try {
+			sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, null, null);
+		} catch (NoSuchAlgorithmException | KeyManagementException e) {
+			throw new RuntimeException("Kein SSLContext verfügbar", e);
+		}
+		sslContext.getClientSessionContext().setSessionCacheSize(settings.tlsSessionCacheSize());
+		sslContext.getClientSessionContext().setSessionTimeout(settings.tlsSessionTimeoutSec());
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.connectTimeout(Duration.ofMillis(settings.connectTimeoutMs()))
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.sslContext(sslContext)
+				.build();
+		// Basic-Auth immer direkt mitsenden (wie preemptive Auth bei Sardine)
+		this.authorization = "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+		this.requestTimeout = Duration.ofMillis(settings.socketTimeoutMs());
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Führt einen PROPFIND aus und parst die (ggf. komprimierte) Antwort per StAX.
+	 *
+	 * @throws SardineException wenn der Server nicht mit 207 Multi-Status antwortet
+	 */
+	public void propfind(String url, String depth, String body, BiConsumer<String, OpenCloudClient.FileInfo> consumer) throws IOException {
+		HttpRequest request = newRequest(url)
+				.header("Depth", depth)
+				.header("Content-Type", "application/xml; charset=utf-8")
+				.header("Accept-Encoding", "gzip, deflate")
+				.method("PROPFIND", BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+				.build();
+		HttpResponse<InputStream> response = send(request);
+		check(response, "PROPFIND", 207);
+		try (InputStream in = decode(response)) {
+			MultistatusParser.parse(in, consumer);
+		}
+	}
+
+	/**
+	 * Sendet einen GET mit zusätzlichen Headern. Der Status wird nicht geprüft;
+	 * der Aufrufer muss den Body in jedem Fall schließen.
+	 */
+	public HttpResponse<InputStream> get(String url, Map<String, String> headers) throws IOException {
+		HttpRequest.Builder builder = newRequest(url).GET();
+		headers.forEach(builder::header);
+		return send(builder.build());
+	}
+
+	/**
+	 * Prüft per HEAD, ob eine Ressource existiert. Wie bei Sardine bedeutet nur 404 "nicht vorhanden".
+	 *
+	 * @throws SardineException bei jedem anderen Status außerhalb von 2xx
+	 */
+	public boolean exists(String url) throws IOException {
+		HttpResponse<InputStream> response = send(newRequest(url).method("HEAD", BodyPublishers.noBody()).build());
+		response.body().close();
+		int status = response.statusCode();
+		if (status == 404) {
+			return false;
+		}
+		if (status / 100 != 2) {
+			throw new SardineException("Unexpected response for HEAD", status, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Lädt einen Inhalt per PUT hoch.
+	 *
+	 * @param content       Liefert bei jedem Aufruf einen neuen Stream mit dem Inhalt
+	 * @param contentLength Länge des Inhalts oder -1, wenn unbekannt (wird dann gestreamt)
+	 * @param headers       Zusätzliche Header (z.B. X-OC-Mtime)
+	 * @return die ETag der hochgeladenen Version (OC-ETag, sonst ETag) oder null
+	 */
+	public String put(String url, ContentSupplier content, long contentLength, Map<String, String> headers) throws IOException {
+		BodyPublisher streamPublisher = BodyPublishers.ofInputStream(() -> {
+			try {
+				return content.open();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		BodyPublisher publisher = contentLength >= 0 ? BodyPublishers.fromPublisher(streamPublisher, contentLength) : streamPublisher;
+		HttpRequest.Builder builder = newRequest(url)
+				.header("Content-Type", "application/octet-stream")
+				.PUT(publisher);
+		headers.forEach(builder::header);
+		try {
+			HttpResponse<InputStream> response = send(builder.build());
+			check(response, "PUT", 200, 201, 204);
+			response.body().close();
+			return response.headers().firstValue("OC-ETag").or(() -> response.headers().firstValue("ETag")).orElse(null);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Erstellt ein Verzeichnis per MKCOL.
+	 */
+	public void mkcol(String url) throws IOException {
+		HttpResponse<InputStream> response = send(newRequest(url).method("MKCOL", BodyPublishers.noBody()).build());
+		check(response, "MKCOL", 201);
+		response.body().close();
+	}
+
+	/**
+	 * Löscht eine Ressource (Verzeichnisse rekursiv).
+	 *
+	 * @throws SardineException mit Status 207, wenn der Server einzelne Einträge nicht löschen konnte
+	 */
+	public void delete(String url) throws IOException {
+		HttpResponse<InputStream> response = send(newRequest(url).DELETE().build());
+		check(response, "DELETE", 200, 204, 207);
+		try (InputStream in = decode(response)) {
+			if (response.statusCode() == 207 && !MultistatusParser.allSucceeded(in)) {
+				throw new SardineException("Unexpected response for DELETE", 207, "Multi-Status mit fehlgeschlagenen Einträgen");
+			}
+		}
+	}
+
+	/**
+	 * Verschiebt eine Ressource; ein vorhandenes Ziel wird überschrieben.
+	 */
+	public void move(String sourceUrl, String destUrl) throws IOException {
+		HttpRequest request = newRequest(sourceUrl)
+				.header("Destination", destUrl)
+				.header("Overwrite", "T")
+				.method("MOVE", BodyPublishers.noBody())
+				.build();
+		HttpResponse<InputStream> response = send(request);
+		check(response, "MOVE", 201, 204);
+		response.body().close();
+	}
+
+	/**
+	 * Schließt den HttpClient und seine Verbindungen.
+	 */
+	public void close() {
+		client.close();
+	}
+
+	/**
+	 * Liefert einen (neuen) Stream mit dem hochzuladenden Inhalt.
+	 */
+	@FunctionalInterface
+	public interface ContentSupplier {
+		InputStream open() throws IOException;
+	}
+
+	private HttpRequest.Builder newRequest(String url) {
+		return HttpRequest.newBuilder(URI.create(url))
+				.timeout(requestTimeout)
+				.header("Authorization", authorization)
+				.header("User-Agent", "opencloud-sync");
+	}
+
+	private HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+		try {
+			HttpResponse<InputStream> response = client.send(request, BodyHandlers.ofInputStream());
+			if (AdaptiveLimiter.isOverloadStatus(response.statusCode())) {
+				limiter.onOverload(AdaptiveLimiter.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+			}
+			return response;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Request unterbrochen: " + request.method() + " " + request.uri(), e);
+		}
+	}
+
+	private static void check(HttpResponse<InputStream> response, String method, int... expected) throws IOException {
+		int status = response.statusCode();
+		for (int ok : expected) {
+			if (status == ok) {
+				return;
+			}
+		}
+		response.body().close();
+		throw new SardineException("Unexpected response for " + method, status, null);
+	}
+
+	private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+		String encoding = response.headers().firstValue("Content-Encoding").orElse("");
+		if (encoding.equalsIgnoreCase("gzip")) {
+			return new GZIPInputStream(response.body());
+		}
+		if (encoding.equalsIgnoreCase("deflate")) {
+			return new InflaterInputStream(response.body());
+		}
+		return response.body();
+	}
+
+}
@@ -0,0 +1,64 @@
+package de.hechler.occlient.filesync;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latenzen der letzten Requests pro HTTP-Verb, für Perzentile (z.B. als Schwelle für Hedged Requests).
+ *
+ * Pro Verb werden die letzten {@link #WINDOW} Messungen in einem Ringpuffer gehalten; Perzentile
+ * werden bei Bedarf aus einer sortierten Kopie berechnet.
+ */
+public class LatencyStats {
+
+	private static final int WINDOW = 512;
+	// Weniger Messungen ergeben kein belastbares Perzentil
+	private static final int MIN_SAMPLES = 20;
+
+	private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+	/**
+	 * Speichert die Dauer eines erfolgreichen Requests.
+	 *
+	 * @param verb         HTTP-Methode
+	 * @param latencyNanos Dauer des Requests
+	 */
+	public void record(String verb, long latencyNanos) {
+		windows.computeIfAbsent(verb, v -> new Window()).add(latencyNanos);
+	}
+
+	/**
+	 * @param verb       HTTP-Methode
+	 * @param percentile Perzentil zwischen 0 und 100, z.B. 95
+	 * @return die Latenz in ns, unter der der angegebene Anteil der letzten Requests lag,
+	 *         oder -1, wenn noch zu wenige Messungen vorliegen
+	 */
+	public long percentile(String verb, double percentile) {
+		Window window = windows.get(verb);
+		return window != null ? window.percentile(percentile) : -1;
+	}
+
+	private static final class Window {
+		private final long[] samples = new long[WINDOW];
+		private int count;
+		private int next;
+
+		synchronized void add(long value) {
+			samples[next] = value;
+			next = (next + 1) % WINDOW;
+			count = Math.min(count + 1, WINDOW);
+		}
+
+		synchronized long percentile(double percentile) {
+			if (count < MIN_SAMPLES) {
+				return -1;
+			}
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+	}
+
+}
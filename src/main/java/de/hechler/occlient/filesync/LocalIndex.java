@@ -0,0 +1,644 @@
+package de.hechler.occlient.filesync;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Persistenter Index der lokalen Dateien eines Mappings: pro Datei Größe, mtime und Datei-Schlüssel
+ * (z.B. Inode) zusammen mit MD5 des Klartexts, MD5 des übertragenen (ggf. verschlüsselten) Inhalts und
+ * der ETag der Remote-Version, die zuletzt als inhaltsgleich erkannt wurde.
+ *
+ * Solange Größe, mtime und Datei-Schlüssel einer Datei zum Eintrag passen, gelten dessen Werte, so dass
+ * unveränderte Dateien ohne erneutes Lesen (und Verschlüsseln) entschieden werden. Die ETag ist damit auch
+ * der Validator heruntergeladener Dateien (bedingter GET, unveränderte Teilbäume); der {@link EtagStore}
+ * hält nur noch die ETags der Verzeichnisse. Ein Eintrag zu einem anderen Stand der Datei wird nie verwendet;
+ * ein nach einem Absturz veralteter Index kostet daher nur erneutes Hashen.
+ *
+ * Der Index liegt als nach Pfad sortierte Binärdatei im Status-Verzeichnis (upload.stateDir), eine pro
+ * lokalem Ordner, und wird memory-mapped gelesen: gesucht wird binär über die Tabelle der Satz-Positionen
+ * am Ende der Datei. Im Heap liegen nur die seit dem letzten Speichern geänderten Einträge und Löschmarken.
+ * Beim Speichern werden Datei und Änderungen in einem Durchgang zu einer neuen Generation zusammengeführt
+ * und über {@link StateFiles} crash-sicher geschrieben; sind während eines Laufs viele Änderungen
+ * aufgelaufen, geschieht das schon zwischendurch. Jede Generation bekommt einen neuen Namen, da eine
+ * gemappte Datei unter Windows nicht ersetzt werden kann; alte Generationen werden gelöscht, sobald das geht.
+ *
+ * <pre>
+ *   index-&lt;ordner&gt;-&lt;generation&gt;.bin:
+ *   "OCIX" version fingerprint-der-passphrase
+ *   pro Datei: pfad größe mtime datei-schlüssel plainMd5 encMd5 etag
+ *   position jedes satzes (long), position dieser tabelle (long), anzahl (int), "OCIE"
+ * </pre>
+ *
+ * Zeichenketten stehen als Länge (int, -1 für null) und UTF-8. Die MD5-Werte des übertragenen Inhalts
+ * gelten nur für die Passphrase, mit der sie berechnet wurden.
+ */
+public class LocalIndex {
+
+	/**
+	 * @param fileKey  Datei-Schlüssel des Dateisystems oder null, wenn es keinen hat
+	 * @param encMd5   MD5 des übertragenen Inhalts, ohne Passphrase gleich plainMd5
+	 * @param etag     ETag der Remote-Version, deren Inhalt zuletzt diesem Stand entsprach
+	 */
+	public record Entry(long size, long mtime, String fileKey, String plainMd5, String encMd5, String etag) {
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && mtime == attrs.lastModifiedTime().toMillis() && Objects.equals(fileKey, LocalIndex.fileKey(attrs));
+		}
+	}
+
+	private static final int MAGIC = 0x4f435849; // "OCIX"
+	private static final int END_MAGIC = 0x4f434945; // "OCIE"
+	private static final int VERSION = 2;
+	private static final int FOOTER_BYTES = 8 + 4 + 4;
+	// Löschmarke unter den Änderungen, verglichen per Identität
+	private static final Entry REMOVED = new Entry(-1, -1, null, null, null, null);
+	// ab so vielen Änderungen (mindestens) wird schon während des Laufs gespeichert
+	private static final int MIN_FLUSH_ENTRIES = 10_000;
+	// Reservierter Schlüssel des alten Properties-Formats; relative Pfade enthalten nie "//"
+	private static final String PASSPHRASE_KEY = "//passphrase";
+	// steht im alten Format für null
+	private static final String NONE = "-";
+
+	private final Path stateDir;
+	private final String baseName;
+	private final String passphrase;
+	private final ChecksumCache checksums;
+	private volatile Mapped mapped;
+	private long generation;
+	// geänderte Einträge seit dem letzten Speichern, sortiert wie die Datei
+	private final ConcurrentNavigableMap<String, Entry> changes = new ConcurrentSkipListMap<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicBoolean flushing = new AtomicBoolean();
+	// die Datei muss neu geschrieben werden, auch ohne Änderungen (andere Passphrase, altes Format)
+	private volatile boolean rewrite;
+
+	private LocalIndex(Path stateDir, String baseName, String passphrase, ChecksumCache checksums) {
+		this.stateDir = stateDir;
+		this.baseName = baseName;
+		this.passphrase = passphrase;
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Lädt den Index für einen lokalen Ordner; ein fehlender oder unlesbarer Index ist leer.
+	 *
+	 * @param stateDir    Das Status-Verzeichnis
+	 * @param localFolder Der lokale Ordner des Mappings
+	 * @param passphrase  Die Passphrase des Mappings oder null
+	 * @param checksums   Wird bei fehlendem oder veraltetem Eintrag befragt, bevor eine Prüfsumme berechnet wird
+	 */
+	public static LocalIndex load(String stateDir, String localFolder, String passphrase, ChecksumCache checksums) {
+		String key = toHex(ChecksumUtil.calculateMD5bytes(Paths.get(localFolder).toAbsolutePath().normalize().toString()));
+		LocalIndex index = new LocalIndex(Paths.get(stateDir), "index-" + key, passphrase, checksums);
+		index.generation = index.generations().stream().mapToLong(Long::longValue).max().orElse(0);
+		if (index.generation > 0) {
+			Path file = index.generationFile(index.generation);
+			try {
+				index.mapped = Mapped.open(file, fingerprint(passphrase));
+				// MD5 values of another passphrase do not apply
+				index.rewrite = !index.mapped.samePassphrase;
+			} catch (IOException | RuntimeException e) {
+				System.err.println("  Ignoring unreadable index " + file + ": " + e.getMessage());
+			}
+		} else {
+			index.loadProperties();
+		}
+		return index;
+	}
+
+	/**
+	 * Übernimmt einen Index im alten Properties-Format; er wird beim nächsten Speichern ersetzt.
+	 */
+	private void loadProperties() {
+		Path file = legacyFile();
+		if (!Files.isRegularFile(file)) {
+			return;
+		}
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			props.load(in);
+			boolean samePassphrase = fingerprint(passphrase).equals(props.getProperty(PASSPHRASE_KEY));
+			for (String path : props.stringPropertyNames()) {
+				if (path.startsWith("//")) {
+					continue;
+				}
+				// size|mtime|fileKey|plainMd5|encMd5|etag, die ETag zuletzt, da sie beliebige Zeichen enthalten kann
+				String[] v = props.getProperty(path).split("\\|", 6);
+				changes.put(path, new Entry(Long.parseLong(v[0]), Long.parseLong(v[1]), value(v[2]), value(v[3]),
+						samePassphrase ? value(v[4]) : null, value(v[5])));
+			}
+			rewrite = true;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Ignoring unreadable index " + file + ": " + e.getMessage());
+			changes.clear();
+		}
+	}
+
+	/**
+	 * @return MD5 des Klartexts, aus dem Index oder neu berechnet; null, wenn die Datei nicht lesbar ist
+	 */
+	public String getPlainMd5(String relPath, Path file) {
+		return get(relPath, file, Entry::plainMd5, () -> checksums.get(file, "md5", null, () -> ChecksumUtil.calculateMD5(file)), (e, md5) -> new Entry(e.size(), e.mtime(), e.fileKey(), md5, passphrase == null ? md5 : e.encMd5(), e.etag()));
+	}
+
+	/**
+	 * @return MD5 des übertragenen Inhalts (wie {@link ChecksumUtil#calculateMD5enc}), aus dem Index oder neu berechnet
+	 */
+	public String getEncMd5(String relPath, Path file) {
+		if (passphrase == null) {
+			return getPlainMd5(relPath, file);
+		}
+		return get(relPath, file, Entry::encMd5, () -> checksums.get(file, "md5-enc", passphrase, () -> ChecksumUtil.calculateMD5enc(file, passphrase)), (e, md5) -> new Entry(e.size(), e.mtime(), e.fileKey(), e.plainMd5(), md5, e.etag()));
+	}
+
+	/**
+	 * @return die ETag der Remote-Version, deren Inhalt dem aktuellen Stand der Datei entsprach, sonst null
+	 */
+	public String getEtag(String relPath, Path file) {
+		try {
+			Entry e = lookup(relPath);
+			return e != null && e.matches(Files.readAttributes(file, BasicFileAttributes.class)) ? e.etag() : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Merkt sich, dass der aktuelle Stand der Datei der Remote-Version mit der ETag entspricht.
+	 *
+	 * @param etag die ETag oder null, wenn der Stand keiner Remote-Version mehr sicher entspricht
+	 */
+	public void putEtag(String relPath, Path file, String etag) {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			Entry e = current(relPath, attrs);
+			if (!Objects.equals(e.etag(), etag)) {
+				put(relPath, new Entry(e.size(), e.mtime(), e.fileKey(), e.plainMd5(), e.encMd5(), etag));
+			}
+		} catch (IOException e) {
+			// not recorded, the file is compared again next run
+		}
+	}
+
+	/**
+	 * Setzt die mtime einer Datei; ein passender Eintrag bleibt für den neuen Stand gültig.
+	 */
+	public void setLastModifiedTime(String relPath, Path file, long mtime) throws IOException {
+		Entry e = lookup(relPath);
+		boolean valid = e != null && e.matches(Files.readAttributes(file, BasicFileAttributes.class));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(mtime));
+		if (valid) {
+			put(relPath, new Entry(e.size(), Files.getLastModifiedTime(file).toMillis(), e.fileKey(), e.plainMd5(), e.encMd5(), e.etag()));
+		}
+	}
+
+	/**
+	 * @return Anzahl der Dateien unterhalb des Verzeichnisses ("" für die Wurzel), für die eine ETag gespeichert ist
+	 */
+	public int countEtagsUnder(String relPath) {
+		int[] count = { 0 };
+		forEachUnder(relPath, (path, e) -> {
+			if (e.etag() != null) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Entfernt die Einträge einer Datei oder eines Verzeichnisses samt Inhalt.
+	 */
+	public void remove(String relPath) {
+		if (lookup(relPath) != null) {
+			put(relPath, REMOVED);
+		}
+		List<String> below = new ArrayList<>();
+		forEachUnder(relPath, (path, e) -> below.add(path));
+		below.forEach(path -> put(path, REMOVED));
+	}
+
+	/**
+	 * Entfernt die Einträge aller direkten Kinder des Verzeichnisses (samt Inhalt), die nicht mehr in
+	 * names enthalten sind, z.B. gelöschte oder inzwischen ignorierte Dateien.
+	 */
+	public void retainChildren(String relPath, Set<String> names) {
+		int prefix = relPath.isEmpty() ? 0 : relPath.length() + 1;
+		List<String> gone = new ArrayList<>();
+		forEachUnder(relPath, (path, e) -> {
+			int idx = path.indexOf('/', prefix);
+			if (!names.contains(idx < 0 ? path.substring(prefix) : path.substring(prefix, idx))) {
+				gone.add(path);
+			}
+		});
+		gone.forEach(path -> put(path, REMOVED));
+	}
+
+	/**
+	 * Schreibt den Index als neue Generation, falls er sich geändert hat. Änderungen, die währenddessen
+	 * aus anderen Threads eintreffen, bleiben für das nächste Speichern erhalten.
+	 */
+	public synchronized void save() {
+		if (changes.isEmpty() && !rewrite) {
+			return;
+		}
+		Mapped from = mapped;
+		long next = generation + 1;
+		Path file = generationFile(next);
+		// die übernommenen Änderungen, nach dem Umschalten werden genau diese entfernt
+		List<Map.Entry<String, Entry>> merged = new ArrayList<>();
+		try {
+			StateFiles.replace(file, out -> {
+				DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(MAGIC);
+				data.writeInt(VERSION);
+				writeString(data, fingerprint(passphrase));
+				long[][] positions = { new long[(from != null ? from.count : 0) + 1024] };
+				int[] count = { 0 };
+				IOException[] error = { null };
+				merge(from, changes, "", null, merged, (path, e) -> {
+					if (error[0] != null) {
+						return;
+					}
+					try {
+						if (count[0] == positions[0].length) {
+							positions[0] = Arrays.copyOf(positions[0], count[0] * 2);
+						}
+						positions[0][count[0]++] = data.size();
+						writeString(data, path);
+						data.writeLong(e.size());
+						data.writeLong(e.mtime());
+						writeString(data, e.fileKey());
+						writeString(data, e.plainMd5());
+						writeString(data, e.encMd5());
+						writeString(data, e.etag());
+					} catch (IOException ex) {
+						error[0] = ex;
+					}
+				});
+				if (error[0] != null) {
+					throw error[0];
+				}
+				long table = data.size();
+				for (int i = 0; i < count[0]; i++) {
+					data.writeLong(positions[0][i]);
+				}
+				data.writeLong(table);
+				data.writeInt(count[0]);
+				data.writeInt(END_MAGIC);
+				data.flush();
+				if (data.size() < 0) {
+					// DataOutputStream counts in an int, the index is mapped as one buffer
+					throw new IOException("Index größer als 2 GB");
+				}
+			});
+			mapped = Mapped.open(file, fingerprint(passphrase));
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Fehler beim Speichern des Index: " + file + " - " + e.getMessage());
+			// not retried on every change, the index is saved again at the end of the run
+			pending.set(0);
+			return;
+		}
+		generation = next;
+		rewrite = false;
+		for (Map.Entry<String, Entry> change : merged) {
+			changes.remove(change.getKey(), change.getValue());
+		}
+		pending.set(changes.size());
+		deleteOldGenerations();
+	}
+
+	/**
+	 * Speichert schon während des Laufs, wenn die Änderungen im Heap im Verhältnis zum Index groß werden.
+	 */
+	private void flushIfLarge() {
+		Mapped m = mapped;
+		int threshold = Math.max(MIN_FLUSH_ENTRIES, m != null ? m.count / 2 : 0);
+		if (pending.get() >= threshold && flushing.compareAndSet(false, true)) {
+			try {
+				save();
+			} finally {
+				flushing.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Liefert einen Wert aus dem Eintrag, wenn dieser zum aktuellen Stand der Datei passt, sonst wird er
+	 * berechnet und gespeichert. Die Attribute werden vor dem Berechnen gelesen, eine währenddessen
+	 * geänderte Datei passt danach nicht mehr zum Eintrag.
+	 */
+	private String get(String relPath, Path file, Function<Entry, String> field, Supplier<String> compute,
+			BiFunction<Entry, String, Entry> with) {
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return compute.get();
+		}
+		Entry e = current(relPath, attrs);
+		String value = field.apply(e);
+		if (value != null) {
+			return value;
+		}
+		value = compute.get();
+		if (value != null) {
+			put(relPath, with.apply(current(relPath, attrs), value));
+		}
+		return value;
+	}
+
+	/**
+	 * @return der Eintrag, wenn er zum Stand der Datei passt, sonst ein leerer Eintrag für diesen Stand
+	 */
+	private Entry current(String relPath, BasicFileAttributes attrs) {
+		Entry e = lookup(relPath);
+		if (e != null && e.matches(attrs)) {
+			return e;
+		}
+		return new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKey(attrs), null, null, null);
+	}
+
+	private Entry lookup(String relPath) {
+		Entry e = changes.get(relPath);
+		if (e != null) {
+			return e == REMOVED ? null : e;
+		}
+		// save() switches the mapping before it drops the merged changes
+		Mapped m = mapped;
+		return m != null ? m.get(relPath) : null;
+	}
+
+	private void put(String relPath, Entry e) {
+		Entry old = lookup(relPath);
+		if (e == REMOVED ? old == null : e.equals(old)) {
+			return;
+		}
+		if (changes.put(relPath, e) == null) {
+			pending.incrementAndGet();
+		}
+		flushIfLarge();
+	}
+
+	/**
+	 * Durchläuft die Einträge unterhalb des Verzeichnisses ("" für alle) in sortierter Reihenfolge.
+	 */
+	private void forEachUnder(String relPath, BiConsumer<String, Entry> action) {
+		if (relPath.isEmpty()) {
+			merge(mapped, changes, "", null, null, action);
+		} else {
+			// '0' folgt direkt auf '/'
+			merge(mapped, changes, relPath + "/", relPath + "0", null, action);
+		}
+	}
+
+	/**
+	 * Führt die Einträge der Datei und die Änderungen im Bereich [from, to) zusammen; Änderungen ersetzen
+	 * gleichnamige Einträge der Datei, Löschmarken werden übersprungen.
+	 *
+	 * @param upper  Ende des Bereichs (exklusiv) oder null für alle folgenden
+	 * @param merged erhält jede übernommene Änderung (auch Löschmarken), kann null sein
+	 */
+	private static void merge(Mapped from, ConcurrentNavigableMap<String, Entry> changes, String lower, String upper,
+			List<Map.Entry<String, Entry>> merged, BiConsumer<String, Entry> action) {
+		Map<String, Entry> delta = upper == null ? changes.tailMap(lower, true) : changes.subMap(lower, upper);
+		Iterator<Map.Entry<String, Entry>> d = delta.entrySet().iterator();
+		Map.Entry<String, Entry> change = nextChange(d);
+		int i = from != null ? from.lowerBound(lower) : 0;
+		int end = from == null ? 0 : upper == null ? from.count : from.lowerBound(upper);
+		String path = i < end ? from.path(i) : null;
+		while (path != null || change != null) {
+			int cmp = path == null ? 1 : change == null ? -1 : path.compareTo(change.getKey());
+			if (cmp < 0) {
+				action.accept(path, from.entry(i));
+			} else {
+				if (merged != null) {
+					merged.add(change);
+				}
+				if (change.getValue() != REMOVED) {
+					action.accept(change.getKey(), change.getValue());
+				}
+				change = nextChange(d);
+			}
+			if (cmp <= 0) {
+				i++;
+				path = i < end ? from.path(i) : null;
+			}
+		}
+	}
+
+	private static Map.Entry<String, Entry> nextChange(Iterator<Map.Entry<String, Entry>> d) {
+		// a copy, the map entry itself may reflect later puts
+		if (!d.hasNext()) {
+			return null;
+		}
+		Map.Entry<String, Entry> e = d.next();
+		return Map.entry(e.getKey(), e.getValue());
+	}
+
+	private Path generationFile(long gen) {
+		return stateDir.resolve(baseName + "-" + gen + ".bin");
+	}
+
+	private Path legacyFile() {
+		return stateDir.resolve(baseName + ".properties");
+	}
+
+	/**
+	 * @return die Generationen dieses Index im Status-Verzeichnis
+	 */
+	private List<Long> generations() {
+		List<Long> gens = new ArrayList<>();
+		if (!Files.isDirectory(stateDir)) {
+			return gens;
+		}
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(stateDir, baseName + "-*.bin")) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				try {
+					gens.add(Long.parseLong(name.substring(baseName.length() + 1, name.length() - ".bin".length())));
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Auflisten des Status-Verzeichnisses: " + stateDir + " - " + e.getMessage());
+		}
+		return gens;
+	}
+
+	private void deleteOldGenerations() {
+		for (long gen : generations()) {
+			if (gen != generation) {
+				try {
+					Files.deleteIfExists(generationFile(gen));
+				} catch (IOException e) {
+					// still mapped (Windows), removed after a later save
+				}
+			}
+		}
+		try {
+			Files.deleteIfExists(legacyFile());
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Löschen des alten Index: " + legacyFile() + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Eine gespeicherte Generation, read-only gemappt. Gelesen wird nur mit absoluten Positionen, so dass
+	 * beliebig viele Threads gleichzeitig suchen können.
+	 */
+	private static final class Mapped {
+
+		final ByteBuffer buf;
+		final int count;
+		final int table;
+		final boolean samePassphrase;
+
+		private Mapped(ByteBuffer buf, int count, int table, boolean samePassphrase) {
+			this.buf = buf;
+			this.count = count;
+			this.table = table;
+			this.samePassphrase = samePassphrase;
+		}
+
+		static Mapped open(Path file, String fingerprint) throws IOException {
+			ByteBuffer buf;
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = ch.size();
+				if (size > Integer.MAX_VALUE || size < 12 + FOOTER_BYTES) {
+					throw new IOException("Ungültige Größe " + size);
+				}
+				buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			int end = buf.capacity();
+			if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION || buf.getInt(end - 4) != END_MAGIC) {
+				throw new IOException("Unbekanntes Format");
+			}
+			long table = buf.getLong(end - FOOTER_BYTES);
+			int count = buf.getInt(end - 8);
+			if (count < 0 || table < 0 || table + 8L * count != end - FOOTER_BYTES) {
+				throw new IOException("Beschädigte Satz-Tabelle");
+			}
+			return new Mapped(buf, count, (int) table, fingerprint.equals(string(buf, 8)));
+		}
+
+		Entry get(String relPath) {
+			int i = lowerBound(relPath);
+			return i < count && path(i).equals(relPath) ? entry(i) : null;
+		}
+
+		/**
+		 * @return der erste Satz, dessen Pfad nicht kleiner als key ist
+		 */
+		int lowerBound(String key) {
+			int lo = 0;
+			int hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (path(mid).compareTo(key) < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		String path(int i) {
+			return string(buf, position(i));
+		}
+
+		Entry entry(int i) {
+			int pos = position(i);
+			pos += length(buf, pos);
+			long size = buf.getLong(pos);
+			long mtime = buf.getLong(pos + 8);
+			pos += 16;
+			String fileKey = string(buf, pos);
+			pos += length(buf, pos);
+			String plainMd5 = string(buf, pos);
+			pos += length(buf, pos);
+			String encMd5 = string(buf, pos);
+			pos += length(buf, pos);
+			String etag = string(buf, pos);
+			return new Entry(size, mtime, fileKey, plainMd5, samePassphrase ? encMd5 : null, etag);
+		}
+
+		private int position(int i) {
+			return (int) buf.getLong(table + 8 * i);
+		}
+
+		private static int length(ByteBuffer buf, int pos) {
+			return 4 + Math.max(0, buf.getInt(pos));
+		}
+
+		private static String string(ByteBuffer buf, int pos) {
+			int len = buf.getInt(pos);
+			if (len < 0) {
+				return null;
+			}
+			byte[] bytes = new byte[len];
+			buf.get(pos + 4, bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		if (value == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String fileKey(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return key != null ? key.toString() : null;
+	}
+
+	private static String fingerprint(String passphrase) {
+		return passphrase != null ? toHex(ChecksumUtil.calculateMD5bytes("index:" + passphrase)) : NONE;
+	}
+
+	private static String value(String field) {
+		return NONE.equals(field) ? null : field;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+}
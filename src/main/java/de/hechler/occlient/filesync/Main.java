@@ -1,11 +1,19 @@
 package de.hechler.occlient.filesync;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Main dispatcher class that delegates to the appropriate sync main class
  * based on the first argument.
  *
- * Usage: java -jar oc-sync.jar <mode> [config-yaml]
+ * Usage: java -jar oc-sync.jar <mode> [--dry-run] [--plan-out <file>] [--plan-in <file>] [config-yaml]
  *   mode: upload | download | dbf-upload | dbf-download
+ *
+ * With --dry-run or --plan-out the sync is only planned (see {@link SyncPlan}) and printed or written
+ * to the file; --plan-in executes a written plan instead of comparing again.
  */
 public class Main {
 
@@ -15,21 +23,50 @@ public class Main {
         }
 
         String mode = args[0];
-        String[] remainingArgs = new String[args.length - 1];
-        System.arraycopy(args, 1, remainingArgs, 0, remainingArgs.length);
+        boolean dryRun = false;
+        Path planOut = null;
+        Path planIn = null;
+        List<String> remaining = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+                case "--plan-out":
+                case "--plan-in":
+                    if (i + 1 >= args.length) {
+                        System.err.println("Missing file for " + args[i]);
+                        printUsageAndExit();
+                    }
+                    if (args[i].equals("--plan-out")) {
+                        planOut = Paths.get(args[++i]);
+                    } else {
+                        planIn = Paths.get(args[++i]);
+                    }
+                    break;
+                default:
+                    remaining.add(args[i]);
+            }
+        }
+        if (planOut != null && planIn != null) {
+            System.err.println("--plan-out and --plan-in cannot be combined");
+            printUsageAndExit();
+        }
+        String[] remainingArgs = remaining.toArray(new String[0]);
+        SyncPlan.Options options = new SyncPlan.Options(dryRun, planOut, planIn);
 
         switch (mode) {
             case "upload":
-                UploaderMain.main(remainingArgs);
+                UploaderMain.main(remainingArgs, options);
                 break;
             case "download":
-                DownloaderMain.main(remainingArgs);
+                DownloaderMain.main(remainingArgs, options);
                 break;
             case "dbf-upload":
-                DBFUploaderMain.main(remainingArgs);
+                DBFUploaderMain.main(remainingArgs, options);
                 break;
             case "dbf-download":
-                DBFDownloaderMain.main(remainingArgs);
+                DBFDownloaderMain.main(remainingArgs, options);
                 break;
             default:
                 System.err.println("Unknown mode: " + mode);
@@ -38,12 +75,16 @@ public class Main {
     }
 
     private static void printUsageAndExit() {
-        System.err.println("Usage: java -jar oc-sync.jar <mode> [config-yaml]");
+        System.err.println("Usage: java -jar oc-sync.jar <mode> [--dry-run] [--plan-out <file>] [--plan-in <file>] [config-yaml]");
         System.err.println("  mode:");
         System.err.println("    upload       - Upload local files to OpenCloud");
         System.err.println("    download     - Download files from OpenCloud to local");
         System.err.println("    dbf-upload   - Upload DBF files to OpenCloud (with encryption support)");
         System.err.println("    dbf-download - Download DBF files from OpenCloud (with decryption support)");
+        System.err.println("  options:");
+        System.err.println("    --dry-run         - Only plan the sync and print the planned operations");
+        System.err.println("    --plan-out <file> - Only plan the sync and write the plan to the file");
+        System.err.println("    --plan-in <file>  - Execute the plan from the file (with --dry-run: only print it)");
         System.exit(1);
     }
 }
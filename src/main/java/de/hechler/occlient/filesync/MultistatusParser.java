@@ -0,0 +1,218 @@
+package de.hechler.occlient.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming-Parser (StAX) für WebDAV-Multistatus-Antworten.
+ *
+ * Im Gegensatz zu Sardine (JAXB) wird die Antwort nicht komplett im Speicher aufgebaut,
+ * sondern jeder response-Eintrag wird direkt nach dem Lesen als FileInfo an einen
+ * Consumer übergeben. Damit bleibt der Speicherbedarf auch bei Verzeichnissen mit
+ * 100.000+ Einträgen konstant.
+ */
+public final class MultistatusParser {
+
+	private static final String DAV_NS = "DAV:";
+	private static final Pattern MD5_PATTERN = Pattern.compile("MD5:([a-fA-F0-9]{32})");
+	private static final XMLInputFactory XML_INPUT_FACTORY = createInputFactory();
+
+	private MultistatusParser() {}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	/**
+	 * Liest eine Multistatus-Antwort und übergibt jeden Eintrag an den Consumer.
+	 *
+	 * @param in       Der (ggf. bereits dekomprimierte) Antwort-Body
+	 * @param consumer Erhält den dekodierten href-Pfad (ohne abschließenden Slash) und das FileInfo
+	 * @throws IOException bei I/O- oder XML-Fehlern
+	 */
+	public static void parse(InputStream in, BiConsumer<String, OpenCloudClient.FileInfo> consumer) throws IOException {
+		XMLStreamReader reader = null;
+		try {
+			reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			Entry entry = null;
+			boolean okPropstat = false;
+			Entry propstat = null;
+			StringBuilder checksums = null;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String ns = reader.getNamespaceURI();
+					String local = reader.getLocalName();
+					if (DAV_NS.equals(ns) && "response".equals(local)) {
+						entry = new Entry();
+					} else if (entry == null) {
+						continue;
+					} else if (DAV_NS.equals(ns) && "href".equals(local) && propstat == null) {
+						entry.href = reader.getElementText().trim();
+					} else if (DAV_NS.equals(ns) && "propstat".equals(local)) {
+						propstat = new Entry();
+						okPropstat = false;
+					} else if (propstat == null) {
+						continue;
+					} else if (DAV_NS.equals(ns) && "status".equals(local)) {
+						okPropstat = reader.getElementText().contains(" 200");
+					} else if (DAV_NS.equals(ns) && "collection".equals(local)) {
+						propstat.isDirectory = true;
+					} else if (DAV_NS.equals(ns) && "getcontentlength".equals(local)) {
+						propstat.contentLength = parseLong(reader.getElementText());
+					} else if (DAV_NS.equals(ns) && "getlastmodified".equals(local)) {
+						propstat.lastModified = parseDate(reader.getElementText());
+					} else if (DAV_NS.equals(ns) && "getetag".equals(local)) {
+						propstat.etag = reader.getElementText().trim();
+					} else if ("checksums".equals(local)) {
+						// Text kann direkt oder in oc:checksum-Kindelementen stehen
+						checksums = new StringBuilder();
+					}
+				} else if (event == XMLStreamConstants.CHARACTERS) {
+					if (checksums != null) {
+						checksums.append(reader.getText()).append(' ');
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String ns = reader.getNamespaceURI();
+					String local = reader.getLocalName();
+					if ("checksums".equals(local) && checksums != null) {
+						Matcher m = MD5_PATTERN.matcher(checksums);
+						if (m.find() && propstat != null) {
+							propstat.md5 = m.group(1).toLowerCase();
+						}
+						checksums = null;
+					}
+					if (!DAV_NS.equals(ns) || entry == null) {
+						continue;
+					}
+					if ("propstat".equals(local)) {
+						if (okPropstat && propstat != null) {
+							entry.merge(propstat);
+						}
+						propstat = null;
+					} else if ("response".equals(local)) {
+						emit(entry, consumer);
+						entry = null;
+					}
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Fehler beim Parsen der Multistatus-Antwort: " + e.getMessage(), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prüft eine Multistatus-Antwort auf einen DELETE oder MOVE: sind alle Einträge mit einem Status
+	 * 2xx (oder 404, bereits weg) abgeschlossen?
+	 *
+	 * @param in Der (ggf. bereits dekomprimierte) Antwort-Body
+	 * @return false, sobald ein Eintrag mit einem anderen Status gescheitert ist
+	 * @throws IOException bei I/O- oder XML-Fehlern
+	 */
+	public static boolean allSucceeded(InputStream in) throws IOException {
+		XMLStreamReader reader = null;
+		try {
+			reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && DAV_NS.equals(reader.getNamespaceURI())
+						&& "status".equals(reader.getLocalName())) {
+					// "HTTP/1.1 423 Locked"
+					String[] statusLine = reader.getElementText().trim().split("\\s+");
+					int status = statusLine.length > 1 ? (int) parseLong(statusLine[1]) : -1;
+					if (status / 100 != 2 && status != 404) {
+						return false;
+					}
+				}
+			}
+			return true;
+		} catch (XMLStreamException e) {
+			throw new IOException("Fehler beim Parsen der Multistatus-Antwort: " + e.getMessage(), e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static void emit(Entry entry, BiConsumer<String, OpenCloudClient.FileInfo> consumer) {
+		if (entry.href == null) {
+			return;
+		}
+		String path;
+		try {
+			path = new URI(entry.href).getPath();
+		} catch (URISyntaxException e) {
+			System.err.println("  Ignoriere Ressource mit ungültiger URI: " + entry.href);
+			return;
+		}
+		if (path.endsWith("/") && path.length() > 1) {
+			path = path.substring(0, path.length() - 1);
+		}
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		consumer.accept(path, new OpenCloudClient.FileInfo(name, entry.isDirectory, entry.contentLength, entry.lastModified, entry.md5, entry.etag));
+	}
+
+	private static long parseLong(String text) {
+		try {
+			return Long.parseLong(text.trim());
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+
+	private static Date parseDate(String text) {
+		try {
+			return Date.from(ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant());
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	private static final class Entry {
+		String href;
+		boolean isDirectory;
+		long contentLength = -1L;
+		Date lastModified;
+		String md5;
+		String etag;
+
+		void merge(Entry other) {
+			isDirectory |= other.isDirectory;
+			if (other.contentLength >= 0) contentLength = other.contentLength;
+			if (other.lastModified != null) lastModified = other.lastModified;
+			if (other.md5 != null) md5 = other.md5;
+			if (other.etag != null) etag = other.etag;
+		}
+	}
+
+}
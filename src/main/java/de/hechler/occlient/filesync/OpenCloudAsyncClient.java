@@ -0,0 +1,126 @@
+package de.hechler.occlient.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Asynchrone Variante von {@link OpenCloudClient}.
+ *
+ * Jeder Aufruf läuft auf einem eigenen virtuellen Thread und liefert ein CompletableFuture.
+ * Dadurch können hunderte Requests gleichzeitig anstehen, ohne entsprechend viele Plattform-Threads
+ * zu belegen. Wie viele davon tatsächlich gleichzeitig auf dem Netz sind, begrenzt ein Semaphor
+ * (typischerweise die Größe des Connection-Pools); weitere Aufrufe warten, statt beim Holen einer
+ * Verbindung in ein Timeout zu laufen.
+ */
+public class OpenCloudAsyncClient implements AutoCloseable {
+
+	private final OpenCloudClient client;
+	private final ExecutorService executor;
+	private final Semaphore inFlight;
+
+	/**
+	 * @param client      Der (thread-safe) synchrone Client, über den die Requests laufen
+	 * @param maxInFlight maximale Anzahl gleichzeitig laufender Requests
+	 */
+	public OpenCloudAsyncClient(OpenCloudClient client, int maxInFlight) {
+		this.client = client;
+		this.executor = Executors.newVirtualThreadPerTaskExecutor();
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * @see OpenCloudClient#listFiles(String)
+	 */
+	public CompletableFuture<List<OpenCloudClient.FileInfo>> listFiles(String path) {
+		return submit(() -> client.listFiles(path));
+	}
+
+	/**
+	 * @see OpenCloudClient#listTree(String)
+	 */
+	public CompletableFuture<Map<String, List<OpenCloudClient.FileInfo>>> listTree(String path) {
+		return submit(() -> client.listTree(path));
+	}
+
+	/**
+	 * Lädt eine Datei herunter und schreibt sie in die lokale Zieldatei.
+	 *
+	 * @param path   Der Pfad zur Datei auf dem Server
+	 * @param target Die lokale Zieldatei (wird überschrieben)
+	 */
+	public CompletableFuture<Void> downloadFile(String path, Path target) {
+		return submit(() -> {
+			try (InputStream in = client.downloadFile(path)) {
+				Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new RuntimeException("Fehler beim Herunterladen der Datei: " + path, e);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * @return die ETag der hochgeladenen Version oder null, wenn der Server keine meldet
+	 * @see OpenCloudClient#uploadFile(String, Path, String, long)
+	 */
+	public CompletableFuture<String> uploadFile(String path, Path file, String encryptPassphrase, long lastModified) {
+		return submit(() -> client.uploadFile(path, file, encryptPassphrase, lastModified));
+	}
+
+	/**
+	 * @see OpenCloudClient#delete(String)
+	 */
+	public CompletableFuture<Void> delete(String path) {
+		return submit(() -> {
+			client.delete(path);
+			return null;
+		});
+	}
+
+	/**
+	 * @see OpenCloudClient#move(String, String)
+	 */
+	public CompletableFuture<Void> move(String sourcePath, String destPath) {
+		return submit(() -> {
+			client.move(sourcePath, destPath);
+			return null;
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(Supplier<T> call) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(e);
+			}
+			try {
+				return call.get();
+			} finally {
+				inFlight.release();
+			}
+		}, executor);
+	}
+
+	/**
+	 * Beendet den Executor; laufende Requests werden noch abgeschlossen.
+	 * Der zugrunde liegende OpenCloudClient wird nicht geschlossen.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+}
@@ -1,25 +1,184 @@
 package de.hechler.occlient.filesync;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import javax.net.ssl.SSLContext;
+
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 
 import com.github.sardine.DavResource;
-import com.github.sardine.Sardine;
-import com.github.sardine.SardineFactory;
+import com.github.sardine.impl.SardineException;
 import com.github.sardine.impl.SardineImpl;
+import com.github.sardine.impl.SardineRedirectStrategy;
+import com.github.sardine.impl.methods.HttpPropFind;
+import com.github.sardine.impl.methods.HttpSearch;
 
+/**
+ * WebDAV-Client für OpenCloud auf Basis von Sardine.
+ * 
+ * Die Klasse ist thread-safe: alle Requests laufen über einen gemeinsamen
+ * PoolingHttpClientConnectionManager, so dass mehrere Worker-Threads eine Instanz
+ * teilen können und offene (TLS-)Verbindungen wiederverwendet werden.
+ * Pool-Größe, Timeouts und Keep-Alive werden über {@link HttpSettings} konfiguriert.
+ * Mit {@link HttpSettings#http2()} laufen PROPFIND/GET/PUT/MKCOL/MOVE/DELETE stattdessen
+ * gemultiplext über HTTP/2 ({@link Http2Transport}).
+ * Die Anzahl gleichzeitiger Requests regelt ein {@link AdaptiveLimiter}; idempotente Requests
+ * werden bei Überlast (429/503, Timeout) nach der Wartezeit des Servers wiederholt.
+ */
 public class OpenCloudClient {
 
-	private Sardine sardine;
+	/**
+	 * Einstellungen für den HTTP-Connection-Pool.
+	 * 
+	 * @param maxConnections         maximale Anzahl Verbindungen insgesamt
+	 * @param maxConnectionsPerRoute maximale Anzahl Verbindungen pro Server
+	 * @param connectTimeoutMs       Timeout für den Verbindungsaufbau in ms
+	 * @param socketTimeoutMs        Timeout beim Lesen vom Socket in ms
+	 * @param keepAliveMs            Keep-Alive für unbenutzte Verbindungen in ms, falls der Server keinen Wert vorgibt
+	 * @param tlsSessionCacheSize    Anzahl gecachter TLS-Sessions (für Session-Resumption)
+	 * @param tlsSessionTimeoutSec   Gültigkeit gecachter TLS-Sessions in Sekunden
+	 * @param http2                  true: Datei- und Listing-Requests über java.net.http mit HTTP/2 statt über Sardine (HTTP/1.1)
+	 * @param hedgePercentile        Perzentil der bisherigen Latenz (z.B. 95), nach dem listFiles/exists einen zweiten,
+	 *                               gleichen Request senden; 0 schaltet Hedging aus
+	 */
+	public record HttpSettings(int maxConnections, int maxConnectionsPerRoute, int connectTimeoutMs, int socketTimeoutMs,
+			long keepAliveMs, int tlsSessionCacheSize, int tlsSessionTimeoutSec, boolean http2, int hedgePercentile) {
+		public static final HttpSettings DEFAULTS = new HttpSettings(64, 16, 30_000, 300_000, 60_000, 100, 3600, false, 0);
+	}
+
+	/**
+	 * Einstellungen für die Übertragung großer Dateien: chunked Uploads (TUS) und segmentierte Downloads.
+	 * 
+	 * @param thresholdBytes          ab dieser Größe wird chunked hochgeladen, kleinere Dateien per einfachem PUT
+	 * @param chunkSize               Größe eines Chunks in Bytes (so viel wird pro paralleler Übertragung gepuffert)
+	 * @param parallelUploads         Anzahl parallel übertragener Teile, falls der Server TUS-concatenation unterstützt
+	 * @param stateDir                Verzeichnis für den Status unterbrochener Uploads
+	 * @param segmentThresholdBytes   ab dieser Größe wird in parallelen Byte-Ranges heruntergeladen
+	 * @param parallelDownloads       Anzahl parallel geladener Byte-Ranges einer Datei
+	 * @param bulkMaxFiles            maximale Anzahl Dateien pro Bulk-Upload-Request, 0 oder 1 schaltet Bulk-Uploads aus
+	 * @param bulkMaxBytes            maximale Größe eines Bulk-Upload-Requests
+	 * @param bulkFileMaxBytes        Dateien bis zu dieser Größe werden per Bulk-Upload übertragen
+	 */
+	public record TransferSettings(long thresholdBytes, int chunkSize, int parallelUploads, String stateDir,
+			long segmentThresholdBytes, int parallelDownloads, int bulkMaxFiles, long bulkMaxBytes, long bulkFileMaxBytes) {
+		public static final TransferSettings DEFAULTS = new TransferSettings(64L * 1024 * 1024, 16 * 1024 * 1024, 4,
+				Paths.get(System.getProperty("user.home"), ".opencloud-sync", "uploads").toString(),
+				64L * 1024 * 1024, 4, 100, 10L * 1024 * 1024, 1024L * 1024);
+	}
+
+	// Versuche pro Segment beim segmentierten Download
+	private static final int SEGMENT_ATTEMPTS = 3;
+
+	// Versuche für idempotente Requests bei Überlast des Servers
+	private static final int OVERLOAD_ATTEMPTS = 4;
+	
+	// Start-Limit gleichzeitiger Requests, wächst bis http.maxConnectionsPerRoute
+	private static final int INITIAL_CONCURRENCY = 4;
+	
+	// Anzahl paralleler PROPFINDs beim ebenenweisen Auflisten, falls Depth infinity nicht unterstützt wird
+	private static final int TREE_CRAWL_PARALLELISM = 8;
+
+	// Nur die Properties, die für FileInfo benötigt werden, statt allprop
+	private static final String LIST_PROPFIND_BODY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<d:propfind xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\"><d:prop>"
+			+ "<d:getcontentlength/><d:getlastmodified/><d:resourcetype/><d:getetag/><oc:checksums/>"
+			+ "</d:prop></d:propfind>";
+
+	private static final String DAV_ROOT = "/remote.php/dav/";
+
+	// basicsearch nach getlastmodified > Zeitpunkt, Parameter: Scope-href und ISO-8601-Zeitpunkt
+	private static final String SEARCH_MODIFIED_SINCE_BODY = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<d:searchrequest xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\"><d:basicsearch>"
+			+ "<d:select><d:prop><d:getcontentlength/><d:getlastmodified/><d:resourcetype/><d:getetag/><oc:checksums/></d:prop></d:select>"
+			+ "<d:from><d:scope><d:href>%s</d:href><d:depth>infinity</d:depth></d:scope></d:from>"
+			+ "<d:where><d:gt><d:prop><d:getlastmodified/></d:prop><d:literal>%s</d:literal></d:gt></d:where>"
+			+ "<d:orderby/></d:basicsearch></d:searchrequest>";
+
+	private OpenCloudSardine sardine;
+	// HTTP/2-Transport oder null, wenn alle Requests über Sardine laufen
+	private Http2Transport http2;
 	private String baseUrl;
+	private TransferSettings transferSettings;
+	private TusUploader tusUploader;
+	private BulkUploader bulkUploader;
+	private AdaptiveLimiter limiter;
+	// Größe des Connection-Pools, begrenzt die gleichzeitigen Einzel-Uploads in uploadFiles
+	private int maxConnections;
+	private final LatencyStats latencyStats = new LatencyStats();
+	// Perzentil für Hedged Requests und Executor für die Duplikate, null wenn Hedging aus ist
+	private int hedgePercentile;
+	private ExecutorService hedgeExecutor;
+	// false, sobald der Server SEARCH abgelehnt hat
+	private volatile boolean searchSupported = true;
+	// Während der Laufzeit des Clients bekannte Remote-Verzeichnisse (aus Listings und MKCOLs)
+	private final Set<String> knownDirectories = ConcurrentHashMap.newKeySet();
 
 	/**
 	 * Erstellt einen neuen WebDAV-Client für den Zugriff auf einen Cloud-Server
@@ -29,44 +188,352 @@ public class OpenCloudClient {
 	 * @param password Das Passwort für die Authentifizierung
 	 */
 	public OpenCloudClient(String url, String user, String password) {
+		this(url, user, password, HttpSettings.DEFAULTS, TransferSettings.DEFAULTS);
+	}
+
+	/**
+	 * Erstellt einen neuen WebDAV-Client mit den Verbindungsdaten und HTTP-Einstellungen aus der Konfiguration
+	 * 
+	 * @param config Die geladene Konfiguration
+	 */
+	public OpenCloudClient(OpenCloudConfig config) {
+		this(config.getServerUrl(), config.getUsername(), config.getPassword(), config.getHttpSettings(), config.getTransferSettings());
+	}
+
+	/**
+	 * Erstellt einen neuen WebDAV-Client für den Zugriff auf einen Cloud-Server
+	 * 
+	 * @param url      Die Basis-URL des WebDAV-Servers
+	 * @param user     Der Benutzername für die Authentifizierung
+	 * @param password Das Passwort für die Authentifizierung
+	 * @param settings Einstellungen für den Connection-Pool
+	 */
+	public OpenCloudClient(String url, String user, String password, HttpSettings settings) {
+		this(url, user, password, settings, TransferSettings.DEFAULTS);
+	}
+
+	/**
+	 * Erstellt einen neuen WebDAV-Client für den Zugriff auf einen Cloud-Server
+	 * 
+	 * @param url           Die Basis-URL des WebDAV-Servers
+	 * @param user          Der Benutzername für die Authentifizierung
+	 * @param password      Das Passwort für die Authentifizierung
+	 * @param settings      Einstellungen für den Connection-Pool
+	 * @param transferSettings Einstellungen für chunked Uploads und segmentierte Downloads
+	 */
+	public OpenCloudClient(String url, String user, String password, HttpSettings settings, TransferSettings transferSettings) {
 		// Verbindung zum WebDAV-Server herstellen
-		this.sardine = SardineFactory.begin(user, password);
+		PoolingHttpClientConnectionManager connectionManager = createConnectionManager(settings);
+		this.limiter = new AdaptiveLimiter(INITIAL_CONCURRENCY, 1, settings.maxConnectionsPerRoute());
+		this.maxConnections = settings.maxConnections();
+		this.sardine = new OpenCloudSardine(createHttpClientBuilder(connectionManager, settings, limiter), user, password);
 		this.baseUrl = url.endsWith("/") ? url : url + "/";
+		this.transferSettings = transferSettings;
+		this.tusUploader = new TusUploader(this, this.baseUrl, transferSettings);
+		this.bulkUploader = new BulkUploader(this, this.baseUrl, transferSettings);
+		if (settings.http2()) {
+			this.http2 = new Http2Transport(user, password, settings, limiter);
+		}
+		if (settings.hedgePercentile() > 0) {
+			this.hedgePercentile = settings.hedgePercentile();
+			this.hedgeExecutor = Executors.newVirtualThreadPerTaskExecutor();
+		}
+		// Basic-Auth direkt mitsenden, damit gestreamte (nicht wiederholbare) Uploads
+		// nicht an einer 401-Challenge scheitern
+		try {
+			this.sardine.enablePreemptiveAuthentication(new URL(this.baseUrl));
+		} catch (MalformedURLException e) {
+			throw new RuntimeException("Ungültige Server-URL: " + url, e);
+		}
 	}
 	
-	public record FileInfo(String name, boolean isDirectory, long contentLength, Date last_modified, String md5) {}
+	public record FileInfo(String name, boolean isDirectory, long contentLength, Date last_modified, String md5, String etag) {}
+	
+	/**
+	 * Ergebnis eines (ggf. teilweisen) Downloads.
+	 * 
+	 * @param content Der Inhalt, muss vom Aufrufer geschlossen werden
+	 * @param partial true bei 206 Partial Content (Inhalt ab dem angefragten Offset), false wenn der komplette Inhalt geliefert wird
+	 * @param etag    Die ETag der heruntergeladenen Version oder null
+	 */
+	public record RangedDownload(InputStream content, boolean partial, String etag) {}
 	
 	/**
-	 * Listet alle Dateien und Ordner im angegebenen Pfad auf
+	 * Eine hochzuladende lokale Datei für {@link OpenCloudClient#uploadFiles(List)}.
+	 * 
+	 * @param path              Der Zielpfad auf dem Server
+	 * @param file              Die lokale Datei
+	 * @param encryptPassphrase Passphrase für die Verschlüsselung oder null
+	 * @param lastModified      mtime in Millisekunden
+	 */
+	public record UploadRequest(String path, Path file, String encryptPassphrase, long lastModified) {}
+	
+	/**
+	 * Listet alle Dateien und Ordner im angegebenen Pfad auf.
+	 * Bei aktivem Hedging wird nach Ablauf des Latenz-Perzentils ein zweiter PROPFIND gesendet.
 	 * 
 	 * @param path Der Pfad, dessen Inhalt aufgelistet werden soll
 	 * @return Liste der Datei- und Ordnernamen
 	 */
 	public List<FileInfo> listFiles(String path) {
 		try {
-			String fullPath = buildFullPath(path);
-			List<DavResource> resources = sardine.list(fullPath);
-			
-			// Filtere das Elternverzeichnis selbst heraus und gebe FileInfo-Objekte zurück
-			return resources.stream()
-					.skip(1) // Erstes Element ist das Verzeichnis selbst
-					.map(r -> {
-						String name = r.getName();
-						boolean isDirectory = r.isDirectory();
-						long contentLength = r.getContentLength();
-						Date last_modified = r.getModified();
-						String md5 = r.getCustomProps().get("checksums") != null ? r.getCustomProps().get("checksums").replaceFirst(".*MD5[:]([a-fA-F0-9]{32}).*", "$1").toLowerCase() :  null;
-						if (name.endsWith("README3.md")) {
-							System.out.println("Found README3.md with md5: " + md5);
-						}
-						return new FileInfo(name, isDirectory, contentLength, last_modified, md5);
-					})
-					.collect(Collectors.toList());
+			return hedged("PROPFIND", () -> {
+				List<FileInfo> result = new ArrayList<>();
+				listFiles(path, result::add);
+				return result;
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Auflisten der Dateien im Pfad: " + path, e);
+		}
+	}
+	
+	/**
+	 * Listet alle Dateien und Ordner im angegebenen Pfad auf und übergibt jeden Eintrag
+	 * direkt beim Parsen der Antwort an den Consumer, ohne die Liste im Speicher aufzubauen.
+	 * 
+	 * @param path     Der Pfad, dessen Inhalt aufgelistet werden soll
+	 * @param consumer Erhält die Einträge in der Reihenfolge der Server-Antwort
+	 */
+	public void listFiles(String path, Consumer<FileInfo> consumer) {
+		try {
+			boolean[] first = { true };
+			String norm = normalizePath(path);
+			propfind(buildFullPath(path), "1", (resPath, fi) -> {
+				// Erstes Element ist das Verzeichnis selbst
+				if (first[0]) {
+					first[0] = false;
+					if (fi.isDirectory()) {
+						knownDirectories.add(norm);
+					}
+					return;
+				}
+				if (fi.isDirectory()) {
+					knownDirectories.add(norm.isEmpty() ? fi.name() : norm + "/" + fi.name());
+				}
+				consumer.accept(fi);
+			});
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Auflisten der Dateien im Pfad: " + path, e);
 		}
 	}
 	
+	/**
+	 * Liest die Eigenschaften einer einzelnen Datei oder eines Verzeichnisses (PROPFIND mit Depth 0).
+	 * Bei Verzeichnissen ändert der Server die ETag, sobald sich darunter etwas ändert.
+	 *
+	 * @param path Der Pfad der Ressource
+	 * @return die Eigenschaften oder null, wenn die Ressource nicht existiert
+	 */
+	public FileInfo getFileInfo(String path) {
+		FileInfo[] result = { null };
+		try {
+			propfind(buildFullPath(path), "0", (resPath, fi) -> {
+				if (result[0] == null) {
+					result[0] = fi;
+				}
+			});
+		} catch (SardineException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			throw new RuntimeException("Fehler beim Lesen der Eigenschaften von: " + path, e);
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Lesen der Eigenschaften von: " + path, e);
+		}
+		if (result[0] != null && result[0].isDirectory()) {
+			knownDirectories.add(normalizePath(path));
+		}
+		return result[0];
+	}
+
+	/**
+	 * Sucht per WebDAV SEARCH (RFC 5323, basicsearch) alle Dateien und Verzeichnisse unterhalb von path,
+	 * deren getlastmodified nach since liegt. Wie bei Nextcloud wird die Suche an die DAV-Wurzel
+	 * (.../remote.php/dav/) gesendet, mit dem Ordner als Scope. getlastmodified ist die beim Upload gesetzte
+	 * mtime (X-OC-Mtime); mit älterer mtime hochgeladene Dateien werden daher nicht gefunden.
+	 *
+	 * @param path  Der Ordner, in dem (rekursiv) gesucht wird
+	 * @param since Nur Ressourcen, die danach geändert wurden
+	 * @return Map von relativem Pfad (z.B. "a/b.txt") auf die Eigenschaften, oder null, wenn der Server
+	 *         SEARCH nicht unterstützt
+	 */
+	public Map<String, FileInfo> searchModifiedSince(String path, Date since) {
+		if (!searchSupported) {
+			return null;
+		}
+		String fullPath = buildFullPath(path);
+		String folderPath = URI.create(fullPath).getPath();
+		if (folderPath.endsWith("/")) {
+			folderPath = folderPath.substring(0, folderPath.length() - 1);
+		}
+		int idx = fullPath.indexOf(DAV_ROOT);
+		String arbiter = idx < 0 ? baseUrl : fullPath.substring(0, idx + DAV_ROOT.length());
+		String scope = idx < 0 ? folderPath : fullPath.substring(idx + DAV_ROOT.length() - 1);
+		String body = String.format(SEARCH_MODIFIED_SINCE_BODY, escapeXml(scope), DateTimeFormatter.ISO_INSTANT.format(since.toInstant()));
+		HttpSearch request = new HttpSearch(arbiter);
+		request.setEntity(new StringEntity(body, ContentType.create("text/xml", StandardCharsets.UTF_8)));
+		Map<String, FileInfo> result = new LinkedHashMap<>();
+		String prefix = folderPath + "/";
+		try {
+			HttpResponse response = execute(request);
+			int status = response.getStatusLine().getStatusCode();
+			if (status != 207) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				if (status == 400 || status == 403 || status == 404 || status == 405 || status == 422 || status == 501) {
+					System.out.println("  SEARCH not supported by server (" + status + "), using full listing");
+					searchSupported = false;
+					return null;
+				}
+				throw new SardineException("Unexpected response for SEARCH", status, response.getStatusLine().getReasonPhrase());
+			}
+			try (InputStream in = response.getEntity().getContent()) {
+				MultistatusParser.parse(in, (resPath, fi) -> {
+					if (resPath.startsWith(prefix)) {
+						result.put(resPath.substring(prefix.length()), fi);
+					}
+				});
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler bei der Suche nach Änderungen in: " + path, e);
+		}
+		return result;
+	}
+
+	private static String escapeXml(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	/**
+	 * Listet den kompletten Verzeichnisbaum unterhalb von path auf.
+	 * Es wird zuerst ein einzelner PROPFIND mit "Depth: infinity" versucht. Lehnt der Server
+	 * diesen ab, werden die Verzeichnisse ebenenweise mit begrenzter Parallelität abgefragt.
+	 * Der ganze Baum liegt danach im Speicher; FolderSync listet deshalb stattdessen verzeichnisweise
+	 * über den {@link RemoteLister}.
+	 * 
+	 * @param path Der Pfad des Wurzelverzeichnisses
+	 * @return Map von relativem Verzeichnispfad ("" für die Wurzel, sonst z.B. "a/b") auf dessen Einträge
+	 */
+	public Map<String, List<FileInfo>> listTree(String path) {
+		Map<String, List<FileInfo>> tree = new HashMap<>();
+		String[] rootPath = { null };
+		String norm = normalizePath(path);
+		try {
+			propfind(buildFullPath(path), "infinity", (resPath, fi) -> {
+				if (rootPath[0] == null) {
+					rootPath[0] = resPath;
+					tree.put("", new ArrayList<>());
+					knownDirectories.add(norm);
+					return;
+				}
+				if (!resPath.startsWith(rootPath[0] + "/")) {
+					return;
+				}
+				String relPath = resPath.substring(rootPath[0].length() + 1);
+				int idx = relPath.lastIndexOf('/');
+				String parent = idx < 0 ? "" : relPath.substring(0, idx);
+				tree.computeIfAbsent(parent, k -> new ArrayList<>()).add(fi);
+				if (fi.isDirectory()) {
+					tree.computeIfAbsent(relPath, k -> new ArrayList<>());
+					knownDirectories.add(norm.isEmpty() ? relPath : norm + "/" + relPath);
+				}
+			});
+		} catch (SardineException e) {
+			// 403 (propfind-finite-depth), 400 oder 501: Server unterstützt keine unendliche Tiefe
+			int status = e.getStatusCode();
+			if (status == 400 || status == 403 || status == 501) {
+				System.out.println("  Depth infinity not supported for " + path + " (" + status + "), crawling tree");
+				return crawlTree(path);
+			}
+			// e.g. 401, 404 or 5xx would fail again for every directory of the crawl
+			throw new RuntimeException("Fehler beim Auflisten des Verzeichnisbaums: " + path, e);
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Auflisten des Verzeichnisbaums: " + path, e);
+		}
+		return tree;
+	}
+	
+	/**
+	 * Führt einen PROPFIND mit den minimalen Properties aus und parst die Antwort per StAX.
+	 * 
+	 * @param fullUrl  Die vollständige URL
+	 * @param depth    "0", "1" oder "infinity"
+	 * @param consumer Erhält href-Pfad und FileInfo jedes Eintrags (der erste Eintrag ist die Ressource selbst)
+	 * @throws SardineException wenn der Server nicht mit 207 Multi-Status antwortet
+	 */
+	private void propfind(String fullUrl, String depth, BiConsumer<String, FileInfo> consumer) throws IOException {
+		boolean[] delivered = { false };
+		BiConsumer<String, FileInfo> tracking = (resPath, fi) -> {
+			delivered[0] = true;
+			consumer.accept(resPath, fi);
+		};
+		limited("infinity".equals(depth) ? "PROPFIND-infinity" : "PROPFIND", true, () -> {
+			try {
+				if (http2 != null) {
+					http2.propfind(fullUrl, depth, LIST_PROPFIND_BODY, tracking);
+					return null;
+				}
+				HttpPropFind request = new HttpPropFind(fullUrl);
+				request.setDepth(depth);
+				request.setEntity(new StringEntity(LIST_PROPFIND_BODY, ContentType.create("application/xml", StandardCharsets.UTF_8)));
+				return sardine.execute(request, response -> {
+					int status = response.getStatusLine().getStatusCode();
+					if (status != 207) {
+						EntityUtils.consumeQuietly(response.getEntity());
+						throw new SardineException("Unexpected response for PROPFIND", status, response.getStatusLine().getReasonPhrase());
+					}
+					try (InputStream in = response.getEntity().getContent()) {
+						MultistatusParser.parse(in, tracking);
+					}
+					return null;
+				});
+			} catch (IOException e) {
+				if (delivered[0]) {
+					// Einträge wurden bereits weitergegeben, eine Wiederholung würde sie doppelt liefern
+					throw new IOException("PROPFIND während des Lesens abgebrochen: " + fullUrl, e);
+				}
+				throw e;
+			}
+		});
+	}
+	
+	/**
+	 * Fallback für listTree: Breitensuche mit einem PROPFIND (Depth 1) pro Verzeichnis,
+	 * wobei die Verzeichnisse einer Ebene parallel abgefragt werden.
+	 */
+	private Map<String, List<FileInfo>> crawlTree(String path) {
+		Map<String, List<FileInfo>> tree = new HashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(TREE_CRAWL_PARALLELISM);
+		try {
+			List<String> level = List.of("");
+			while (!level.isEmpty()) {
+				Map<String, Future<List<FileInfo>>> futures = new LinkedHashMap<>();
+				for (String relDir : level) {
+					String remoteDir = relDir.isEmpty() ? path : (path.endsWith("/") ? path + relDir : path + "/" + relDir);
+					futures.put(relDir, executor.submit(() -> listFiles(remoteDir)));
+				}
+				List<String> nextLevel = new ArrayList<>();
+				for (Map.Entry<String, Future<List<FileInfo>>> entry : futures.entrySet()) {
+					List<FileInfo> entries = entry.getValue().get();
+					tree.put(entry.getKey(), new ArrayList<>(entries));
+					for (FileInfo fi : entries) {
+						if (fi.isDirectory()) {
+							nextLevel.add(entry.getKey().isEmpty() ? fi.name() : entry.getKey() + "/" + fi.name());
+						}
+					}
+				}
+				level = nextLevel;
+			}
+			return tree;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Auflisten des Verzeichnisbaums unterbrochen: " + path, e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Fehler beim Auflisten des Verzeichnisbaums: " + path, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
 	/**
 	 * Listet alle Ressourcen mit Details im angegebenen Pfad auf
 	 * 
@@ -76,7 +543,7 @@ public class OpenCloudClient {
 	public List<DavResource> listResources(String path) {
 		try {
 			String fullPath = buildFullPath(path);
-			List<DavResource> resources = sardine.list(fullPath);
+			List<DavResource> resources = limited("PROPFIND", true, () -> sardine.list(fullPath));
 			// Erstes Element (das Verzeichnis selbst) überspringen
 			return resources.stream().skip(1).collect(Collectors.toList());
 		} catch (IOException e) {
@@ -85,15 +552,19 @@ public class OpenCloudClient {
 	}
 	
 	/**
-	 * Prüft, ob ein Pfad existiert
+	 * Prüft, ob ein Pfad existiert.
+	 * Bei aktivem Hedging wird nach Ablauf des Latenz-Perzentils ein zweiter HEAD gesendet.
 	 * 
 	 * @param path Der zu prüfende Pfad
 	 * @return true wenn der Pfad existiert, sonst false
 	 */
 	public boolean exists(String path) {
+		if (knownDirectories.contains(normalizePath(path))) {
+			return true;
+		}
 		try {
 			String fullPath = buildFullPath(path);
-			return sardine.exists(fullPath);
+			return hedged("HEAD", () -> limited("HEAD", true, () -> http2 != null ? http2.exists(fullPath) : sardine.exists(fullPath)));
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Prüfen der Existenz von: " + path, e);
 		}
@@ -106,13 +577,52 @@ public class OpenCloudClient {
 	 */
 	public void createDirectory(String path) {
 		try {
-			String fullPath = buildFullPath(path);
-			sardine.createDirectory(fullPath);
+			mkcol(buildFullPath(path));
+			knownDirectories.add(normalizePath(path));
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Erstellen des Verzeichnisses: " + path, e);
 		}
 	}
 	
+	/**
+	 * Erstellt ein Verzeichnis inklusive fehlender Elternverzeichnisse (mkdir -p).
+	 * Bereits bekannte Verzeichnisse kosten keinen Request; ansonsten wird das Verzeichnis direkt
+	 * angelegt und nur bei 409 (Elternverzeichnis fehlt) zuerst der Elternpfad erzeugt. Bei 405 existiert
+	 * der Pfad bereits; ein PROPFIND (Depth 0) prüft dann, dass es ein Verzeichnis und keine Datei ist.
+	 * 
+	 * @param path Der Pfad des zu erstellenden Verzeichnisses
+	 * @throws RuntimeException auch wenn unter dem Pfad eine Datei liegt
+	 */
+	public void createDirectories(String path) {
+		String norm = normalizePath(path);
+		if (norm.isEmpty() || knownDirectories.contains(norm)) {
+			return;
+		}
+		try {
+			mkcol(buildFullPath(norm));
+		} catch (SardineException e) {
+			if (e.getStatusCode() == 409) {
+				int idx = norm.lastIndexOf('/');
+				createDirectories(idx < 0 ? "" : norm.substring(0, idx));
+				createDirectory(norm);
+				return;
+			}
+			if (e.getStatusCode() != 405) {
+				throw new RuntimeException("Fehler beim Erstellen des Verzeichnisses: " + path, e);
+			}
+			// 405 Method Not Allowed: die Ressource existiert bereits, aber nicht unbedingt als Verzeichnis
+			FileInfo existing = getFileInfo(norm);
+			if (existing == null || !existing.isDirectory()) {
+				throw new RuntimeException("Verzeichnis kann nicht erstellt werden, der Pfad ist kein Verzeichnis: " + path, e);
+			}
+			// getFileInfo hat das Verzeichnis bereits vermerkt
+			return;
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Erstellen des Verzeichnisses: " + path, e);
+		}
+		knownDirectories.add(norm);
+	}
+	
 	/**
 	 * Lädt eine Datei vom Server herunter
 	 * 
@@ -121,24 +631,181 @@ public class OpenCloudClient {
 	 */
 	public InputStream downloadFile(String path) {
 		try {
-			String fullPath = buildFullPath(path);
-			return sardine.get(fullPath);
+			GetResponse response = get(buildFullPath(path), Map.of());
+			if (response.status() != 200) {
+				response.content().close();
+				throw new SardineException("Unexpected response for GET", response.status(), null);
+			}
+			return response.content();
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Herunterladen der Datei: " + path, e);
 		}
 	}
 	
 	/**
-	 * Lädt eine Datei auf den Server hoch
+	 * Lädt eine Datei ab einem Offset vom Server herunter (HTTP Range).
+	 * Mit ifRange wird der Teil nur geliefert, wenn die Datei auf dem Server noch diese ETag hat,
+	 * andernfalls liefert der Server den kompletten Inhalt (partial == false).
+	 * 
+	 * @param path    Der Pfad zur Datei auf dem Server
+	 * @param offset  Erstes benötigtes Byte, 0 für den kompletten Inhalt
+	 * @param ifRange ETag, gegen die der Range-Request validiert wird, oder null
+	 * @return Inhalt und Art der Antwort
+	 */
+	public RangedDownload downloadFile(String path, long offset, String ifRange) {
+		try {
+			Map<String, String> headers = new HashMap<>();
+			if (offset > 0) {
+				headers.put("Range", "bytes=" + offset + "-");
+				if (ifRange != null) {
+					headers.put("If-Range", ifRange);
+				}
+			}
+			GetResponse response = get(buildFullPath(path), headers);
+			int status = response.status();
+			if (status == 206 || status == 200) {
+				return new RangedDownload(response.content(), status == 206, response.etag());
+			}
+			response.content().close();
+			if (status == 416 && offset > 0) {
+				// Offset passt nicht (mehr) zur Datei, komplett neu laden
+				return downloadFile(path, 0, null);
+			}
+			throw new SardineException("Unexpected response for GET", status, null);
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Herunterladen der Datei: " + path, e);
+		}
+	}
+
+	/**
+	 * Lädt eine Datei nur herunter, wenn sie sich gegenüber der angegebenen Version geändert hat
+	 * (bedingter GET mit If-None-Match). Ist sie unverändert, antwortet der Server mit 304 ohne Inhalt.
+	 *
+	 * @param path Der Pfad zur Datei auf dem Server
+	 * @param etag ETag der lokal vorhandenen Version
+	 * @return der komplette Inhalt mit der neuen ETag, oder null, wenn die Datei unverändert ist
+	 */
+	public RangedDownload downloadFileIfNoneMatch(String path, String etag) {
+		try {
+			// If-None-Match erwartet eine Entity-Tag in Anführungszeichen
+			String quoted = etag.startsWith("\"") || etag.startsWith("W/") ? etag : "\"" + etag + "\"";
+			GetResponse response = get(buildFullPath(path), Map.of("If-None-Match", quoted));
+			int status = response.status();
+			if (status == 304) {
+				response.content().close();
+				return null;
+			}
+			if (status == 200) {
+				return new RangedDownload(response.content(), false, response.etag());
+			}
+			response.content().close();
+			throw new SardineException("Unexpected response for conditional GET", status, null);
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Herunterladen der Datei: " + path, e);
+		}
+	}
+
+	/**
+	 * Lädt eine große Datei in mehreren parallelen Byte-Ranges direkt in die Zieldatei.
+	 * Die Zieldatei wird auf die volle Größe angelegt und jedes Segment per positionellem
+	 * FileChannel-Schreiben an seine Stelle geschrieben. Abgebrochene Segmente werden ab dem
+	 * zuletzt geschriebenen Byte wiederholt.
+	 * 
+	 * @param path   Der Pfad zur Datei auf dem Server
+	 * @param target Die lokale Zieldatei (wird überschrieben)
+	 * @param length Die Größe der Remote-Datei
+	 * @param etag   Die erwartete ETag (per If-Match geprüft) oder null
+	 * @return false, wenn die Datei unter {@link TransferSettings#segmentThresholdBytes()} liegt oder der Server
+	 *         keine Ranges unterstützt; der Aufrufer muss dann normal herunterladen
+	 */
+	public boolean downloadFileSegmented(String path, Path target, long length, String etag) {
+		int segments = (int) Math.min(transferSettings.parallelDownloads(), Math.max(1, length / (1024 * 1024)));
+		if (length < transferSettings.segmentThresholdBytes() || segments < 2) {
+			return false;
+		}
+		String fullPath = buildFullPath(path);
+		long segmentLength = (length + segments - 1) / segments;
+		ExecutorService executor = Executors.newFixedThreadPool(segments);
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// Datei auf volle Größe bringen
+			channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+			List<Future<Boolean>> futures = new ArrayList<>();
+			for (long start = 0; start < length; start += segmentLength) {
+				long segStart = start;
+				long segEnd = Math.min(start + segmentLength, length) - 1;
+				futures.add(executor.submit(() -> downloadSegment(fullPath, etag, channel, segStart, segEnd)));
+			}
+			boolean rangesSupported = true;
+			for (Future<Boolean> future : futures) {
+				rangesSupported &= future.get();
+			}
+			return rangesSupported;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Segmentierter Download unterbrochen: " + path, e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Fehler beim segmentierten Download der Datei: " + path, e.getCause());
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim segmentierten Download der Datei: " + path, e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Lädt die Bytes [start, end] und schreibt sie positionell in den Channel.
+	 * 
+	 * @return false, wenn der Server die Range ignoriert (200 statt 206)
+	 */
+	private boolean downloadSegment(String fullPath, String etag, FileChannel channel, long start, long end) throws IOException {
+		long pos = start;
+		IOException lastError = null;
+		for (int attempt = 1; attempt <= SEGMENT_ATTEMPTS && pos <= end; attempt++) {
+			Map<String, String> headers = new HashMap<>();
+			headers.put("Range", "bytes=" + pos + "-" + end);
+			if (etag != null) {
+				headers.put("If-Match", etag);
+			}
+			GetResponse response = get(fullPath, headers);
+			int status = response.status();
+			if (status != 206) {
+				response.content().close();
+				if (status == 200) {
+					return false;
+				}
+				throw new SardineException("Unexpected response for ranged GET", status, null);
+			}
+			try (InputStream in = response.content()) {
+				byte[] buffer = new byte[64 * 1024];
+				int len;
+				while (pos <= end && (len = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos + 1))) != -1) {
+					ByteBuffer bb = ByteBuffer.wrap(buffer, 0, len);
+					while (bb.hasRemaining()) {
+						pos += channel.write(bb, pos);
+					}
+				}
+			} catch (IOException e) {
+				// Verbindung abgebrochen: ab pos erneut anfragen
+				lastError = e;
+				System.err.println("  Segment " + start + "-" + end + " interrupted at " + pos + " (attempt " + attempt + "): " + e.getMessage());
+			}
+		}
+		if (pos <= end) {
+			throw lastError != null ? lastError : new IOException("Segment unvollständig: " + start + "-" + end);
+		}
+		return true;
+	}
+	
+	/**
+	 * Lädt eine Datei auf den Server hoch.
+	 * Die Daten werden gestreamt (chunked) und nicht im Speicher gepuffert.
 	 * 
 	 * @param path Der Zielpfad auf dem Server
 	 * @param data Die hochzuladenden Daten als InputStream
 	 */
 	public void uploadFile(String path, InputStream data) {
 		try {
-			// InputStream in Byte-Array konvertieren, um "non-repeatable request entity" Fehler zu vermeiden
-			byte[] bytes = data.readAllBytes();
-			uploadFile(path, bytes);
+			put(buildFullPath(path), new InputStreamEntity(data, -1), new ArrayList<>());
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Hochladen der Datei: " + path, e);
 		}
@@ -152,8 +819,7 @@ public class OpenCloudClient {
 	 */
 	public void uploadFile(String path, byte[] data) {
 		try {
-			String fullPath = buildFullPath(path);
-			sardine.put(fullPath, data);
+			put(buildFullPath(path), new ByteArrayEntity(data), new ArrayList<>());
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Hochladen der Datei: " + path, e);
 		}
@@ -170,31 +836,154 @@ public class OpenCloudClient {
 	 * @param lastModified local lastModified in milliseconds since epoch
 	 */
 	public void uploadFile(String path, byte[] data, long lastModified) {
+		putWithMtime(path, new ByteArrayEntity(data), lastModified);
+	}
+
+	/**
+	 * Upload with InputStream and lastModified (ms since epoch). The stream is sent chunked
+	 * without buffering it in memory.
+	 */
+	public void uploadFile(String path, InputStream data, long lastModified) {
+		putWithMtime(path, new InputStreamEntity(data, -1), lastModified);
+	}
+
+	/**
+	 * Upload of a local file with lastModified (ms since epoch). The file is streamed from disk
+	 * with a known content length, optionally encrypted on the fly. The request entity is
+	 * repeatable, so memory usage stays constant independent of the file size.
+	 * Files from {@link TransferSettings#thresholdBytes()} on are uploaded chunked and resumable via TUS
+	 * if the server supports it.
+	 *
+	 * @param path              remote path
+	 * @param file              local file
+	 * @param encryptPassphrase passphrase for EncryptedInputStream or null for plain upload
+	 * @param lastModified      local lastModified in milliseconds since epoch
+	 * @return the ETag of the uploaded version, or null if the server does not report it
+	 */
+	public String uploadFile(String path, Path file, String encryptPassphrase, long lastModified) {
+		FileUploadEntity entity;
+		try {
+			entity = new FileUploadEntity(file, encryptPassphrase);
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Lesen der lokalen Datei: " + file, e);
+		}
+		if (entity.getContentLength() >= transferSettings.thresholdBytes() && tusUploader.isSupported()) {
+			try {
+				tusUploader.upload(buildFullPath(path), entity, lastModified);
+			} catch (IOException e) {
+				throw new RuntimeException("Fehler beim chunked Upload der Datei: " + path, e);
+			}
+			// the final PATCH (or concatenation) does not report it
+			FileInfo uploaded = getFileInfo(path);
+			return uploaded != null ? uploaded.etag() : null;
+		}
+		return putWithMtime(path, entity, lastModified);
+	}
+
+	/**
+	 * Lädt eine lokale Datei ohne X-OC-Mtime hoch, sie erhält also die Server-Zeit des Uploads.
+	 * Die Datei wird von der Platte gestreamt, bei Bedarf unterwegs verschlüsselt.
+	 *
+	 * @param encryptPassphrase Passphrase für die Verschlüsselung oder null
+	 */
+	public void uploadFile(String path, Path file, String encryptPassphrase) {
+		try {
+			put(buildFullPath(path), new FileUploadEntity(file, encryptPassphrase), new ArrayList<>());
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Hochladen der Datei: " + path, e);
+		}
+	}
+
+	/**
+	 * Lädt mehrere lokale Dateien hoch. Kleine Dateien (bis {@link TransferSettings#bulkFileMaxBytes()})
+	 * werden gesammelt per Bulk-Upload in wenigen multipart-Requests übertragen; alle übrigen, sowie alle
+	 * Dateien, wenn der Server keinen Bulk-Endpunkt hat, werden einzeln per PUT hochgeladen, und zwar
+	 * gleichzeitig über den {@link OpenCloudAsyncClient}, so dass die Requests ohne Warten auf die vorherige
+	 * Antwort über die Verbindungen laufen (höchstens so viele wie der Pool Verbindungen hat, darunter
+	 * begrenzt durch den {@link AdaptiveLimiter}).
+	 * 
+	 * @param files Die hochzuladenden Dateien
+	 * @return Fehler pro Zielpfad für nicht hochgeladene Dateien, leer wenn alle erfolgreich waren
+	 */
+	public Map<String, RuntimeException> uploadFiles(List<UploadRequest> files) {
+		return uploadFiles(files, (path, etag) -> {});
+	}
+
+	/**
+	 * Wie {@link #uploadFiles(List)}, meldet zusätzlich jede hochgeladene Datei.
+	 *
+	 * @param uploaded erhält Zielpfad und ETag (null, wenn der Server keine meldet) jeder erfolgreich
+	 *                 hochgeladenen Datei, ggf. gleichzeitig aus mehreren Threads
+	 */
+	public Map<String, RuntimeException> uploadFiles(List<UploadRequest> files, BiConsumer<String, String> uploaded) {
+		List<UploadRequest> bulk = new ArrayList<>();
+		List<UploadRequest> single = new ArrayList<>();
+		for (UploadRequest file : files) {
+			if (bulkUploader.isSupported() && bulkUploader.accepts(uploadSize(file))) {
+				bulk.add(file);
+			} else {
+				single.add(file);
+			}
+		}
+		if (bulk.size() > 1) {
+			single.addAll(bulkUploader.upload(bulk, (file, etag) -> uploaded.accept(file.path(), etag)));
+		} else {
+			single.addAll(bulk);
+		}
+		Map<String, RuntimeException> errors = new HashMap<>();
+		try (OpenCloudAsyncClient async = new OpenCloudAsyncClient(this, maxConnections)) {
+			Map<String, CompletableFuture<String>> uploads = new LinkedHashMap<>();
+			for (UploadRequest file : single) {
+				uploads.put(file.path(), async.uploadFile(file.path(), file.file(), file.encryptPassphrase(), file.lastModified()));
+			}
+			uploads.forEach((path, upload) -> {
+				try {
+					uploaded.accept(path, upload.join());
+				} catch (CompletionException e) {
+					errors.put(path, e.getCause() instanceof RuntimeException re ? re : e);
+				}
+			});
+		}
+		return errors;
+	}
+	
+	private static long uploadSize(UploadRequest file) {
+		try {
+			long size = Files.size(file.file());
+			return file.encryptPassphrase() != null ? EncryptedInputStream.getEncryptedSizeForInputSize(size) : size;
+		} catch (IOException e) {
+			// Fehler wird beim Einzel-Upload gemeldet
+			return Long.MAX_VALUE;
+		}
+	}
+	
+	private String putWithMtime(String path, HttpEntity entity, long lastModified) {
 		String fullPath = buildFullPath(path);
 		try {
 			// X-OC-Mtime expects seconds
 			String mtime = Long.toString(lastModified / 1000L);
-			ByteArrayEntity entity = new ByteArrayEntity(data);
 			List<Header> headerList = new ArrayList<>();
 			headerList.add(new BasicHeader("X-OC-Mtime", mtime));
-			((SardineImpl)sardine).put(fullPath, entity, headerList);
+			return put(fullPath, entity, headerList);
 		} catch (RuntimeException re) {
 			throw re;
 		} catch (Exception e) {
 			throw new RuntimeException("Fehler beim Hochladen der Datei mit mtime: " + path, e);
 		}
 	}
-
+	
 	/**
-	 * Upload with InputStream and lastModified (ms since epoch). Reads stream fully and delegates.
+	 * Liefert den HTTP-Status, mit dem eine Operation des Clients gescheitert ist.
+	 * 
+	 * @return den Status der Server-Antwort oder -1, wenn der Fehler keine Antwort des Servers war
 	 */
-	public void uploadFile(String path, InputStream data, long lastModified) {
-		try {
-			byte[] bytes = data.readAllBytes();
-			uploadFile(path, bytes, lastModified);
-		} catch (IOException e) {
-			throw new RuntimeException("Fehler beim Hochladen der Datei: " + path, e);
+	public static int statusOf(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SardineException se) {
+				return se.getStatusCode();
+			}
 		}
+		return -1;
 	}
 	
 	/**
@@ -205,7 +994,31 @@ public class OpenCloudClient {
 	public void delete(String path) {
 		try {
 			String fullPath = buildFullPath(path);
-			sardine.delete(fullPath);
+			limited("DELETE", true, () -> {
+				if (http2 != null) {
+					http2.delete(fullPath);
+					return null;
+				}
+				// nicht sardine.delete: das nimmt auch einen 207 mit gescheiterten Einträgen als Erfolg
+				return sardine.execute(new HttpDelete(fullPath), response -> {
+					int status = response.getStatusLine().getStatusCode();
+					try {
+						if (status == 207) {
+							try (InputStream in = response.getEntity().getContent()) {
+								if (!MultistatusParser.allSucceeded(in)) {
+									throw new SardineException("Unexpected response for DELETE", 207, "Multi-Status mit fehlgeschlagenen Einträgen");
+								}
+							}
+						} else if (status / 100 != 2) {
+							throw new SardineException("Unexpected response for DELETE", status, response.getStatusLine().getReasonPhrase());
+						}
+						return null;
+					} finally {
+						EntityUtils.consumeQuietly(response.getEntity());
+					}
+				});
+			});
+			forgetDirectories(path);
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Löschen von: " + path, e);
 		}
@@ -221,7 +1034,15 @@ public class OpenCloudClient {
 		try {
 			String fullSourcePath = buildFullPath(sourcePath);
 			String fullDestPath = buildFullPath(destPath);
-			sardine.move(fullSourcePath, fullDestPath);
+			limited("MOVE", false, () -> {
+				if (http2 != null) {
+					http2.move(fullSourcePath, fullDestPath);
+				} else {
+					sardine.move(fullSourcePath, fullDestPath);
+				}
+				return null;
+			});
+			forgetDirectories(sourcePath);
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Verschieben von " + sourcePath + " nach " + destPath, e);
 		}
@@ -237,17 +1058,377 @@ public class OpenCloudClient {
 		try {
 			String fullSourcePath = buildFullPath(sourcePath);
 			String fullDestPath = buildFullPath(destPath);
-			sardine.copy(fullSourcePath, fullDestPath);
+			limited("COPY", false, () -> {
+				sardine.copy(fullSourcePath, fullDestPath);
+				return null;
+			});
 		} catch (IOException e) {
 			throw new RuntimeException("Fehler beim Kopieren von " + sourcePath + " nach " + destPath, e);
 		}
 	}
 	
+	/**
+	 * Führt einen beliebigen Request über den gemeinsamen Connection-Pool aus (für TusUploader).
+	 * Der Aufrufer muss die Response-Entity konsumieren. Bei Überlast (429/503) wird eine
+	 * SardineException geworfen; Wiederholungen übernimmt der Aufrufer.
+	 */
+	HttpResponse execute(HttpRequestBase request) throws IOException {
+		return limited(request.getMethod(), false, () -> {
+			HttpResponse response = sardine.execute(request);
+			int status = response.getStatusLine().getStatusCode();
+			if (AdaptiveLimiter.isOverloadStatus(status)) {
+				EntityUtils.consumeQuietly(response.getEntity());
+				throw new SardineException("Server overloaded", status, response.getStatusLine().getReasonPhrase());
+			}
+			return response;
+		});
+	}
+	
+	@FunctionalInterface
+	private interface Call<T> {
+		T run() throws IOException;
+	}
+	
+	/**
+	 * Führt einen Request unter dem {@link AdaptiveLimiter} aus. Bei Überlast (429/503 oder Timeout)
+	 * wird ein wiederholbarer Request nach der vom Limiter verordneten Pause erneut gesendet, ebenso
+	 * wenn der Server eine wiederverwendete Verbindung ohne Antwort geschlossen hat.
+	 * 
+	 * @param verb      HTTP-Methode (für die Latenzmessung pro Verb)
+	 * @param retryable true für idempotente Requests, die gefahrlos wiederholt werden können
+	 */
+	private <T> T limited(String verb, boolean retryable, Call<T> call) throws IOException {
+		return limited(verb, retryable, call, null);
+	}
+	
+	/**
+	 * Wie {@link #limited(String, boolean, Call)}; mit hold bleibt der Platz über die Rückkehr hinaus belegt.
+	 * 
+	 * @param hold erhält das Ergebnis und eine Freigabe (true nach Erfolg), die z.B. beim Schließen des
+	 *             Inhalts aufzurufen ist, und liefert das Ergebnis mit dieser Freigabe
+	 */
+	private <T> T limited(String verb, boolean retryable, Call<T> call, BiFunction<T, Consumer<Boolean>, T> hold) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			limiter.acquire();
+			HedgeAttempt.markStarted();
+			long start = System.nanoTime();
+			try {
+				T result = call.run();
+				if (hold != null) {
+					return hold.apply(result, success -> {
+						if (success) {
+							long latency = System.nanoTime() - start;
+							limiter.onSuccess(verb, latency);
+							latencyStats.record(verb, latency);
+						} else {
+							limiter.onError();
+						}
+					});
+				}
+				long latency = System.nanoTime() - start;
+				limiter.onSuccess(verb, latency);
+				latencyStats.record(verb, latency);
+				return result;
+			} catch (IOException e) {
+				boolean timeout = e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException || e instanceof HttpTimeoutException;
+				if (timeout) {
+					// 429/503 melden die Transports selbst (mit Retry-After)
+					limiter.onOverload(-1);
+				}
+				limiter.onError();
+				boolean overload = timeout || (e instanceof SardineException se && AdaptiveLimiter.isOverloadStatus(se.getStatusCode()));
+				boolean staleConnection = e instanceof NoHttpResponseException;
+				if (!(overload || staleConnection) || !retryable || attempt >= OVERLOAD_ATTEMPTS) {
+					throw e;
+				}
+				System.err.println("  " + verb + " failed (" + e.getMessage() + "), retrying (attempt " + (attempt + 1) + ")");
+			} catch (RuntimeException e) {
+				limiter.onError();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * Führt einen idempotenten Request aus; dauert er länger als das konfigurierte Perzentil der bisherigen
+	 * Latenzen dieses Verbs, wird ein zweiter, gleicher Request gesendet. Das erste erfolgreiche Ergebnis
+	 * gewinnt, der andere Request wird abgebrochen. Ohne Hedging oder ohne genügend Messwerte wird call direkt ausgeführt.
+	 * 
+	 * Die Wartezeit läuft erst, wenn der erste Versuch seinen Platz im {@link AdaptiveLimiter} hat, damit das
+	 * Warten auf einen Platz nicht als langsamer Request zählt. Warten bereits andere Requests auf einen Platz,
+	 * wird kein zweiter gesendet: er würde die Warteschlange nur verlängern.
+	 */
+	private <T> T hedged(String verb, Call<T> call) throws IOException {
+		long delay = hedgeExecutor != null ? latencyStats.percentile(verb, hedgePercentile) : -1;
+		if (delay < 0) {
+			return call.run();
+		}
+		CompletableFuture<T> winner = new CompletableFuture<>();
+		List<HedgeAttempt> attempts = new CopyOnWriteArrayList<>();
+		AtomicInteger failures = new AtomicInteger();
+		HedgeAttempt first = new HedgeAttempt();
+		attempts.add(first);
+		submitAttempt(call, first, attempts, winner, failures);
+		try {
+			first.started.get();
+			try {
+				return winner.get(delay, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				if (!limiter.hasWaiters()) {
+					HedgeAttempt second = new HedgeAttempt();
+					attempts.add(second);
+					if (!winner.isDone()) {
+						submitAttempt(call, second, attempts, winner, failures);
+					}
+				}
+				return winner.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			attempts.forEach(HedgeAttempt::abort);
+			throw new IOException(verb + " unterbrochen", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() instanceof CompletionException ce ? ce.getCause() : e.getCause();
+			if (cause instanceof IOException io) {
+				throw io;
+			}
+			if (cause instanceof RuntimeException re) {
+				throw re;
+			}
+			throw new IOException(verb + " fehlgeschlagen", cause);
+		}
+	}
+	
+	private <T> void submitAttempt(Call<T> call, HedgeAttempt attempt, List<HedgeAttempt> attempts, CompletableFuture<T> winner, AtomicInteger failures) {
+		CompletableFuture.supplyAsync(() -> {
+			try {
+				return attempt.run(call);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, hedgeExecutor).whenComplete((result, error) -> {
+			if (error == null) {
+				if (winner.complete(result)) {
+					attempts.stream().filter(other -> other != attempt).forEach(HedgeAttempt::abort);
+				}
+			} else if (failures.incrementAndGet() == attempts.size()) {
+				// alle gesendeten Versuche gescheitert; ein danach fälliger zweiter wird nicht mehr gesendet
+				winner.completeExceptionally(error);
+			}
+		});
+	}
+	
+	/**
+	 * Ein Versuch eines Hedged Requests. {@link #limited} meldet den Start, sobald der Versuch seinen Platz im
+	 * Limiter hat; {@link OpenCloudSardine} trägt den laufenden HTTP-Request ein, damit der unterlegene Versuch
+	 * abgebrochen werden kann. Über HTTP/2 wird stattdessen sein Thread unterbrochen, was den Stream abbricht.
+	 */
+	private static final class HedgeAttempt {
+		
+		private static final ThreadLocal<HedgeAttempt> CURRENT = new ThreadLocal<>();
+		
+		final CompletableFuture<Void> started = new CompletableFuture<>();
+		private Thread thread;
+		private HttpRequestBase request;
+		private boolean aborted;
+		
+		<T> T run(Call<T> call) throws IOException {
+			synchronized (this) {
+				if (aborted) {
+					throw new InterruptedIOException("Hedged Request nicht mehr nötig");
+				}
+				thread = Thread.currentThread();
+			}
+			CURRENT.set(this);
+			try {
+				return call.run();
+			} finally {
+				CURRENT.remove();
+				synchronized (this) {
+					thread = null;
+					request = null;
+				}
+				// auch wenn der Versuch vor dem Start scheitert, darf hedged() nicht ewig warten
+				started.complete(null);
+			}
+		}
+		
+		synchronized void abort() {
+			aborted = true;
+			if (request != null) {
+				request.abort();
+			}
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+		
+		/**
+		 * Meldet dem laufenden Versuch (falls es einen gibt), dass er seinen Platz im Limiter hat.
+		 */
+		static void markStarted() {
+			HedgeAttempt attempt = CURRENT.get();
+			if (attempt != null) {
+				attempt.started.complete(null);
+			}
+		}
+		
+		/**
+		 * Trägt den HTTP-Request des laufenden Versuchs ein; ist der Versuch schon abgebrochen, wird er sofort abgebrochen.
+		 */
+		static void register(HttpRequestBase request) {
+			HedgeAttempt attempt = CURRENT.get();
+			if (attempt != null) {
+				synchronized (attempt) {
+					attempt.request = request;
+					if (attempt.aborted) {
+						request.abort();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Antwort eines GET, unabhängig vom Transport. content muss in jedem Fall geschlossen werden,
+	 * erst dann wird der Platz im {@link AdaptiveLimiter} frei.
+	 */
+	private record GetResponse(int status, String etag, InputStream content) {}
+	
+	/**
+	 * Gibt beim (ersten) Schließen den Platz eines Downloads frei; ist beim Lesen ein Fehler aufgetreten,
+	 * zählt der Download nicht als Latenzmessung.
+	 */
+	private static class ReleasingInputStream extends FilterInputStream {
+		
+		private final Consumer<Boolean> release;
+		private boolean failed;
+		private boolean released;
+		
+		ReleasingInputStream(InputStream in, Consumer<Boolean> release) {
+			super(in);
+			this.release = release;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			try {
+				return super.read();
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			try {
+				return super.read(b, off, len);
+			} catch (IOException e) {
+				failed = true;
+				throw e;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (!released) {
+					released = true;
+					release.accept(!failed);
+				}
+			}
+		}
+	}
+	
+	private GetResponse get(String fullUrl, Map<String, String> headers) throws IOException {
+		return limited("GET", true, () -> {
+			GetResponse result;
+			if (http2 != null) {
+				java.net.http.HttpResponse<InputStream> response = http2.get(fullUrl, headers);
+				result = new GetResponse(response.statusCode(), response.headers().firstValue("ETag").orElse(null), response.body());
+			} else {
+				HttpGet get = new HttpGet(fullUrl);
+				headers.forEach(get::setHeader);
+				HttpResponse response = sardine.execute(get);
+				Header etagHeader = response.getFirstHeader("ETag");
+				HttpEntity entity = response.getEntity();
+				result = new GetResponse(response.getStatusLine().getStatusCode(), etagHeader != null ? etagHeader.getValue() : null,
+						entity != null ? entity.getContent() : InputStream.nullInputStream());
+			}
+			if (AdaptiveLimiter.isOverloadStatus(result.status())) {
+				result.content().close();
+				throw new SardineException("Server overloaded", result.status(), null);
+			}
+			return result;
+		}, (result, release) -> new GetResponse(result.status(), result.etag(), new ReleasingInputStream(result.content(), release)));
+	}
+	
+	/**
+	 * @return die ETag der hochgeladenen Version aus der Antwort oder null, wenn der Server keine mitschickt
+	 */
+	private String put(String fullUrl, HttpEntity entity, List<Header> headers) throws IOException {
+		return limited("PUT", entity.isRepeatable(), () -> {
+			if (http2 == null) {
+				return sardine.put(fullUrl, entity, headers, response -> {
+					int status = response.getStatusLine().getStatusCode();
+					EntityUtils.consumeQuietly(response.getEntity());
+					if (status / 100 != 2) {
+						throw new SardineException("Unexpected response for PUT", status, response.getStatusLine().getReasonPhrase());
+					}
+					return etag(response.getFirstHeader("OC-ETag"), response.getFirstHeader("ETag"));
+				});
+			}
+			Map<String, String> headerMap = new HashMap<>();
+			headers.forEach(h -> headerMap.put(h.getName(), h.getValue()));
+			return http2.put(fullUrl, entity::getContent, entity.getContentLength(), headerMap);
+		});
+	}
+
+	// OC-ETag is the value PROPFIND reports, ETag may be weak or differently quoted
+	private static String etag(Header ocEtag, Header etag) {
+		Header h = ocEtag != null ? ocEtag : etag;
+		return h != null ? h.getValue() : null;
+	}
+	
+	private void mkcol(String fullUrl) throws IOException {
+		limited("MKCOL", false, () -> {
+			if (http2 != null) {
+				http2.mkcol(fullUrl);
+			} else {
+				sardine.createDirectory(fullUrl);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * @return die maximale Anzahl Verbindungen, z.B. als Grenze für einen {@link OpenCloudAsyncClient}
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return die Einstellungen für Übertragungen, u.a. das Status-Verzeichnis
+	 */
+	public TransferSettings getTransferSettings() {
+		return transferSettings;
+	}
+
 	/**
 	 * Schließt die Verbindung zum WebDAV-Server
 	 */
 	public void close() {
 		try {
+			if (hedgeExecutor != null) {
+				hedgeExecutor.shutdown();
+			}
+			if (http2 != null) {
+				http2.close();
+			}
 			if (sardine != null) {
 				sardine.shutdown();
 			}
@@ -256,6 +1437,112 @@ public class OpenCloudClient {
 		}
 	}
 	
+	/**
+	 * SardineImpl mit öffentlichem Zugriff auf execute(), um eigene Requests
+	 * (z.B. PROPFIND mit Streaming-Parser) über denselben Client und Auth-Kontext zu senden.
+	 */
+	private static class OpenCloudSardine extends SardineImpl {
+		OpenCloudSardine(HttpClientBuilder builder, String user, String password) {
+			super(builder, user, password);
+		}
+
+		@Override
+		public <T> T execute(HttpRequestBase request, ResponseHandler<T> responseHandler) throws IOException {
+			HedgeAttempt.register(request);
+			return super.execute(request, responseHandler);
+		}
+
+		@Override
+		public HttpResponse execute(HttpRequestBase request) throws IOException {
+			HedgeAttempt.register(request);
+			return super.execute(request);
+		}
+	}
+
+	/**
+	 * Erzeugt den gemeinsamen Connection-Pool. Alle TLS-Verbindungen nutzen denselben
+	 * SSLContext, damit abgebrochene Verbindungen per Session-Resumption schnell neu aufgebaut werden.
+	 */
+	private static PoolingHttpClientConnectionManager createConnectionManager(HttpSettings settings) {
+		SSLContext sslContext = SSLContexts.createDefault();
+		sslContext.getClientSessionContext().setSessionCacheSize(settings.tlsSessionCacheSize());
+		sslContext.getClientSessionContext().setSessionTimeout(settings.tlsSessionTimeoutSec());
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(sslContext, SSLConnectionSocketFactory.getDefaultHostnameVerifier()))
+				.build();
+		PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(registry);
+		cm.setMaxTotal(settings.maxConnections());
+		cm.setDefaultMaxPerRoute(settings.maxConnectionsPerRoute());
+		// Keine Prüfung unbenutzter Verbindungen beim Ausleihen: HttpClient 4 liest dabei unter der Pool-Sperre
+		// vom Socket, was mit virtuellen Threads (OpenCloudAsyncClient, Hedging) den Träger-Thread blockiert und den Pool
+		// verklemmen kann. Veraltete Verbindungen räumt evictIdleConnections ab; trifft ein Request trotzdem
+		// eine vom Server geschlossene Verbindung (NoHttpResponseException), wiederholt limited() ihn.
+		cm.setValidateAfterInactivity(0);
+		return cm;
+	}
+
+	/**
+	 * Baut den HttpClientBuilder mit den gleichen Defaults wie SardineImpl (Redirects, Expect-Continue),
+	 * aber mit eigenem Pool, Timeouts und Keep-Alive.
+	 */
+	private static HttpClientBuilder createHttpClientBuilder(PoolingHttpClientConnectionManager cm, HttpSettings settings, AdaptiveLimiter limiter) {
+		ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+			long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return serverKeepAlive > 0 ? serverKeepAlive : settings.keepAliveMs();
+		};
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setExpectContinueEnabled(true)
+				.setConnectTimeout(settings.connectTimeoutMs())
+				.setConnectionRequestTimeout(settings.connectTimeoutMs())
+				.setSocketTimeout(settings.socketTimeoutMs())
+				.build();
+		// Multistatus-Antworten komprimiert anfordern; Datei-Downloads bleiben unkomprimiert
+		HttpRequestInterceptor acceptGzipForListings = (request, context) -> {
+			String method = request.getRequestLine().getMethod();
+			if ("PROPFIND".equals(method) || "REPORT".equals(method)) {
+				request.setHeader("Accept-Encoding", "gzip,deflate");
+			}
+		};
+		// Überlast sofort an den Limiter melden, auch für Requests, die der Aufrufer selbst auswertet (TUS)
+		HttpResponseInterceptor reportOverload = (response, context) -> {
+			if (AdaptiveLimiter.isOverloadStatus(response.getStatusLine().getStatusCode())) {
+				Header retryAfter = response.getFirstHeader("Retry-After");
+				limiter.onOverload(AdaptiveLimiter.parseRetryAfter(retryAfter != null ? retryAfter.getValue() : null));
+			}
+		};
+		return HttpClients.custom()
+				.disableContentCompression()
+				.addInterceptorLast(acceptGzipForListings)
+				.addInterceptorLast(reportOverload)
+				.addInterceptorLast(new ResponseContentEncoding())
+				.setUserAgent("opencloud-sync")
+				.setRedirectStrategy(new SardineRedirectStrategy())
+				.setDefaultRequestConfig(requestConfig)
+				.setConnectionManager(cm)
+				.setKeepAliveStrategy(keepAlive)
+				.evictIdleConnections(settings.keepAliveMs(), TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Entfernt einen Pfad und alle Unterverzeichnisse aus dem Verzeichnis-Cache.
+	 */
+	private void forgetDirectories(String path) {
+		String norm = normalizePath(path);
+		knownDirectories.removeIf(dir -> dir.equals(norm) || dir.startsWith(norm + "/"));
+	}
+	
+	/**
+	 * Normalisiert einen relativen Pfad für den Verzeichnis-Cache (ohne führenden und abschließenden Slash).
+	 */
+	private static String normalizePath(String path) {
+		if (path == null) {
+			return "";
+		}
+		String result = path.startsWith("/") ? path.substring(1) : path;
+		return result.endsWith("/") ? result.substring(0, result.length() - 1) : result;
+	}
+	
 	/**
 	 * Hilfsmethode zum Erstellen des vollständigen Pfads
 	 * 
@@ -17,11 +17,7 @@ public class OpenCloudClientReadOnlyExample {
 			OpenCloudConfig config = new OpenCloudConfig();
 			
 			// Client erstellen
-			OpenCloudClient client = new OpenCloudClient(
-				config.getServerUrl(), 
-				config.getUsername(), 
-				config.getPassword()
-			);
+			OpenCloudClient client = new OpenCloudClient(config);
 			
 			try {
 			// Beispiel 1: Dateien auflisten
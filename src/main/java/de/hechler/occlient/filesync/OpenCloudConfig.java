@@ -17,6 +17,8 @@ public class OpenCloudConfig {
     // Standard-Dateiname im Home-Verzeichnis des Users
     private static final String DEFAULT_CONFIG_FILE = "opencloud-downloader.properties";
     
+    private static final long MB = 1024L * 1024L;
+    
     private final Properties properties;
     
     /**
@@ -116,6 +118,85 @@ public class OpenCloudConfig {
     }
     
 
+    /**
+     * Liest die optionalen HTTP-Einstellungen (http.*) für den Connection-Pool.
+     * Mit http.version=2 wird der HTTP/2-Transport verwendet, mit http.hedgePercentile (z.B. 95)
+     * werden langsame listFiles/exists-Requests dupliziert.
+     * Nicht gesetzte Werte werden mit den Defaults aus {@link OpenCloudClient.HttpSettings#DEFAULTS} belegt.
+     * 
+     * @return Die HTTP-Einstellungen
+     */
+    public OpenCloudClient.HttpSettings getHttpSettings() {
+        OpenCloudClient.HttpSettings d = OpenCloudClient.HttpSettings.DEFAULTS;
+        return new OpenCloudClient.HttpSettings(
+            getIntProperty("http.maxConnections", d.maxConnections()),
+            getIntProperty("http.maxConnectionsPerRoute", d.maxConnectionsPerRoute()),
+            getIntProperty("http.connectTimeoutMs", d.connectTimeoutMs()),
+            getIntProperty("http.socketTimeoutMs", d.socketTimeoutMs()),
+            getIntProperty("http.keepAliveMs", (int) d.keepAliveMs()),
+            getIntProperty("http.tlsSessionCacheSize", d.tlsSessionCacheSize()),
+            getIntProperty("http.tlsSessionTimeoutSec", d.tlsSessionTimeoutSec()),
+            "2".equals(getProperty("http.version", d.http2() ? "2" : "1.1").trim()),
+            getIntProperty("http.hedgePercentile", d.hedgePercentile())
+        );
+    }
+
+    /**
+     * Liest die optionalen Einstellungen (upload.*, download.*) für die Übertragung großer Dateien,
+     * und den Bulk-Upload kleiner Dateien.
+     * Nicht gesetzte Werte werden mit den Defaults aus {@link OpenCloudClient.TransferSettings#DEFAULTS} belegt.
+     * 
+     * @return Die Übertragungs-Einstellungen
+     */
+    public OpenCloudClient.TransferSettings getTransferSettings() {
+        OpenCloudClient.TransferSettings d = OpenCloudClient.TransferSettings.DEFAULTS;
+        return new OpenCloudClient.TransferSettings(
+            getIntProperty("upload.chunkThresholdMb", (int) (d.thresholdBytes() / MB)) * MB,
+            getIntProperty("upload.chunkSizeMb", (int) (d.chunkSize() / MB)) * (int) MB,
+            getIntProperty("upload.parallelChunks", d.parallelUploads()),
+            getProperty("upload.stateDir", d.stateDir()),
+            getIntProperty("download.segmentThresholdMb", (int) (d.segmentThresholdBytes() / MB)) * MB,
+            getIntProperty("download.parallelSegments", d.parallelDownloads()),
+            getIntProperty("upload.bulkMaxFiles", d.bulkMaxFiles()),
+            getIntProperty("upload.bulkMaxMb", (int) (d.bulkMaxBytes() / MB)) * MB,
+            getIntProperty("upload.bulkFileMaxKb", (int) (d.bulkFileMaxBytes() / 1024)) * 1024L
+        );
+    }
+
+    /**
+     * Liest die optionalen Einstellungen (sync.*) für den Abgleich von Ordnern: Parallelität und Prüfsummen-Cache.
+     * Nicht gesetzte Werte werden mit den Defaults aus {@link FolderSync.Settings#DEFAULTS} belegt.
+     * 
+     * @return Die Sync-Einstellungen
+     */
+    public FolderSync.Settings getSyncSettings() {
+        FolderSync.Settings d = FolderSync.Settings.DEFAULTS;
+        return new FolderSync.Settings(
+            getIntProperty("sync.workers", d.workers()),
+            getIntProperty("sync.checksumCacheEntries", d.checksumCacheEntries())
+        );
+    }
+
+    /**
+     * Holt einen optionalen Integer-Wert aus der Konfiguration
+     * 
+     * @param key Der Schlüssel
+     * @param defaultValue Der Standardwert, wenn der Schlüssel nicht existiert
+     * @return Der Wert oder defaultValue
+     * @throws RuntimeException wenn der Wert keine Zahl ist
+     */
+    public int getIntProperty(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Ungültiger Zahlenwert für " + key + ": " + value, e);
+        }
+    }
+
     /**
      * Holt einen optionalen Wert aus der Konfiguration
      * 
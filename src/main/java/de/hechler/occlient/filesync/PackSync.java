@@ -0,0 +1,621 @@
+package de.hechler.occlient.filesync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synchronisation eines Ordners im Pack-Modus (Option pack in der Sync-Config), für Bäume mit
+ * zehntausenden kleiner Dateien wie ein JDK.
+ *
+ * Statt jede Datei einzeln zu übertragen, werden die Dateien zu Segmenten (ZIP-Archiven) gebündelt.
+ * Der Name eines Segments ist der SHA-256 seines Inhaltsverzeichnisses (Pfad, Größe und MD5 jeder
+ * Datei), dazu kommt ein Index aller Dateien und Verzeichnisse. Auf dem Server liegen nur
+ *
+ * <pre>
+ *   remoteFolder/pack-index.gz
+ *   remoteFolder/segments/&lt;sha256&gt;.zip
+ * </pre>
+ *
+ * Die Segmentgrenzen liegen nach Dateien, deren Pfad-Hash sie auswählt; eine geänderte Datei ändert dann
+ * nur ihr eigenes Segment. Zusätzlich wird ein Segment bei SEGMENT_MAX_BYTES abgeschnitten. Diese
+ * Schnitte hängen von den Größen ab: ändert sich die Größe einer Datei in einem Abschnitt, der die
+ * Obergrenze überschreitet, verschieben sich alle Größen-Schnitte nach ihr bis zur nächsten Hash-Grenze,
+ * und mehrere Segmente werden neu übertragen. Der Uploader lädt nur Segmente hoch, die auf dem Server
+ * noch fehlen, der Downloader nur Segmente mit lokal fehlenden oder geänderten Dateien und entpackt
+ * daraus nur diese Dateien.
+ *
+ * Mit Passphrase werden Index und Segmente verschlüsselt übertragen.
+ *
+ * Die MD5 lokaler Dateien kommt aus dem bisherigen Index oder dem {@link ChecksumCache}. Eine lokal nur
+ * berührte Datei (gleiche Größe, andere mtime) wird beim Download daher über ihre MD5 erkannt und nicht
+ * neu geladen.
+ */
+public class PackSync {
+
+	private static final String INDEX_NAME = "pack-index.gz";
+	private static final String SEGMENTS_DIR = "segments";
+	private static final String SEGMENT_SUFFIX = ".zip";
+	private static final String INDEX_HEADER = "ocpack 1";
+	private static final String TMP_SUFFIX = ".tmp";
+	// Dateien ab dieser Größe kommen in ein eigenes Segment
+	private static final long SMALL_FILE_MAX_BYTES = 1024 * 1024;
+	// im Mittel beendet jede n-te Datei ein Segment (nach dem Hash ihres Pfads)
+	private static final int FILES_PER_SEGMENT = 512;
+	private static final long SEGMENT_MAX_BYTES = 32L * 1024 * 1024;
+	// so viele neue Segmente werden gleichzeitig gepackt und hochgeladen
+	private static final int UPLOAD_BATCH = 8;
+
+	private final OpenCloudClient client;
+	private final ChecksumCache checksums;
+
+	public PackSync(OpenCloudClient client) {
+		this(client, ChecksumCache.load(client.getTransferSettings().stateDir(), FolderSync.Settings.DEFAULTS.checksumCacheEntries()));
+	}
+
+	/**
+	 * @param checksums Der mit {@link FolderSync} geteilte Prüfsummen-Cache
+	 */
+	public PackSync(OpenCloudClient client, ChecksumCache checksums) {
+		this.client = client;
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Eine Datei im Index; Pfade sind relativ zum Mapping und mit "/" getrennt.
+	 */
+	private record FileEntry(String path, long size, long mtime, String md5, String segment) {}
+
+	private record Index(List<String> dirs, List<FileEntry> files) {}
+
+	/**
+	 * Packt den lokalen Ordner und aktualisiert Segmente und Index auf dem Server.
+	 * Remote-Einträge außer Index und Segmenten werden gelöscht.
+	 */
+	public void upload(String localFolder, String remoteFolder, List<PathMatcher> ignorePatterns, String encryptPassphrase) {
+		System.out.println("Packing local folder '" + localFolder + "' to remote folder '" + remoteFolder + "'");
+		Path localPath = Paths.get(localFolder);
+		if (!Files.isDirectory(localPath)) {
+			System.out.println("  Local folder does not exist: " + localFolder + " -> deleting remote if exists");
+			try {
+				if (client.exists(remoteFolder)) {
+					client.delete(remoteFolder);
+				}
+			} catch (Exception e) {
+				System.err.println("  Error deleting remote folder " + remoteFolder + ": " + e.getMessage());
+			}
+			return;
+		}
+		String segmentsFolder = childPath(remoteFolder, SEGMENTS_DIR);
+		try {
+			client.createDirectories(segmentsFolder);
+		} catch (Exception e) {
+			throw new RuntimeException("Fehler beim Sicherstellen des Remote-Ordners: " + segmentsFolder, e);
+		}
+
+		// MD5 aus dem bisherigen Index übernehmen, wenn Größe und Zeitstempel unverändert sind
+		Map<String, FileEntry> previous = new HashMap<>();
+		Index oldIndex = readIndex(remoteFolder, encryptPassphrase);
+		if (oldIndex != null) {
+			for (FileEntry e : oldIndex.files()) {
+				previous.put(e.path(), e);
+			}
+		}
+		List<String> dirs = new ArrayList<>();
+		List<FileEntry> files = new ArrayList<>();
+		try {
+			scan(localPath, "", ignorePatterns, dirs, files, previous);
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Lesen des lokalen Ordners: " + localPath, e);
+		} finally {
+			checksums.save();
+		}
+		files.sort(Comparator.comparing(FileEntry::path));
+		dirs.sort(Comparator.naturalOrder());
+
+		Set<String> existing = new HashSet<>();
+		for (OpenCloudClient.FileInfo fi : client.listFiles(segmentsFolder)) {
+			existing.add(fi.name());
+		}
+		List<FileEntry> indexed = new ArrayList<>();
+		List<List<FileEntry>> missing = new ArrayList<>();
+		Set<String> referenced = new HashSet<>();
+		for (List<FileEntry> group : segment(files)) {
+			String id = segmentId(group);
+			List<FileEntry> withId = new ArrayList<>();
+			for (FileEntry e : group) {
+				withId.add(new FileEntry(e.path(), e.size(), e.mtime(), e.md5(), id));
+			}
+			indexed.addAll(withId);
+			if (referenced.add(id + SEGMENT_SUFFIX) && !existing.contains(id + SEGMENT_SUFFIX)) {
+				missing.add(withId);
+			}
+		}
+		System.out.println("  " + files.size() + " files in " + referenced.size() + " segments, " + missing.size() + " to upload");
+		uploadSegments(localPath, segmentsFolder, missing, encryptPassphrase);
+		// erst wenn alle Segmente vorhanden sind, auf den neuen Index umschalten
+		writeIndex(remoteFolder, new Index(dirs, indexed), encryptPassphrase);
+
+		for (String name : existing) {
+			if (!referenced.contains(name)) {
+				deleteQuietly(childPath(segmentsFolder, name));
+			}
+		}
+		for (OpenCloudClient.FileInfo fi : client.listFiles(remoteFolder)) {
+			if (!fi.name().equals(INDEX_NAME) && !fi.name().equals(SEGMENTS_DIR)) {
+				deleteQuietly(childPath(remoteFolder, fi.name()));
+			}
+		}
+	}
+
+	/**
+	 * Bringt den lokalen Ordner auf den Stand des Index auf dem Server. Nur Segmente mit fehlenden oder
+	 * geänderten Dateien werden heruntergeladen; lokale Einträge, die nicht im Index stehen, werden gelöscht.
+	 * Konnte ein Segment nicht geladen werden, wird nichts gelöscht und eine Exception geworfen.
+	 */
+	public void download(String localFolder, String remoteFolder, List<PathMatcher> ignorePatterns, String decryptPassphrase) {
+		System.out.println("Unpacking remote folder '" + remoteFolder + "' to local folder '" + localFolder + "'");
+		Index index = readIndex(remoteFolder, decryptPassphrase);
+		if (index == null) {
+			throw new RuntimeException("Kein Pack-Index im Remote-Ordner: " + remoteFolder);
+		}
+		Path localPath = Paths.get(localFolder).toAbsolutePath().normalize();
+		Set<String> dirs = new HashSet<>();
+		Set<String> files = new HashSet<>();
+		Set<String> segments = new HashSet<>();
+		Map<String, List<FileEntry>> needed = new LinkedHashMap<>();
+		try {
+			Files.createDirectories(localPath);
+			for (String dir : index.dirs()) {
+				if (!isIgnored(dir, ignorePatterns)) {
+					dirs.add(dir);
+					Files.createDirectories(resolve(localPath, dir));
+				}
+			}
+			for (FileEntry e : index.files()) {
+				if (isIgnored(e.path(), ignorePatterns)) {
+					continue;
+				}
+				files.add(e.path());
+				segments.add(e.segment());
+				if (!isUpToDate(resolve(localPath, e.path()), e)) {
+					needed.computeIfAbsent(e.segment(), s -> new ArrayList<>()).add(e);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Konnte lokalen Ordner nicht erstellen: " + localFolder, e);
+		} finally {
+			checksums.save();
+		}
+		System.out.println("  " + files.size() + " files in " + segments.size() + " segments, " + needed.size() + " to download");
+
+		int failed = downloadSegments(childPath(remoteFolder, SEGMENTS_DIR), needed, localPath, decryptPassphrase);
+		if (failed > 0) {
+			// unvollständig: lokale Dateien könnten noch gebraucht werden, etwa nach einem Umbenennen
+			throw new RuntimeException(failed + " Segmente konnten nicht heruntergeladen werden, lokale Einträge nicht bereinigt");
+		}
+
+		try {
+			deleteUnknown(localPath, "", dirs, files, ignorePatterns);
+		} catch (IOException e) {
+			System.err.println("  Fehler beim Auflisten des lokalen Ordners: " + localPath + " - " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Lädt die Segmente über einen {@link OpenCloudAsyncClient}, höchstens so viele gleichzeitig wie der Client
+	 * Verbindungen hat, jeweils in eine Temp-Datei und entpackt daraus die benötigten Dateien.
+	 *
+	 * @return die Anzahl der Segmente, die nicht geladen oder nicht vollständig entpackt werden konnten
+	 */
+	private int downloadSegments(String segmentsFolder, Map<String, List<FileEntry>> needed, Path localPath, String decryptPassphrase) {
+		Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+		try (OpenCloudAsyncClient async = new OpenCloudAsyncClient(client, client.getMaxConnections())) {
+			for (Map.Entry<String, List<FileEntry>> segment : needed.entrySet()) {
+				String remotePath = childPath(segmentsFolder, segment.getKey() + SEGMENT_SUFFIX);
+				Path tmp;
+				try {
+					tmp = Files.createTempFile("ocpack", SEGMENT_SUFFIX);
+				} catch (IOException e) {
+					throw new RuntimeException("Fehler beim Anlegen einer Temp-Datei für " + remotePath, e);
+				}
+				System.out.println("  Downloading segment: " + remotePath + " (" + segment.getValue().size() + " files)");
+				futures.put(remotePath, async.downloadFile(remotePath, tmp).thenRun(() -> {
+					try {
+						unpackSegment(tmp, remotePath, segment.getValue(), localPath, decryptPassphrase);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}).whenComplete((result, error) -> {
+					try {
+						Files.deleteIfExists(tmp);
+					} catch (IOException e) {
+						System.err.println("  Fehler beim Löschen der Temp-Datei: " + tmp + " - " + e.getMessage());
+					}
+				}));
+			}
+		}
+		int failed = 0;
+		for (Map.Entry<String, CompletableFuture<Void>> future : futures.entrySet()) {
+			try {
+				future.getValue().join();
+			} catch (CompletionException e) {
+				System.err.println("  Fehler beim Herunterladen des Segments " + future.getKey() + ": " + e.getCause().getMessage());
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	private void scan(Path dir, String relPath, List<PathMatcher> ignorePatterns, List<String> dirs, List<FileEntry> files, Map<String, FileEntry> previous) throws IOException {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				if (checkIgnore(name, ignorePatterns)) {
+					continue;
+				}
+				String rel = relPath.isEmpty() ? name : relPath + "/" + name;
+				if (Files.isDirectory(p)) {
+					dirs.add(rel);
+					scan(p, rel, ignorePatterns, dirs, files, previous);
+				} else if (Files.isRegularFile(p)) {
+					long size = Files.size(p);
+					long mtime = Files.getLastModifiedTime(p).toMillis();
+					FileEntry prev = previous.get(rel);
+					String md5 = prev != null && prev.size() == size && prev.mtime() == mtime ? prev.md5() : checksums.get(p, "md5", null, () -> ChecksumUtil.calculateMD5(p));
+					if (md5 == null) {
+						System.err.println("  Fehler beim Lesen der lokalen Datei: " + p);
+						continue;
+					}
+					files.add(new FileEntry(rel, size, mtime, md5, null));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Teilt die nach Pfad sortierten Dateien in Segmente. Ein Segment endet nach einer Datei, deren
+	 * Pfad-Hash durch FILES_PER_SEGMENT teilbar ist, oder wenn es SEGMENT_MAX_BYTES erreicht;
+	 * große Dateien bilden ein eigenes Segment. Nur die Hash-Grenzen sind unabhängig von den Größen,
+	 * ein Größen-Schnitt verschiebt sich mit den Größen der Dateien vor ihm seit der letzten Hash-Grenze.
+	 */
+	private static List<List<FileEntry>> segment(List<FileEntry> files) {
+		List<List<FileEntry>> segments = new ArrayList<>();
+		List<FileEntry> current = new ArrayList<>();
+		long bytes = 0;
+		for (FileEntry e : files) {
+			if (e.size() >= SMALL_FILE_MAX_BYTES) {
+				segments.add(List.of(e));
+				continue;
+			}
+			current.add(e);
+			bytes += e.size();
+			if (bytes >= SEGMENT_MAX_BYTES || Math.floorMod(e.path().hashCode(), FILES_PER_SEGMENT) == 0) {
+				segments.add(current);
+				current = new ArrayList<>();
+				bytes = 0;
+			}
+		}
+		if (!current.isEmpty()) {
+			segments.add(current);
+		}
+		return segments;
+	}
+
+	private static String segmentId(List<FileEntry> group) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (FileEntry e : group) {
+				md.update((e.path() + "\t" + e.size() + "\t" + e.md5() + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			return HexFormat.of().formatHex(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 nicht verfügbar", e);
+		}
+	}
+
+	private void uploadSegments(Path localPath, String segmentsFolder, List<List<FileEntry>> segments, String encryptPassphrase) {
+		int failed = 0;
+		for (int start = 0; start < segments.size(); start += UPLOAD_BATCH) {
+			List<Path> temps = new ArrayList<>();
+			try {
+				List<OpenCloudClient.UploadRequest> uploads = new ArrayList<>();
+				for (List<FileEntry> group : segments.subList(start, Math.min(segments.size(), start + UPLOAD_BATCH))) {
+					Path tmp = Files.createTempFile("ocpack", SEGMENT_SUFFIX);
+					temps.add(tmp);
+					writeSegment(localPath, group, tmp);
+					String remotePath = childPath(segmentsFolder, group.get(0).segment() + SEGMENT_SUFFIX);
+					System.out.println("  Uploading segment: " + remotePath + " (" + group.size() + " files)");
+					uploads.add(new OpenCloudClient.UploadRequest(remotePath, tmp, encryptPassphrase, System.currentTimeMillis()));
+				}
+				Map<String, RuntimeException> errors = client.uploadFiles(uploads);
+				for (Map.Entry<String, RuntimeException> error : errors.entrySet()) {
+					System.err.println("  Fehler beim Hochladen des Segments " + error.getKey() + ": " + error.getValue().getMessage());
+				}
+				failed += errors.size();
+			} catch (IOException e) {
+				throw new RuntimeException("Fehler beim Packen der Segmente: " + localPath, e);
+			} finally {
+				for (Path tmp : temps) {
+					try {
+						Files.deleteIfExists(tmp);
+					} catch (IOException e) {
+						System.err.println("  Fehler beim Löschen der Temp-Datei: " + tmp + " - " + e.getMessage());
+					}
+				}
+			}
+		}
+		if (failed > 0) {
+			// der alte Index bleibt gültig, da er nur vorhandene Segmente referenziert
+			throw new RuntimeException(failed + " Segmente konnten nicht hochgeladen werden, Index nicht aktualisiert");
+		}
+	}
+
+	private static void writeSegment(Path localPath, List<FileEntry> group, Path target) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(target))) {
+			for (FileEntry e : group) {
+				ZipEntry entry = new ZipEntry(e.path());
+				entry.setTime(e.mtime());
+				zip.putNextEntry(entry);
+				Files.copy(localPath.resolve(e.path()), zip);
+				zip.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Entpackt die gewünschten Dateien aus einem heruntergeladenen Segment.
+	 *
+	 * @throws IOException auch wenn eine Datei im Segment fehlt oder ihre MD5 nicht zum Index passt
+	 */
+	private void unpackSegment(Path segmentFile, String remotePath, List<FileEntry> wanted, Path localPath, String decryptPassphrase) throws IOException {
+		Map<String, FileEntry> byPath = new HashMap<>();
+		for (FileEntry e : wanted) {
+			byPath.put(e.path(), e);
+		}
+		int mismatches = 0;
+		try (InputStream raw = Files.newInputStream(segmentFile);
+				ZipInputStream zip = new ZipInputStream(decryptPassphrase != null ? new DecryptedInputStream(raw, decryptPassphrase) : raw)) {
+			ZipEntry entry;
+			while (!byPath.isEmpty() && (entry = zip.getNextEntry()) != null) {
+				FileEntry e = byPath.remove(entry.getName());
+				if (e != null && !extract(zip, resolve(localPath, e.path()), e)) {
+					mismatches++;
+				}
+			}
+		}
+		for (String path : byPath.keySet()) {
+			System.err.println("  Datei fehlt im Segment " + remotePath + ": " + path);
+		}
+		if (mismatches > 0 || !byPath.isEmpty()) {
+			throw new IOException((mismatches + byPath.size()) + " Dateien fehlen im Segment oder passen nicht zum Index");
+		}
+	}
+
+	/**
+	 * @return false, wenn die MD5 des Inhalts nicht zum Index passt; die lokale Datei bleibt dann unverändert
+	 */
+	private static boolean extract(InputStream in, Path target, FileEntry e) throws IOException {
+		Path tmp = target.resolveSibling(target.getFileName().toString() + TMP_SUFFIX);
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException("MD5 nicht verfügbar", ex);
+		}
+		if (Files.isDirectory(target)) {
+			// conflict: local is dir, remote is file -> delete local dir
+			deleteRecursively(target);
+		}
+		Files.createDirectories(target.getParent());
+		// Files.copy schließt den Stream nicht, der ZipInputStream bleibt für die nächsten Einträge offen
+		Files.copy(new DigestInputStream(in, md), tmp, StandardCopyOption.REPLACE_EXISTING);
+		if (!HexFormat.of().formatHex(md.digest()).equalsIgnoreCase(e.md5())) {
+			Files.deleteIfExists(tmp);
+			System.err.println("  MD5 stimmt nicht mit dem Index überein: " + target);
+			return false;
+		}
+		try {
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException moveEx) {
+			// fallback if atomic move not supported
+			Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Files.setLastModifiedTime(target, FileTime.fromMillis(e.mtime()));
+		return true;
+	}
+
+	/**
+	 * Eine lokale Datei ist aktuell, wenn Größe und mtime zum Index passen. Bei gleicher Größe und anderer
+	 * mtime (etwa nur berührt) entscheidet die MD5; passt sie, wird nur die mtime aus dem Index übernommen.
+	 */
+	private boolean isUpToDate(Path target, FileEntry e) throws IOException {
+		if (!Files.isRegularFile(target) || Files.size(target) != e.size()) {
+			return false;
+		}
+		// allow small clock skew like FolderSync
+		if (Math.abs(Files.getLastModifiedTime(target).toMillis() - e.mtime()) < 1000) {
+			return true;
+		}
+		String md5 = checksums.get(target, "md5", null, () -> ChecksumUtil.calculateMD5(target));
+		if (md5 == null || !md5.equalsIgnoreCase(e.md5())) {
+			return false;
+		}
+		Files.setLastModifiedTime(target, FileTime.fromMillis(e.mtime()));
+		return true;
+	}
+
+	private void deleteUnknown(Path dir, String relPath, Set<String> dirs, Set<String> files, List<PathMatcher> ignorePatterns) throws IOException {
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p : ds) {
+				String name = p.getFileName().toString();
+				if (checkIgnore(name, ignorePatterns)) {
+					continue;
+				}
+				String rel = relPath.isEmpty() ? name : relPath + "/" + name;
+				if (Files.isDirectory(p) && dirs.contains(rel)) {
+					deleteUnknown(p, rel, dirs, files, ignorePatterns);
+				} else if (!files.contains(rel)) {
+					try {
+						deleteRecursively(p);
+						System.out.println("  Deleted local entry not present on remote: " + p);
+					} catch (IOException e) {
+						System.err.println("  Fehler beim Löschen lokaler Datei/Verzeichnis: " + p + " - " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Liest den Index vom Server.
+	 *
+	 * @return der Index oder null, wenn noch keiner existiert
+	 */
+	private Index readIndex(String remoteFolder, String passphrase) {
+		String indexPath = childPath(remoteFolder, INDEX_NAME);
+		if (!client.exists(indexPath)) {
+			return null;
+		}
+		List<String> dirs = new ArrayList<>();
+		List<FileEntry> files = new ArrayList<>();
+		try (InputStream raw = client.downloadFile(indexPath);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(
+						new GZIPInputStream(passphrase != null ? new DecryptedInputStream(raw, passphrase) : raw), StandardCharsets.UTF_8))) {
+			if (!INDEX_HEADER.equals(reader.readLine())) {
+				throw new IOException("Unbekanntes Format");
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("D\t")) {
+					dirs.add(line.substring(2));
+				} else if (line.startsWith("F\t")) {
+					// F <segment> <size> <mtime> <md5> <path>
+					String[] f = line.split("\t", 6);
+					files.add(new FileEntry(f[5], Long.parseLong(f[2]), Long.parseLong(f[3]), f[4], f[1]));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new RuntimeException("Fehler beim Lesen des Pack-Index: " + indexPath, e);
+		}
+		return new Index(dirs, files);
+	}
+
+	private void writeIndex(String remoteFolder, Index index, String passphrase) {
+		String indexPath = childPath(remoteFolder, INDEX_NAME);
+		Path tmp = null;
+		try {
+			tmp = Files.createTempFile("ocpack", ".gz");
+			try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp));
+					BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+				writer.write(INDEX_HEADER + "\n");
+				for (String dir : index.dirs()) {
+					writer.write("D\t" + dir + "\n");
+				}
+				for (FileEntry e : index.files()) {
+					writer.write("F\t" + e.segment() + "\t" + e.size() + "\t" + e.mtime() + "\t" + e.md5() + "\t" + e.path() + "\n");
+				}
+			}
+			client.uploadFile(indexPath, tmp, passphrase, System.currentTimeMillis());
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Schreiben des Pack-Index: " + indexPath, e);
+		} finally {
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					System.err.println("  Fehler beim Löschen der Temp-Datei: " + tmp + " - " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void deleteQuietly(String remotePath) {
+		try {
+			client.delete(remotePath);
+			System.out.println("  Deleted remote entry not referenced by index: " + remotePath);
+		} catch (Exception e) {
+			System.err.println("  Error deleting remote entry " + remotePath + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Löst einen Pfad aus dem Index auf; Pfade, die aus dem lokalen Ordner herausführen, werden abgelehnt.
+	 */
+	private static Path resolve(Path localPath, String relPath) throws IOException {
+		Path target = localPath.resolve(relPath).normalize();
+		if (!target.startsWith(localPath) || target.equals(localPath)) {
+			throw new IOException("Ungültiger Pfad im Pack-Index: " + relPath);
+		}
+		return target;
+	}
+
+	private static boolean isIgnored(String relPath, List<PathMatcher> ignorePatterns) {
+		for (String name : relPath.split("/")) {
+			if (checkIgnore(name, ignorePatterns)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean checkIgnore(String name, List<PathMatcher> ignorePatterns) {
+		if (ignorePatterns == null) {
+			return false;
+		}
+		for (PathMatcher pattern : ignorePatterns) {
+			if (pattern.matches(Paths.get(name))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (DirectoryStream<Path> ds = Files.newDirectoryStream(path)) {
+				for (Path child : ds) {
+					deleteRecursively(child);
+				}
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+	private static String childPath(String remoteFolder, String name) {
+		return remoteFolder.endsWith("/") ? remoteFolder + name : remoteFolder + "/" + name;
+	}
+
+}
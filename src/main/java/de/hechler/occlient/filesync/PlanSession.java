@@ -0,0 +1,106 @@
+package de.hechler.occlient.filesync;
+
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Führt die Mappings eines Laufs je nach {@link SyncPlan.Options} aus: direkt synchronisieren, nur planen
+ * und ausgeben (--dry-run), die Pläne in eine Datei schreiben (--plan-out) oder die Pläne aus einer Datei
+ * ausführen (--plan-in).
+ */
+public class PlanSession {
+
+	private final SyncPlan.Options options;
+	// gelesene Pläne bei --plan-in, sonst null
+	private final List<SyncPlan> loaded;
+	private final List<SyncPlan> planned = new ArrayList<>();
+
+	public PlanSession(SyncPlan.Options options) {
+		this.options = options;
+		this.loaded = options.planIn() != null ? SyncPlan.readAll(options.planIn()) : null;
+	}
+
+	/**
+	 * Prüft vor dem ersten Mapping, dass jeder Plan aus --plan-in zu einem (nicht gepackten) Mapping der
+	 * Konfiguration in derselben Richtung gehört. Ein Plan, der nicht mehr ausgeführt würde, bricht den Lauf ab,
+	 * bevor etwas geändert wird.
+	 *
+	 * @throws RuntimeException mit allen Plänen ohne Mapping
+	 */
+	public void checkMappings(boolean upload, List<SyncConfig.SyncEntry> mappings) {
+		if (loaded == null) {
+			return;
+		}
+		List<String> missing = new ArrayList<>();
+		for (SyncPlan plan : loaded) {
+			boolean found = false;
+			for (SyncConfig.SyncEntry sync : mappings) {
+				if (!sync.pack && plan.getLocalFolder().equals(sync.localFolder) && plan.getRemoteFolder().equals(sync.remoteFolder)) {
+					found = plan.isUpload() == upload;
+				}
+			}
+			if (!found) {
+				missing.add((plan.isUpload() ? "upload '" + plan.getLocalFolder() + "' -> '" + plan.getRemoteFolder() : "download '" + plan.getRemoteFolder() + "' -> '" + plan.getLocalFolder()) + "'");
+			}
+		}
+		if (!missing.isEmpty()) {
+			throw new RuntimeException("Pläne in " + options.planIn() + " ohne passendes Mapping in der Konfiguration: " + missing);
+		}
+	}
+
+	/**
+	 * @return true, wenn nicht einfach synchronisiert wird; Pack-Mappings lassen sich nicht planen und werden dann übersprungen
+	 */
+	public boolean isActive() {
+		return options.isActive();
+	}
+
+	public void upload(FolderSync folderSync, String remoteFolder, String localFolder, List<PathMatcher> ignorePatterns, String encryptPassphrase) {
+		if (!options.isActive()) {
+			folderSync.syncRemoteFolder(remoteFolder, localFolder, ignorePatterns, encryptPassphrase);
+			return;
+		}
+		SyncPlan plan = loaded != null ? SyncPlan.find(loaded, true, localFolder, remoteFolder)
+				: folderSync.planRemoteFolder(remoteFolder, localFolder, ignorePatterns, encryptPassphrase);
+		run(folderSync, plan, localFolder + " -> " + remoteFolder, encryptPassphrase);
+	}
+
+	public void download(FolderSync folderSync, String localFolder, String remoteFolder, List<PathMatcher> ignorePatterns, String decryptPassphrase) {
+		if (!options.isActive()) {
+			folderSync.syncLocalFolder(localFolder, remoteFolder, ignorePatterns, decryptPassphrase);
+			return;
+		}
+		SyncPlan plan = loaded != null ? SyncPlan.find(loaded, false, localFolder, remoteFolder)
+				: folderSync.planLocalFolder(localFolder, remoteFolder, ignorePatterns, decryptPassphrase);
+		run(folderSync, plan, remoteFolder + " -> " + localFolder, decryptPassphrase);
+	}
+
+	private void run(FolderSync folderSync, SyncPlan plan, String mapping, String passphrase) {
+		if (plan == null) {
+			System.err.println("No plan for mapping " + mapping + " in " + options.planIn() + ", skipped");
+			return;
+		}
+		if (loaded == null || options.dryRun()) {
+			plan.print(System.out);
+		}
+		if (loaded == null) {
+			if (options.planOut() != null) {
+				planned.add(plan);
+			}
+		} else if (!options.dryRun() && !folderSync.execute(plan, passphrase)) {
+			System.err.println("Plan for mapping " + mapping + " executed incompletely");
+		}
+	}
+
+	/**
+	 * Schreibt die Pläne aller Mappings, falls --plan-out angegeben ist.
+	 */
+	public void finish() {
+		if (options.planOut() != null) {
+			SyncPlan.writeAll(options.planOut(), planned);
+			System.out.println("Plan written to " + options.planOut());
+		}
+	}
+
+}
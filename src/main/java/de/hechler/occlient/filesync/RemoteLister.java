@@ -0,0 +1,86 @@
+package de.hechler.occlient.filesync;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Listet Remote-Verzeichnisse (PROPFIND mit Depth 1) vorausschauend im Hintergrund, während der Sync
+ * noch das vorherige Verzeichnis vergleicht und überträgt.
+ *
+ * Höchstens maxPending Listings werden vorab gelesen und aufgehoben; ist das Limit erreicht, wird ein
+ * Verzeichnis erst beim Abruf gelistet. So bleibt der Speicher auch bei sehr großen Bäumen begrenzt,
+ * anders als beim Listen des ganzen Baums vorab.
+ *
+ * Damit ersetzt der RemoteLister für FolderSync das Listing mit einem PROPFIND (Depth: infinity) aus
+ * {@link OpenCloudClient#listTree(String)}: dessen Antwort lässt sich nicht verzeichnisweise abschließen,
+ * solange der Server die Reihenfolge der Einträge nicht zusichert, und müsste deshalb komplett im Speicher
+ * liegen. listTree bleibt für Aufrufer, die den ganzen Baum auf einmal brauchen (z.B.
+ * {@link OpenCloudAsyncClient#listTree(String)}).
+ */
+public class RemoteLister implements AutoCloseable {
+
+	private final OpenCloudClient client;
+	private final ExecutorService executor;
+	private final Semaphore pending;
+	private final Map<String, CompletableFuture<List<OpenCloudClient.FileInfo>>> prefetched = new ConcurrentHashMap<>();
+
+	/**
+	 * @param client      Der Client für die Listings
+	 * @param parallelism Anzahl gleichzeitiger Listings im Hintergrund
+	 * @param maxPending  Anzahl vorab gelesener, noch nicht abgerufener Listings
+	 */
+	public RemoteLister(OpenCloudClient client, int parallelism, int maxPending) {
+		this.client = client;
+		this.pending = new Semaphore(maxPending);
+		AtomicInteger threadCount = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r, "sync-lister-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Startet das Listing eines Verzeichnisses im Hintergrund, sofern das Limit es zulässt.
+	 */
+	public void prefetch(String path) {
+		if (prefetched.containsKey(path) || !pending.tryAcquire()) {
+			return;
+		}
+		prefetched.put(path, CompletableFuture.supplyAsync(() -> client.listFiles(path), executor));
+	}
+
+	/**
+	 * Liefert die Einträge eines Verzeichnisses, vorab gelesen oder sonst sofort gelistet.
+	 */
+	public List<OpenCloudClient.FileInfo> list(String path) {
+		CompletableFuture<List<OpenCloudClient.FileInfo>> listing = prefetched.remove(path);
+		if (listing == null) {
+			return client.listFiles(path);
+		}
+		pending.release();
+		try {
+			return listing.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException re) {
+				throw re;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+}
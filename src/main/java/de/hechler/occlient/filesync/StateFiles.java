@@ -0,0 +1,52 @@
+package de.hechler.occlient.filesync;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Crash-sicheres Schreiben der Dateien im Status-Verzeichnis (upload.stateDir), gemeinsam für
+ * {@link LocalIndex}, {@link EtagStore} und {@link ChecksumCache}.
+ *
+ * Der neue Inhalt wird in eine Temp-Datei neben dem Ziel geschrieben, auf die Platte gebracht (fsync) und
+ * dann per atomarem Move über die alte Datei gelegt, so dass nach einem Absturz entweder der alte oder der
+ * neue Stand vollständig vorliegt. Nur wo das Dateisystem keinen atomaren Move kann, wird einfach ersetzt.
+ */
+final class StateFiles {
+
+	/**
+	 * Schreibt den Inhalt einer Status-Datei.
+	 */
+	@FunctionalInterface
+	interface Content {
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	private StateFiles() {}
+
+	/**
+	 * Ersetzt die Datei durch den neuen Inhalt; das Verzeichnis wird bei Bedarf angelegt.
+	 */
+	static void replace(Path file, Content content) throws IOException {
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+			BufferedOutputStream buffered = new BufferedOutputStream(out);
+			content.writeTo(buffered);
+			buffered.flush();
+			// on disk before the move, so a crash never leaves a truncated file in place
+			out.getFD().sync();
+		}
+		try {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException moveEx) {
+			// fallback if atomic move not supported
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
@@ -34,6 +34,8 @@ public class SyncConfig {
 		public String remoteFolder;
 		public SyncTransform transform;
 		public List<String> ignore;
+		// Dateien gebündelt als Segmente plus Index übertragen (siehe PackSync)
+		public boolean pack;
 		private List<PathMatcher> ignoreMatchers;
 		public List<PathMatcher> getIgnoreMatchers() {
 			if (ignoreMatchers == null) {
@@ -0,0 +1,301 @@
+package de.hechler.occlient.filesync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Manifest eines Remote-Ordners, das der Uploader am Ende von {@link FolderSync#syncRemoteFolder} veröffentlicht.
+ *
+ * Es enthält jedes Verzeichnis und jede Datei mit Größe, mtime, MD5 des Klartexts und MD5 des übertragenen
+ * (ggf. verschlüsselten) Inhalts sowie der ETag auf dem Server. Der Downloader kann damit seinen ganzen Lauf
+ * aus einem GET planen, statt den Baum per PROPFIND zu listen, und behält dabei seine ETags für Dateien und
+ * Verzeichnisse. Das Manifest liegt als remoteFolder/.ocsync-manifest.gz auf dem Server, mit Passphrase
+ * verschlüsselt; "-" steht für eine unbekannte ETag:
+ *
+ * <pre>
+ *   ocsync-manifest 2
+ *   D	&lt;etag&gt;	&lt;pfad&gt;
+ *   F	&lt;größe&gt;	&lt;mtime&gt;	&lt;md5 klartext&gt;	&lt;md5 übertragen&gt;	&lt;etag&gt;	&lt;pfad&gt;
+ * </pre>
+ *
+ * Manifeste im Format 1 ohne ETags werden weiter gelesen.
+ *
+ * Veraltet ist das Manifest, wenn der Remote-Ordner nach dem Manifest geändert wurde. Das erkennt der
+ * Downloader an der mtime des Ordners, die der Server (wie ownCloud/Nextcloud) bei jeder Änderung darunter
+ * hochsetzt, auch bei einem abgebrochenen Upload-Lauf, nach dem kein neues Manifest geschrieben wird.
+ */
+public class SyncManifest {
+
+	public static final String FILE_NAME = ".ocsync-manifest.gz";
+	private static final String HEADER = "ocsync-manifest 2";
+	private static final String HEADER_V1 = "ocsync-manifest 1";
+	// Manifest und Ordner werden im selben Request geändert, die mtimes haben nur Sekundenauflösung
+	private static final long MTIME_TOLERANCE_MS = 2000;
+
+	private final OpenCloudClient client;
+
+	public SyncManifest(OpenCloudClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Ein Eintrag des Manifests; Pfade sind relativ zum Mapping und mit "/" getrennt.
+	 *
+	 * @param size    Größe des Klartexts, bei Verzeichnissen 0
+	 * @param encMd5  MD5 des übertragenen Inhalts, ohne Verschlüsselung gleich plainMd5
+	 * @param etag    ETag auf dem Server oder null, wenn unbekannt
+	 */
+	public record Entry(String path, boolean isDirectory, long size, long mtime, String plainMd5, String encMd5, String etag) {}
+
+	/**
+	 * Beginnt ein neues Manifest, das während des Upload-Laufs Eintrag für Eintrag in eine Temp-Datei im
+	 * Status-Verzeichnis geschrieben wird. Der Speicherbedarf hängt daher nicht von der Größe des Baums ab.
+	 */
+	public Writer newWriter(String stateDir) {
+		try {
+			Path dir = Paths.get(stateDir);
+			Files.createDirectories(dir);
+			return new Writer(Files.createTempFile(dir, "manifest-", ".tmp"));
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Anlegen des Manifests in " + stateDir, e);
+		}
+	}
+
+	/**
+	 * Ein Manifest im Entstehen. {@link FolderSync#syncRemoteFolder} meldet jede Datei, sobald sie als
+	 * aktuell erkannt oder hochgeladen wurde, mit Größe, mtime und MD5-Werten aus dem {@link LocalIndex} und
+	 * der ETag aus dem Listing bzw. der Antwort des Uploads, und jedes Verzeichnis, sobald sein Teilbaum fertig
+	 * ist. Es wird also weder der lokale Ordner erneut durchlaufen noch der Remote-Ordner erneut gelistet.
+	 *
+	 * Die ETag eines Verzeichnisses aus dem Listing gilt nur, solange darunter nichts geändert wurde; für
+	 * Verzeichnisse mit Änderungen steht "-", damit der Downloader sie nicht für unverändert hält.
+	 * Die Reihenfolge der Einträge ist beliebig.
+	 */
+	public class Writer implements AutoCloseable {
+
+		private final Path file;
+		private final java.io.Writer out;
+		// Verzeichnisse mit Änderungen darunter, deren Teilbaum noch nicht fertig ist
+		private final Set<String> changedDirs = ConcurrentHashMap.newKeySet();
+		private volatile boolean changed;
+		private int count;
+		private boolean closed;
+
+		private Writer(Path file) throws IOException {
+			this.file = file;
+			this.out = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8);
+			out.write(HEADER + "\n");
+		}
+
+		/**
+		 * Merkt sich eine Änderung auf dem Server (Upload, Löschen, Anlegen, Verschieben) an einem Pfad;
+		 * die ETags seiner Elternverzeichnisse aus dem Listing gelten damit nicht mehr.
+		 */
+		public void changed(String relPath) {
+			changed = true;
+			for (int idx = relPath.lastIndexOf('/'); idx > 0; idx = relPath.lastIndexOf('/', idx - 1)) {
+				changedDirs.add(relPath.substring(0, idx));
+			}
+		}
+
+		/**
+		 * Nimmt ein Verzeichnis auf, nachdem sein ganzer Teilbaum abgeglichen ist.
+		 *
+		 * @param etag Die ETag aus dem Listing vor dem Abgleich oder null für ein neu angelegtes Verzeichnis
+		 */
+		public void directory(String relPath, String etag) {
+			line("D\t" + field(changedDirs.remove(relPath) ? null : etag) + "\t" + relPath);
+		}
+
+		/**
+		 * Nimmt eine Datei auf.
+		 *
+		 * @param size   Größe des Klartexts
+		 * @param encMd5 MD5 des übertragenen Inhalts, ohne Verschlüsselung gleich plainMd5
+		 * @param etag   ETag der Remote-Version oder null, wenn unbekannt
+		 */
+		public void file(String relPath, long size, long mtime, String plainMd5, String encMd5, String etag) {
+			line("F\t" + size + "\t" + mtime + "\t" + plainMd5 + "\t" + encMd5 + "\t" + field(etag) + "\t" + relPath);
+		}
+
+		/**
+		 * Veröffentlicht das Manifest, außer wenn der Lauf auf dem Server nichts geändert hat und das bisherige
+		 * Manifest noch aktuell ist.
+		 *
+		 * @param remoteManifest Das Manifest aus dem Listing vor dem Sync oder null, wenn keines existiert
+		 */
+		public void publish(String remoteFolder, String encryptPassphrase, OpenCloudClient.FileInfo remoteManifest) {
+			String manifestPath = childPath(remoteFolder, FILE_NAME);
+			finish();
+			if (!changed && remoteManifest != null && isFresh(client.getFileInfo(remoteFolder), remoteManifest)) {
+				System.out.println("  Manifest unchanged: " + manifestPath);
+				return;
+			}
+			// ohne X-OC-Mtime, damit das Manifest die Server-Zeit trägt, mit der der Downloader vergleicht
+			client.uploadFile(manifestPath, file, encryptPassphrase);
+			System.out.println("  Published manifest: " + manifestPath + " (" + count + " entries)");
+		}
+
+		/**
+		 * Verwirft die Temp-Datei, ob veröffentlicht oder nicht.
+		 */
+		@Override
+		public void close() {
+			try {
+				finish();
+			} finally {
+				try {
+					Files.deleteIfExists(file);
+				} catch (IOException e) {
+					System.err.println("  Fehler beim Löschen des Manifests " + file + ": " + e.getMessage());
+				}
+			}
+		}
+
+		// the lines come from the transfer pool
+		private synchronized void line(String line) {
+			try {
+				out.write(line + "\n");
+				count++;
+			} catch (IOException e) {
+				throw new RuntimeException("Fehler beim Schreiben des Manifests: " + file, e);
+			}
+		}
+
+		private synchronized void finish() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Fehler beim Schreiben des Manifests: " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Lädt das Manifest als Baum im Format von {@link OpenCloudClient#listTree(String)}.
+	 *
+	 * @param root Die Eigenschaften des Remote-Ordners
+	 * @return der Baum, oder null, wenn kein gültiges, aktuelles Manifest existiert; der Aufrufer listet dann selbst
+	 */
+	public Map<String, List<OpenCloudClient.FileInfo>> loadTree(String remoteFolder, OpenCloudClient.FileInfo root, String decryptPassphrase) {
+		String manifestPath = childPath(remoteFolder, FILE_NAME);
+		try {
+			OpenCloudClient.FileInfo manifest = root != null ? client.getFileInfo(manifestPath) : null;
+			if (manifest == null) {
+				return null;
+			}
+			if (!isFresh(root, manifest)) {
+				System.out.println("  Manifest " + manifestPath + " is older than the remote folder, listing instead");
+				return null;
+			}
+			Map<String, List<OpenCloudClient.FileInfo>> tree = new HashMap<>();
+			tree.put("", new ArrayList<>());
+			List<Entry> entries = read(manifestPath, decryptPassphrase);
+			for (Entry e : entries) {
+				if (e.isDirectory()) {
+					tree.put(e.path(), new ArrayList<>());
+				}
+			}
+			for (Entry e : entries) {
+				int idx = e.path().lastIndexOf('/');
+				String name = e.path().substring(idx + 1);
+				List<OpenCloudClient.FileInfo> parent = tree.get(idx < 0 ? "" : e.path().substring(0, idx));
+				if (parent == null || name.isEmpty() || name.equals(".") || name.equals("..")) {
+					throw new IOException("Ungültiger Pfad im Manifest: " + e.path());
+				}
+				if (e.isDirectory()) {
+					parent.add(new OpenCloudClient.FileInfo(name, true, 0, null, null, e.etag()));
+				} else {
+					long size = decryptPassphrase != null ? EncryptedInputStream.getEncryptedSizeForInputSize(e.size()) : e.size();
+					parent.add(new OpenCloudClient.FileInfo(name, false, size, new Date(e.mtime()), e.encMd5(), e.etag()));
+				}
+			}
+			System.out.println("  Using manifest " + manifestPath + " (" + entries.size() + " entries)");
+			return tree;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Ignoring manifest " + manifestPath + ", listing instead: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Das Manifest ist aktuell, wenn der Ordner nicht nach dem Manifest geändert wurde.
+	 */
+	private static boolean isFresh(OpenCloudClient.FileInfo root, OpenCloudClient.FileInfo manifest) {
+		if (root == null || manifest == null || root.last_modified() == null || manifest.last_modified() == null) {
+			return false;
+		}
+		return root.last_modified().getTime() <= manifest.last_modified().getTime() + MTIME_TOLERANCE_MS;
+	}
+
+	private static String field(String etag) {
+		return etag != null ? etag : "-";
+	}
+
+	private static String etag(String field) {
+		return field.equals("-") ? null : field;
+	}
+
+	private List<Entry> read(String manifestPath, String passphrase) {
+		List<Entry> entries = new ArrayList<>();
+		try (InputStream raw = client.downloadFile(manifestPath);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(
+						new GZIPInputStream(passphrase != null ? new DecryptedInputStream(raw, passphrase) : raw), StandardCharsets.UTF_8))) {
+			String header = reader.readLine();
+			boolean v1 = HEADER_V1.equals(header);
+			if (!v1 && !HEADER.equals(header)) {
+				throw new IOException("Unbekanntes Format");
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("D\t")) {
+					if (v1) {
+						entries.add(new Entry(line.substring(2), true, 0, 0, null, null, null));
+					} else {
+						// D <etag> <path>
+						String[] f = line.split("\t", 3);
+						entries.add(new Entry(f[2], true, 0, 0, null, null, etag(f[1])));
+					}
+				} else if (line.startsWith("F\t")) {
+					if (v1) {
+						// F <size> <mtime> <plainMd5> <encMd5> <path>
+						String[] f = line.split("\t", 6);
+						entries.add(new Entry(f[5], false, Long.parseLong(f[1]), Long.parseLong(f[2]), f[3], f[4], null));
+					} else {
+						// F <size> <mtime> <plainMd5> <encMd5> <etag> <path>
+						String[] f = line.split("\t", 7);
+						entries.add(new Entry(f[6], false, Long.parseLong(f[1]), Long.parseLong(f[2]), f[3], f[4], etag(f[5])));
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new RuntimeException("Fehler beim Lesen des Manifests: " + manifestPath, e);
+		}
+		return entries;
+	}
+
+	private static String childPath(String remoteFolder, String name) {
+		return remoteFolder.endsWith("/") ? remoteFolder + name : remoteFolder + "/" + name;
+	}
+
+}
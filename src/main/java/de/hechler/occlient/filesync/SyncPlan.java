@@ -0,0 +1,343 @@
+package de.hechler.occlient.filesync;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plan eines Syncs für ein Mapping: die Operationen, die ein Lauf ausführen würde, ohne dass dafür
+ * lokal oder remote etwas geändert wird. Ein Plan lässt sich ausgeben (--dry-run), in eine Datei schreiben
+ * (--plan-out) und später ausführen (--plan-in), siehe {@link FolderSync#execute}.
+ *
+ * Pfade sind relativ zum Mapping und mit "/" getrennt, "" ist der Ordner selbst. Die Richtung des Plans
+ * bestimmt die Seite einer Operation: beim Upload werden Verzeichnisse remote angelegt, verschoben und
+ * gelöscht, beim Download lokal. SET_MTIME setzt immer die mtime der lokalen Datei.
+ *
+ * Die Datei enthält die Pläne aller Mappings eines Laufs, ohne Passphrasen. Die Felder sind durch Tabs
+ * getrennt; '%', Tab und Zeilenumbrüche stehen in jedem Feld als %XX, ein Wert "-" als "%2D", da "-" für
+ * null steht. Eine unlesbare Zeile bricht das Lesen mit ihrer Zeilennummer ab.
+ *
+ * <pre>
+ *   ocsync-plan 2
+ *   mapping	&lt;upload|download&gt;	&lt;lokaler ordner&gt;	&lt;remote-ordner&gt;
+ *   &lt;typ&gt;	&lt;größe&gt;	&lt;mtime&gt;	&lt;etag&gt;	&lt;md5&gt;	&lt;if-none-match&gt;	&lt;quelle&gt;	&lt;pfad&gt;
+ * </pre>
+ */
+public class SyncPlan {
+
+	private static final String HEADER = "ocsync-plan 2";
+	private static final String MAPPING = "mapping";
+	// steht in der Datei für null
+	private static final String NONE = "-";
+
+	public enum Type {
+		CREATE_DIR, UPLOAD, DOWNLOAD, DELETE, SET_MTIME, MOVE
+	}
+
+	/**
+	 * Eine Operation des Plans; nicht benötigte Felder sind -1 bzw. null.
+	 *
+	 * @param path        Ziel der Operation
+	 * @param source      Quelle bei MOVE
+	 * @param size        Größe der Remote-Datei (wie übertragen) bei DOWNLOAD und beim Löschen einer Remote-Datei
+	 * @param mtime       mtime der Quelle in ms
+	 * @param etag        ETag der Remote-Datei, beim Download gespeichert
+	 * @param md5         MD5 der Remote-Datei (wie übertragen), falls bekannt
+	 * @param ifNoneMatch ETag der lokalen Version für einen bedingten Download
+	 */
+	public record Operation(Type type, String path, String source, long size, long mtime, String etag, String md5, String ifNoneMatch) {
+
+		public static Operation createDir(String path) {
+			return new Operation(Type.CREATE_DIR, path, null, -1, -1, null, null, null);
+		}
+
+		public static Operation upload(String path, long mtime) {
+			return new Operation(Type.UPLOAD, path, null, -1, mtime, null, null, null);
+		}
+
+		public static Operation download(String path, OpenCloudClient.FileInfo fi, String ifNoneMatch) {
+			return new Operation(Type.DOWNLOAD, path, null, fi.contentLength(), fi.last_modified() != null ? fi.last_modified().getTime() : -1, fi.etag(), fi.md5(), ifNoneMatch);
+		}
+
+		public static Operation delete(String path) {
+			return new Operation(Type.DELETE, path, null, -1, -1, null, null, null);
+		}
+
+		/**
+		 * Löschen einer Remote-Datei; Größe und MD5 erlauben, es mit einem Upload gleichen Inhalts zu einem MOVE zusammenzufassen.
+		 */
+		public static Operation deleteRemote(String path, OpenCloudClient.FileInfo fi) {
+			return fi.isDirectory() ? delete(path) : new Operation(Type.DELETE, path, null, fi.contentLength(), -1, null, fi.md5(), null);
+		}
+
+		/**
+		 * @param etag beim Download: die ETag der Remote-Datei, für die die lokale Datei nun gilt
+		 */
+		public static Operation setMtime(String path, long mtime, String etag) {
+			return new Operation(Type.SET_MTIME, path, null, -1, mtime, etag, null, null);
+		}
+
+		public static Operation move(String source, String path) {
+			return new Operation(Type.MOVE, path, source, -1, -1, null, null, null);
+		}
+
+		/**
+		 * @return die Remote-Datei, wie sie beim Planen gelistet wurde (nur DOWNLOAD)
+		 */
+		public OpenCloudClient.FileInfo remoteFile() {
+			int idx = path.lastIndexOf('/');
+			return new OpenCloudClient.FileInfo(path.substring(idx + 1), false, size, mtime >= 0 ? new Date(mtime) : null, md5, etag);
+		}
+
+		@Override
+		public String toString() {
+			return switch (type) {
+				case MOVE -> type + " " + source + " -> " + path;
+				case DOWNLOAD -> type + " " + path + " (" + size + " bytes)";
+				default -> type + " " + path;
+			};
+		}
+	}
+
+	/**
+	 * Optionen der Kommandozeile, siehe {@link Main}.
+	 *
+	 * @param dryRun  nur planen und ausgeben bzw. einen gelesenen Plan nur ausgeben
+	 * @param planOut Datei, in die die Pläne geschrieben werden, statt sie auszuführen
+	 * @param planIn  Datei, deren Pläne statt eines neuen Abgleichs ausgeführt werden
+	 */
+	public record Options(boolean dryRun, Path planOut, Path planIn) {
+
+		public static final Options NONE = new Options(false, null, null);
+
+		/**
+		 * @return true, wenn nicht einfach synchronisiert wird
+		 */
+		public boolean isActive() {
+			return dryRun || planOut != null || planIn != null;
+		}
+	}
+
+	private final boolean upload;
+	private final String localFolder;
+	private final String remoteFolder;
+	// je Pfad und Typ nur eine Operation, ein Verzeichnis kann beim inkrementellen Sync zweimal geplant werden
+	private final Map<String, Operation> operations = new LinkedHashMap<>();
+
+	/**
+	 * @param upload true für einen Plan des Uploaders (lokal -&gt; remote), false für den Downloader
+	 */
+	public SyncPlan(boolean upload, String localFolder, String remoteFolder) {
+		this.upload = upload;
+		this.localFolder = localFolder;
+		this.remoteFolder = remoteFolder;
+	}
+
+	public boolean isUpload() {
+		return upload;
+	}
+
+	public String getLocalFolder() {
+		return localFolder;
+	}
+
+	public String getRemoteFolder() {
+		return remoteFolder;
+	}
+
+	public synchronized void add(Operation op) {
+		operations.put(op.type() + "\t" + op.path(), op);
+	}
+
+	public synchronized boolean remove(Operation op) {
+		return operations.remove(op.type() + "\t" + op.path(), op);
+	}
+
+	/**
+	 * @return die Operationen in der Reihenfolge, in der sie geplant wurden
+	 */
+	public synchronized List<Operation> getOperations() {
+		return new ArrayList<>(operations.values());
+	}
+
+	/**
+	 * @return die Operationen eines Typs in der Reihenfolge, in der sie geplant wurden
+	 */
+	public synchronized List<Operation> getOperations(Type type) {
+		List<Operation> result = new ArrayList<>();
+		for (Operation op : operations.values()) {
+			if (op.type() == type) {
+				result.add(op);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Gibt den Plan lesbar aus, mit einer Zusammenfassung pro Typ.
+	 */
+	public void print(PrintStream out) {
+		List<Operation> ops = getOperations();
+		out.println("Plan " + (upload ? "upload '" + localFolder + "' -> '" + remoteFolder : "download '" + remoteFolder + "' -> '" + localFolder) + "': " + ops.size() + " operations");
+		Map<Type, Integer> counts = new EnumMap<>(Type.class);
+		long bytes = 0;
+		for (Operation op : ops) {
+			out.println("  " + op);
+			counts.merge(op.type(), 1, Integer::sum);
+			if (op.type() == Type.DOWNLOAD) {
+				bytes += op.size();
+			}
+		}
+		out.println("  Summary: " + counts + (bytes > 0 ? ", " + bytes + " bytes to download" : ""));
+	}
+
+	/**
+	 * @return der Plan für das Mapping oder null, wenn keiner enthalten ist
+	 */
+	public static SyncPlan find(Collection<SyncPlan> plans, boolean upload, String localFolder, String remoteFolder) {
+		for (SyncPlan plan : plans) {
+			if (plan.upload == upload && plan.localFolder.equals(localFolder) && plan.remoteFolder.equals(remoteFolder)) {
+				return plan;
+			}
+		}
+		return null;
+	}
+
+	public static void writeAll(Path file, Collection<SyncPlan> plans) {
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write(HEADER + "\n");
+			for (SyncPlan plan : plans) {
+				writer.write(MAPPING + "\t" + (plan.upload ? "upload" : "download") + "\t" + field(plan.localFolder) + "\t" + field(plan.remoteFolder) + "\n");
+				for (Operation op : plan.getOperations()) {
+					writer.write(op.type() + "\t" + op.size() + "\t" + op.mtime() + "\t" + field(op.etag()) + "\t" + field(op.md5()) + "\t"
+							+ field(op.ifNoneMatch()) + "\t" + field(op.source()) + "\t" + field(op.path()) + "\n");
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Fehler beim Schreiben des Plans: " + file, e);
+		}
+	}
+
+	public static List<SyncPlan> readAll(Path file) {
+		List<SyncPlan> plans = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				throw new IOException("Unbekanntes Format");
+			}
+			SyncPlan plan = null;
+			String line;
+			int lineNo = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					if (line.startsWith(MAPPING + "\t")) {
+						String[] f = line.split("\t", -1);
+						if (f.length != 4 || !(f[1].equals("upload") || f[1].equals("download")) || value(f[2]) == null || value(f[3]) == null) {
+							throw new IllegalArgumentException("Ungültiges Mapping");
+						}
+						plan = new SyncPlan(f[1].equals("upload"), value(f[2]), value(f[3]));
+						plans.add(plan);
+					} else if (plan == null) {
+						throw new IllegalArgumentException("Operation vor dem ersten Mapping");
+					} else {
+						// <typ> <größe> <mtime> <etag> <md5> <if-none-match> <quelle> <pfad>
+						String[] f = line.split("\t", -1);
+						if (f.length != 8) {
+							throw new IllegalArgumentException("Ungültige Operation");
+						}
+						String path = value(f[7]);
+						String source = value(f[6]);
+						if (path == null || !isRelative(path) || !isRelative(source)) {
+							throw new IllegalArgumentException("Ungültiger Pfad");
+						}
+						plan.add(new Operation(Type.valueOf(f[0]), path, source, Long.parseLong(f[1]), Long.parseLong(f[2]), value(f[3]), value(f[4]), value(f[5])));
+					}
+				} catch (IllegalArgumentException e) {
+					// including NumberFormatException and unknown types
+					throw new IOException("Zeile " + lineNo + ": " + e.getMessage() + ": " + line, e);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			throw new RuntimeException("Fehler beim Lesen des Plans: " + file + " - " + e.getMessage(), e);
+		}
+		return plans;
+	}
+
+	/**
+	 * Ein Pfad aus der Datei darf nicht aus dem Mapping herausführen.
+	 */
+	private static boolean isRelative(String path) {
+		if (path == null || path.isEmpty()) {
+			return true;
+		}
+		for (String name : path.split("/", -1)) {
+			if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String field(String value) {
+		if (value == null) {
+			return NONE;
+		}
+		if (value.equals(NONE)) {
+			return "%2D";
+		}
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '%' || c == '\t' || c == '\n' || c == '\r') {
+				sb.append(String.format("%%%02X", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @throws IllegalArgumentException bei einer ungültigen Escape-Sequenz
+	 */
+	private static String value(String field) {
+		if (NONE.equals(field)) {
+			return null;
+		}
+		int idx = field.indexOf('%');
+		if (idx < 0) {
+			return field;
+		}
+		StringBuilder sb = new StringBuilder(field.length());
+		sb.append(field, 0, idx);
+		for (int i = idx; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c != '%') {
+				sb.append(c);
+				continue;
+			}
+			if (i + 2 >= field.length()) {
+				throw new IllegalArgumentException("Ungültige Escape-Sequenz");
+			}
+			sb.append((char) HexFormat.fromHexDigits(field, i + 1, i + 3));
+			i += 2;
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,441 @@
+package de.hechler.occlient.filesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.util.EntityUtils;
+
+import com.github.sardine.impl.SardineException;
+
+/**
+ * Chunked, wiederaufnehmbarer Upload großer Dateien über das TUS-Protokoll (https://tus.io),
+ * das OpenCloud auf den Space-WebDAV-Endpunkten anbietet.
+ *
+ * Die Datei wird in Chunks per PATCH übertragen; jeder Chunk wird bei Fehlern einzeln wiederholt.
+ * Die Upload-URLs werden in einer Statusdatei gespeichert, so dass ein abgebrochener Upload im
+ * nächsten Lauf ab dem vom Server gemeldeten Offset fortgesetzt wird. Unterstützt der Server die
+ * Erweiterung "concatenation", wird die Datei in mehrere Teile aufgeteilt, die parallel hochgeladen
+ * und anschließend auf dem Server zusammengesetzt werden.
+ */
+public class TusUploader {
+
+	private static final String TUS_VERSION = "1.0.0";
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final OpenCloudClient client;
+	private final OpenCloudClient.TransferSettings settings;
+	private final String baseUrl;
+
+	private Boolean supported;
+	private boolean concatenation;
+
+	private record Part(long start, long length, String url) {}
+
+	/**
+	 * @param client   Der Client, über dessen Verbindungen die Requests laufen
+	 * @param baseUrl  Die Basis-URL des Space (für die Erkennung der TUS-Unterstützung)
+	 * @param settings Chunk-Größe, Parallelität und Statusverzeichnis
+	 */
+	public TusUploader(OpenCloudClient client, String baseUrl, OpenCloudClient.TransferSettings settings) {
+		this.client = client;
+		this.baseUrl = baseUrl;
+		this.settings = settings;
+	}
+
+	/**
+	 * Prüft einmalig per OPTIONS, ob der Server TUS (und concatenation) unterstützt.
+	 */
+	public synchronized boolean isSupported() {
+		if (supported == null) {
+			try {
+				HttpOptions options = new HttpOptions(baseUrl);
+				HttpResponse response = client.execute(options);
+				EntityUtils.consumeQuietly(response.getEntity());
+				Header version = response.getFirstHeader("Tus-Version");
+				Header extensions = response.getFirstHeader("Tus-Extension");
+				supported = version != null && version.getValue().contains(TUS_VERSION);
+				concatenation = extensions != null && extensions.getValue().contains("concatenation");
+			} catch (IOException e) {
+				System.err.println("  TUS capability check failed, using single PUT uploads: " + e.getMessage());
+				supported = false;
+			}
+		}
+		return supported;
+	}
+
+	/**
+	 * Lädt den Inhalt der Entity nach fullUrl hoch bzw. setzt einen früheren Upload fort.
+	 *
+	 * @param fullUrl      Ziel-URL der Datei
+	 * @param entity       Der (ggf. verschlüsselte) Dateiinhalt
+	 * @param lastModified mtime in Millisekunden, wird als X-OC-Mtime und TUS-Metadaten übertragen
+	 * @throws IOException wenn der Upload nach allen Wiederholungen fehlschlägt
+	 */
+	public void upload(String fullUrl, FileUploadEntity entity, long lastModified) throws IOException {
+		long length = entity.getContentLength();
+		Path stateFile = getStateFile(fullUrl);
+		List<Part> parts = loadState(stateFile, length, lastModified);
+		boolean useConcat = concatenation && length > 2L * settings.chunkSize() && settings.parallelUploads() > 1;
+		if (parts == null) {
+			parts = createParts(fullUrl, length, lastModified, useConcat);
+			saveState(stateFile, length, lastModified, parts);
+		} else {
+			System.out.println("  Resuming chunked upload: " + fullUrl);
+		}
+		try {
+			uploadParts(entity, parts);
+		} catch (StaleUploadException e) {
+			// server has forgotten the upload (expired) -> start over once
+			Files.deleteIfExists(stateFile);
+			parts = createParts(fullUrl, length, lastModified, useConcat);
+			saveState(stateFile, length, lastModified, parts);
+			uploadParts(entity, parts);
+		}
+		if (parts.size() > 1) {
+			concatenate(fullUrl, parts, lastModified);
+		}
+		Files.deleteIfExists(stateFile);
+	}
+
+	private List<Part> createParts(String fullUrl, long length, long lastModified, boolean useConcat) throws IOException {
+		List<Part> parts = new ArrayList<>();
+		if (!useConcat) {
+			parts.add(new Part(0, length, create(fullUrl, length, lastModified, false)));
+			return parts;
+		}
+		int count = (int) Math.min(settings.parallelUploads(), (length + settings.chunkSize() - 1) / settings.chunkSize());
+		long partLength = (length + count - 1) / count;
+		for (long start = 0; start < length; start += partLength) {
+			long len = Math.min(partLength, length - start);
+			parts.add(new Part(start, len, create(fullUrl, len, lastModified, true)));
+		}
+		return parts;
+	}
+
+	/**
+	 * Legt einen TUS-Upload an (POST auf das Elternverzeichnis) und liefert dessen URL.
+	 */
+	private String create(String fullUrl, long length, long lastModified, boolean partial) throws IOException {
+		HttpPost post = new HttpPost(parentUrl(fullUrl));
+		post.setHeader("Tus-Resumable", TUS_VERSION);
+		post.setHeader("Upload-Length", Long.toString(length));
+		if (partial) {
+			post.setHeader("Upload-Concat", "partial");
+		} else {
+			post.setHeader("Upload-Metadata", metadata(fullUrl, lastModified));
+			post.setHeader("X-OC-Mtime", Long.toString(lastModified / 1000L));
+		}
+		return executeCreate(post);
+	}
+
+	private void concatenate(String fullUrl, List<Part> parts, long lastModified) throws IOException {
+		StringBuilder concat = new StringBuilder("final;");
+		for (Part part : parts) {
+			concat.append(part.url()).append(' ');
+		}
+		HttpPost post = new HttpPost(parentUrl(fullUrl));
+		post.setHeader("Tus-Resumable", TUS_VERSION);
+		post.setHeader("Upload-Concat", concat.toString().trim());
+		post.setHeader("Upload-Metadata", metadata(fullUrl, lastModified));
+		post.setHeader("X-OC-Mtime", Long.toString(lastModified / 1000L));
+		HttpResponse response = client.execute(post);
+		EntityUtils.consumeQuietly(response.getEntity());
+		int status = response.getStatusLine().getStatusCode();
+		if (status / 100 != 2) {
+			throw new SardineException("Unexpected response for TUS concatenation", status, response.getStatusLine().getReasonPhrase());
+		}
+	}
+
+	private String executeCreate(HttpPost post) throws IOException {
+		HttpResponse response = client.execute(post);
+		EntityUtils.consumeQuietly(response.getEntity());
+		int status = response.getStatusLine().getStatusCode();
+		Header location = response.getFirstHeader("Location");
+		if (status != 201 || location == null) {
+			throw new SardineException("Unexpected response for TUS creation", status, response.getStatusLine().getReasonPhrase());
+		}
+		return URI.create(post.getURI().toString()).resolve(location.getValue()).toString();
+	}
+
+	private void uploadParts(FileUploadEntity entity, List<Part> parts) throws IOException {
+		if (parts.size() == 1) {
+			uploadPart(entity, parts.get(0));
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (Part part : parts) {
+				futures.add(executor.submit(() -> {
+					uploadPart(entity, part);
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Chunked upload unterbrochen", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException("Fehler beim parallelen Upload: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Überträgt einen Teil chunkweise ab dem Offset, den der Server meldet.
+	 * Ein fehlgeschlagener Chunk wird bis zu MAX_ATTEMPTS-mal wiederholt, jeweils ab dem
+	 * tatsächlich vom Server bestätigten Offset.
+	 *
+	 * Die Chunks werden direkt aus einem Stream über den Teil gesendet, ohne Puffer in Chunk-Größe.
+	 * Der Stream wird nur neu geöffnet, wenn seine Position nicht zum Offset passt, z.B. nach einem
+	 * Fehler, da beim Verschlüsseln dafür alles bis zum Offset erneut gelesen werden muss.
+	 */
+	private void uploadPart(FileUploadEntity entity, Part part) throws IOException {
+		long offset = queryOffset(part.url());
+		InputStream in = null;
+		// position of in, -1 when unknown after a failed PATCH
+		long streamPos = -1;
+		int attempt = 0;
+		try {
+			while (offset < part.length()) {
+				if (streamPos != offset) {
+					if (in != null) {
+						in.close();
+					}
+					in = entity.getContent(part.start() + offset);
+					streamPos = offset;
+				}
+				long len = Math.min(settings.chunkSize(), part.length() - offset);
+				try {
+					long newOffset = patch(part.url(), offset, in, len);
+					streamPos = offset + len;
+					offset = newOffset;
+					attempt = 0;
+				} catch (StaleUploadException e) {
+					throw e;
+				} catch (IOException e) {
+					streamPos = -1;
+					if (++attempt >= MAX_ATTEMPTS) {
+						throw e;
+					}
+					System.err.println("  Chunk upload at offset " + offset + " failed (attempt " + attempt + "): " + e.getMessage());
+					sleep(1000L * attempt);
+					long serverOffset = queryOffset(part.url());
+					if (serverOffset != offset) {
+						// server accepted (part of) the chunk -> continue from there
+						attempt = 0;
+					}
+					offset = serverOffset;
+				}
+			}
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	private long patch(String url, long offset, InputStream in, long len) throws IOException {
+		HttpPatch patch = new HttpPatch(url);
+		patch.setHeader("Tus-Resumable", TUS_VERSION);
+		patch.setHeader("Upload-Offset", Long.toString(offset));
+		patch.setEntity(new ChunkEntity(in, len));
+		HttpResponse response = client.execute(patch);
+		EntityUtils.consumeQuietly(response.getEntity());
+		int status = response.getStatusLine().getStatusCode();
+		checkStale(status);
+		Header newOffset = response.getFirstHeader("Upload-Offset");
+		if (status != 204 || newOffset == null) {
+			throw new SardineException("Unexpected response for TUS PATCH", status, response.getStatusLine().getReasonPhrase());
+		}
+		return Long.parseLong(newOffset.getValue().trim());
+	}
+
+	private long queryOffset(String url) throws IOException {
+		HttpHead head = new HttpHead(url);
+		head.setHeader("Tus-Resumable", TUS_VERSION);
+		HttpResponse response = client.execute(head);
+		EntityUtils.consumeQuietly(response.getEntity());
+		int status = response.getStatusLine().getStatusCode();
+		checkStale(status);
+		Header offset = response.getFirstHeader("Upload-Offset");
+		if (status / 100 != 2 || offset == null) {
+			throw new SardineException("Unexpected response for TUS HEAD", status, response.getStatusLine().getReasonPhrase());
+		}
+		return Long.parseLong(offset.getValue().trim());
+	}
+
+	private static void checkStale(int status) throws StaleUploadException {
+		if (status == 404 || status == 410) {
+			throw new StaleUploadException("TUS upload not found on server (" + status + ")");
+		}
+	}
+
+	private static String metadata(String fullUrl, long lastModified) {
+		String name = fullUrl.substring(fullUrl.lastIndexOf('/') + 1);
+		return "filename " + base64(name) + ",mtime " + base64(Long.toString(lastModified / 1000L));
+	}
+
+	private static String base64(String value) {
+		return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String parentUrl(String fullUrl) {
+		return fullUrl.substring(0, fullUrl.lastIndexOf('/') + 1);
+	}
+
+	private static void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Unterbrochen", e);
+		}
+	}
+
+	private Path getStateFile(String fullUrl) {
+		String key = bytesToHex(ChecksumUtil.calculateMD5bytes(fullUrl));
+		return Paths.get(settings.stateDir()).resolve(key + ".properties");
+	}
+
+	private static String bytesToHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Liest den Status eines früheren Uploads; nur gültig, wenn Länge und mtime unverändert sind.
+	 */
+	private List<Part> loadState(Path stateFile, long length, long lastModified) {
+		if (!Files.isRegularFile(stateFile)) {
+			return null;
+		}
+		Properties props = new Properties();
+		try (InputStream in = Files.newInputStream(stateFile)) {
+			props.load(in);
+			if (Long.parseLong(props.getProperty("length")) != length
+					|| Long.parseLong(props.getProperty("lastModified")) != lastModified) {
+				Files.deleteIfExists(stateFile);
+				return null;
+			}
+			int count = Integer.parseInt(props.getProperty("parts"));
+			List<Part> parts = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				parts.add(new Part(Long.parseLong(props.getProperty("part." + i + ".start")),
+						Long.parseLong(props.getProperty("part." + i + ".length")),
+						props.getProperty("part." + i + ".url")));
+			}
+			return parts;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("  Ignoring unreadable upload state " + stateFile + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void saveState(Path stateFile, long length, long lastModified, List<Part> parts) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("length", Long.toString(length));
+		props.setProperty("lastModified", Long.toString(lastModified));
+		props.setProperty("parts", Integer.toString(parts.size()));
+		for (int i = 0; i < parts.size(); i++) {
+			props.setProperty("part." + i + ".start", Long.toString(parts.get(i).start()));
+			props.setProperty("part." + i + ".length", Long.toString(parts.get(i).length()));
+			props.setProperty("part." + i + ".url", parts.get(i).url());
+		}
+		Files.createDirectories(stateFile.getParent());
+		try (OutputStream out = Files.newOutputStream(stateFile)) {
+			props.store(out, "TUS upload state");
+		}
+	}
+
+	/**
+	 * Body eines PATCH: die nächsten length Bytes des Streams, beim Senden gelesen.
+	 * Nicht wiederholbar, ein fehlgeschlagener Chunk wird ab dem Offset des Servers neu gesendet.
+	 */
+	private static class ChunkEntity extends AbstractHttpEntity {
+
+		private static final int BUFFER_SIZE = 64 * 1024;
+
+		private final InputStream in;
+		private final long length;
+
+		ChunkEntity(InputStream in, long length) {
+			this.in = in;
+			this.length = length;
+			setContentType("application/offset+octet-stream");
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() {
+			throw new UnsupportedOperationException("Chunk wird nur über writeTo gesendet");
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+			long remaining = length;
+			while (remaining > 0) {
+				int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (len == -1) {
+					throw new IOException("Lokale Datei kürzer als erwartet");
+				}
+				out.write(buffer, 0, len);
+				remaining -= len;
+			}
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return true;
+		}
+	}
+
+	private static class StaleUploadException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		StaleUploadException(String message) {
+			super(message);
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveLimiterTest {
+
+	private static final long MS = 1_000_000L;
+
+	private static void succeed(AdaptiveLimiter limiter, long latencyMs) throws Exception {
+		limiter.acquire();
+		limiter.onSuccess("GET", latencyMs * MS);
+	}
+
+	@Test
+	void growsAdditivelyWhileLatencyIsStableUpToTheMaximum() throws Exception {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 4);
+		// 2 -> 2,5 -> 2,9 -> 3,24: etwa ein Platz pro Round-Trip
+		succeed(limiter, 10);
+		succeed(limiter, 10);
+		assertEquals(2, limiter.getLimit());
+		succeed(limiter, 10);
+		assertEquals(3, limiter.getLimit());
+
+		for (int i = 0; i < 100; i++) {
+			succeed(limiter, 10);
+		}
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	void doesNotGrowOnALatencySpike() throws Exception {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 8);
+		succeed(limiter, 10);
+		assertEquals(2, limiter.getLimit());
+		// mehr als doppelt so langsam wie der Durchschnitt: Limit bleibt 2
+		succeed(limiter, 100);
+		// 2 -> 2,5 -> 2,9; mit Wachstum beim Ausreißer wären es 3,24
+		succeed(limiter, 10);
+		succeed(limiter, 10);
+		assertEquals(2, limiter.getLimit());
+		// die Latenz wird pro Verb verglichen
+		limiter.acquire();
+		limiter.onSuccess("PUT", 100 * MS);
+		assertEquals(3, limiter.getLimit());
+	}
+
+	@Test
+	void halvesAtMostOncePerRoundTripDownToTheMinimum() throws Exception {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(16, 3, 16);
+		limiter.onOverload(0);
+		limiter.onOverload(0);
+		assertEquals(8, limiter.getLimit(), "zweite Meldung derselben Überlast");
+
+		Thread.sleep(150);
+		limiter.onOverload(0);
+		assertEquals(4, limiter.getLimit());
+		Thread.sleep(150);
+		limiter.onOverload(0);
+		assertEquals(3, limiter.getLimit());
+	}
+
+	@Test
+	void blocksBeyondTheLimitUntilASlotIsReleased() throws Exception {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+		limiter.acquire();
+		CompletableFuture<Void> second = CompletableFuture.runAsync(() -> {
+			try {
+				limiter.acquire();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!limiter.hasWaiters() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(limiter.hasWaiters());
+		assertFalse(second.isDone());
+
+		limiter.onError();
+		second.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void pausesNewRequestsForRetryAfter() throws Exception {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 4);
+		limiter.onOverload(300);
+
+		long start = System.nanoTime();
+		limiter.acquire();
+		long waitedMs = (System.nanoTime() - start) / MS;
+
+		assertTrue(waitedMs >= 250, waitedMs + " ms");
+		assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	void parsesRetryAfterAsSecondsOrHttpDate() {
+		assertEquals(2000, AdaptiveLimiter.parseRetryAfter("2"));
+		assertEquals(0, AdaptiveLimiter.parseRetryAfter("-5"));
+		String inTenSeconds = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(10));
+		long ms = AdaptiveLimiter.parseRetryAfter(inTenSeconds);
+		assertTrue(ms > 8000 && ms <= 10000, ms + " ms");
+		assertEquals(0, AdaptiveLimiter.parseRetryAfter("Thu, 01 Jan 1970 00:00:00 GMT"));
+		assertEquals(-1, AdaptiveLimiter.parseRetryAfter("soon"));
+		assertEquals(-1, AdaptiveLimiter.parseRetryAfter(null));
+	}
+
+}
@@ -0,0 +1,114 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BulkUploaderTest {
+
+	private static final long MTIME = 1_700_000_000_000L;
+	private static final List<String> NAMES = List.of("a.txt", "b.txt", "c.txt");
+
+	@TempDir
+	Path tmp;
+
+	private DavStandIn server;
+	private OpenCloudClient client;
+	private List<OpenCloudClient.UploadRequest> requests;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new DavStandIn();
+		server.putFile("dir/existing.txt", new byte[1], MTIME);
+		client = new OpenCloudClient(server.url(), "u", "p");
+		requests = new ArrayList<>();
+		for (int i = 0; i < NAMES.size(); i++) {
+			Path file = tmp.resolve(NAMES.get(i));
+			Files.writeString(file, "content " + NAMES.get(i));
+			requests.add(new OpenCloudClient.UploadRequest("dir/" + NAMES.get(i), file, null, MTIME + i * 1000L));
+		}
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	private void assertUploaded() throws Exception {
+		for (OpenCloudClient.UploadRequest r : requests) {
+			assertArrayEquals(Files.readAllBytes(r.file()), server.file(r.path()), r.path());
+			assertEquals(r.lastModified(), server.mtime(r.path()), r.path());
+		}
+	}
+
+	@Test
+	void uploadsSmallFilesInOneMultipartRequest() throws Exception {
+		assertTrue(client.uploadFiles(requests).isEmpty());
+
+		List<DavStandIn.Exchange> posts = server.exchanges("POST");
+		assertEquals(1, posts.size());
+		assertEquals("/remote.php/dav/bulk", posts.get(0).path());
+		assertTrue(posts.get(0).header("Content-Type").startsWith("multipart/related; boundary="));
+		assertEquals(0, server.exchanges("PUT").size());
+		List<Map<String, String>> parts = server.bulkParts();
+		assertEquals(NAMES.size(), parts.size());
+		for (int i = 0; i < parts.size(); i++) {
+			Map<String, String> part = parts.get(i);
+			String md5 = HexFormat.of().formatHex(ChecksumUtil.calculateMD5bytes("content " + NAMES.get(i)));
+			assertEquals("/dir/" + NAMES.get(i), part.get("X-File-Path"));
+			assertEquals(md5, part.get("X-File-MD5"));
+			assertEquals("MD5:" + md5, part.get("OC-Checksum"));
+			assertEquals(Long.toString((MTIME + i * 1000L) / 1000L), part.get("X-File-Mtime"));
+			assertEquals("true", part.get("md5-ok"), "Inhalt passt zur MD5");
+		}
+		assertUploaded();
+	}
+
+	@Test
+	void uploadsFilesWithBulkErrorIndividually() throws Exception {
+		server.failBulk("dir/b.txt");
+
+		assertTrue(client.uploadFiles(requests).isEmpty());
+
+		assertEquals(1, server.exchanges("POST").size());
+		List<String> puts = server.exchanges("PUT").stream().map(DavStandIn.Exchange::path).toList();
+		assertEquals(List.of(DavStandIn.USER_ROOT + "/dir/b.txt"), puts);
+		assertUploaded();
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { 404, 405, 501 })
+	void fallsBackToPutWithoutBulkEndpoint(int status) throws Exception {
+		server.setBulkStatus(status);
+
+		assertTrue(client.uploadFiles(requests).isEmpty());
+
+		assertEquals(1, server.exchanges("POST").size());
+		assertEquals(NAMES.size(), server.exchanges("PUT").size());
+		assertUploaded();
+
+		// der Endpunkt wird danach nicht mehr versucht
+		server.clearExchanges();
+		Files.writeString(requests.get(0).file(), "changed", StandardCharsets.UTF_8);
+		assertTrue(client.uploadFiles(requests).isEmpty());
+		assertEquals(0, server.exchanges("POST").size());
+		assertEquals(NAMES.size(), server.exchanges("PUT").size());
+	}
+
+}
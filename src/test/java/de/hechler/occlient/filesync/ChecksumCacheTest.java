@@ -0,0 +1,93 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChecksumCacheTest {
+
+	@TempDir
+	Path tmp;
+
+	private final List<String> computed = new ArrayList<>();
+
+	private Supplier<String> compute(String name) {
+		return () -> {
+			computed.add(name);
+			return "md5-of-" + name;
+		};
+	}
+
+	private Path file(String name) throws Exception {
+		Path file = tmp.resolve(name);
+		Files.writeString(file, "content of " + name);
+		return file;
+	}
+
+	@Test
+	void evictsTheLeastRecentlyUsedEntryAcrossSaves() throws Exception {
+		Path a = file("a");
+		Path b = file("b");
+		Path c = file("c");
+		ChecksumCache cache = ChecksumCache.load(tmp.toString(), 2);
+		cache.get(a, "md5", null, compute("a"));
+		cache.get(b, "md5", null, compute("b"));
+		// a ist jetzt zuletzt benutzt, c verdrängt b
+		cache.get(a, "md5", null, compute("a"));
+		cache.get(c, "md5", null, compute("c"));
+		cache.save();
+		assertEquals(List.of("a", "b", "c"), computed);
+
+		ChecksumCache loaded = ChecksumCache.load(tmp.toString(), 2);
+		loaded.get(a, "md5", null, compute("a"));
+		loaded.get(c, "md5", null, compute("c"));
+		assertEquals(List.of("a", "b", "c"), computed, "aus der Datei");
+		loaded.get(b, "md5", null, compute("b"));
+		assertEquals(List.of("a", "b", "c", "b"), computed);
+	}
+
+	@Test
+	void keysOnAlgorithmPassphraseAndFileState() throws Exception {
+		Path a = file("a");
+		ChecksumCache cache = ChecksumCache.load(tmp.toString(), 10);
+		cache.get(a, "md5-enc", "secret", compute("enc"));
+		cache.get(a, "md5-enc", "other", compute("enc other"));
+		cache.get(a, "md5", null, compute("plain"));
+		cache.get(a, "md5-enc", "secret", compute("enc"));
+		assertEquals(List.of("enc", "enc other", "plain"), computed);
+
+		Files.writeString(a, "changed content");
+		cache.get(a, "md5-enc", "secret", compute("enc"));
+		assertEquals(List.of("enc", "enc other", "plain", "enc"), computed);
+	}
+
+	@Test
+	void cachesTheDecryptedMd5() throws Exception {
+		byte[] plain = "decrypted content".getBytes(StandardCharsets.UTF_8);
+		Path encrypted = tmp.resolve("file.enc");
+		try (InputStream in = new EncryptedInputStream(new ByteArrayInputStream(plain), "secret")) {
+			Files.copy(in, encrypted);
+		}
+		Path plainFile = tmp.resolve("file.txt");
+		Files.write(plainFile, plain);
+		ChecksumCache cache = ChecksumCache.load(tmp.toString(), 10);
+
+		String md5 = ChecksumUtil.calculateMD5dec(encrypted, "secret", cache);
+
+		assertEquals(ChecksumUtil.calculateMD5(plainFile), md5);
+		assertEquals(md5, cache.get(encrypted, "md5dec", "secret", compute("dec")));
+		assertTrue(computed.isEmpty(), "aus dem Cache");
+	}
+
+}
@@ -0,0 +1,772 @@
+package de.hechler.occlient.filesync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.Content;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+
+/**
+ * WebDAV-Server im Prozess für die Tests, Dateien und Verzeichnisse liegen im Speicher.
+ *
+ * Verstanden werden PROPFIND (Depth 0, 1 und infinity), GET/HEAD mit Range, If-Range, If-Match und
+ * If-None-Match, PUT, MKCOL, MOVE, DELETE, SEARCH (basicsearch nach getlastmodified), TUS (OPTIONS, POST,
+ * PATCH, HEAD, concatenation) und der Bulk-Endpunkt. HTTP/1.1 und h2c laufen über denselben Port. Wie bei
+ * ownCloud/Nextcloud sind hrefs prozent-kodiert (auf Wunsch als absolute URL) und jede Änderung setzt mtime
+ * und ETag aller Elternverzeichnisse. Multistatus-Antworten lassen sich gzip-komprimieren. Alle Requests
+ * werden mitgeschrieben, Fehler lassen sich gezielt einspielen.
+ */
+class DavStandIn implements AutoCloseable {
+
+	static final String USER_ROOT = "/remote.php/dav/files/u";
+	private static final String BULK_PATH = "/remote.php/dav/bulk";
+	private static final String TUS_PREFIX = "/tus/";
+
+	/**
+	 * Ein empfangener Request.
+	 *
+	 * @param path Der dekodierte Pfad ohne abschließenden Slash
+	 */
+	record Exchange(String protocol, String method, String path, Map<String, String> headers, byte[] body) {
+
+		String header(String name) {
+			return headers.get(name);
+		}
+
+		String bodyText() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	private static final class Upload {
+		final String target;
+		final long length;
+		final Long mtime;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		Upload(String target, long length, Long mtime) {
+			this.target = target;
+			this.length = length;
+			this.mtime = mtime;
+		}
+	}
+
+	private final Server server;
+	private final ServerConnector connector;
+
+	private final Map<String, byte[]> files = new HashMap<>();
+	private final Set<String> dirs = new HashSet<>();
+	private final Map<String, Long> mtimes = new HashMap<>();
+	private final Map<String, Upload> uploads = new HashMap<>();
+	private final List<Exchange> exchanges = new ArrayList<>();
+	private final List<Map<String, String>> bulkParts = new ArrayList<>();
+
+	private final Map<String, Integer> overrides = new HashMap<>();
+	private final Map<String, Reply> onceOverrides = new HashMap<>();
+	private final Set<String> bulkFailures = new HashSet<>();
+	private boolean tus;
+	private boolean concatenation;
+	private boolean depthInfinity = true;
+	private boolean search = true;
+	private boolean compression;
+	private boolean absoluteHrefs;
+	private int compressedReplies;
+	private int bulkStatus;
+	private long patchFailureOffset;
+	private int patchFailures;
+	private long patchFailureKeep;
+	private int nextUpload;
+
+	DavStandIn() throws Exception {
+		for (String dir = USER_ROOT; !dir.isEmpty(); dir = dir.substring(0, dir.lastIndexOf('/'))) {
+			dirs.add(dir);
+		}
+		server = new Server();
+		HttpConfiguration config = new HttpConfiguration();
+		connector = new ServerConnector(server, new HttpConnectionFactory(config), new HTTP2CServerConnectionFactory(config));
+		server.addConnector(connector);
+		server.setHandler(new Handler.Abstract() {
+			@Override
+			public boolean handle(Request request, Response response, Callback callback) throws Exception {
+				DavStandIn.this.handle(request, response, callback);
+				return true;
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return Die Basis-URL des Benutzerverzeichnisses mit abschließendem Slash
+	 */
+	String url() {
+		return "http://localhost:" + connector.getLocalPort() + USER_ROOT + "/";
+	}
+
+	@Override
+	public void close() throws Exception {
+		server.stop();
+	}
+
+	// --- Zustand ---
+
+	synchronized void putFile(String relPath, byte[] content, long mtime) {
+		String path = absolute(relPath);
+		for (String dir = parent(path); !dirs.contains(dir); dir = parent(dir)) {
+			dirs.add(dir);
+			mtimes.put(dir, mtime);
+		}
+		files.put(path, content);
+		touch(path, mtime);
+	}
+
+	synchronized byte[] file(String relPath) {
+		return files.get(absolute(relPath));
+	}
+
+	synchronized boolean isDirectory(String relPath) {
+		return dirs.contains(absolute(relPath));
+	}
+
+	/**
+	 * @return mtime in Millisekunden oder null
+	 */
+	synchronized Long mtime(String relPath) {
+		return mtimes.get(absolute(relPath));
+	}
+
+	synchronized String etag(String relPath) {
+		return etagOf(absolute(relPath));
+	}
+
+	/**
+	 * Setzt die mtime einer Ressource, ohne die Elternverzeichnisse zu ändern.
+	 */
+	synchronized void setMtime(String relPath, long mtime) {
+		mtimes.put(absolute(relPath), mtime);
+	}
+
+	synchronized List<Exchange> exchanges() {
+		return new ArrayList<>(exchanges);
+	}
+
+	synchronized List<Exchange> exchanges(String method) {
+		return exchanges.stream().filter(e -> e.method().equals(method)).toList();
+	}
+
+	synchronized void clearExchanges() {
+		exchanges.clear();
+		bulkParts.clear();
+	}
+
+	/**
+	 * @return Die Header der Teile aller Bulk-Requests, mit "md5-ok" für den geprüften Inhalt
+	 */
+	synchronized List<Map<String, String>> bulkParts() {
+		return new ArrayList<>(bulkParts);
+	}
+
+	synchronized int pendingUploads() {
+		return uploads.size();
+	}
+
+	// --- Verhalten ---
+
+	synchronized void enableTus(boolean concatenation) {
+		this.tus = true;
+		this.concatenation = concatenation;
+	}
+
+	synchronized void setDepthInfinity(boolean depthInfinity) {
+		this.depthInfinity = depthInfinity;
+	}
+
+	synchronized void setSearch(boolean search) {
+		this.search = search;
+	}
+
+	/**
+	 * Komprimiert Multistatus-Antworten mit gzip, wenn der Client das per Accept-Encoding anbietet.
+	 */
+	synchronized void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * @return Anzahl der komprimiert gesendeten Antworten
+	 */
+	synchronized int compressedReplies() {
+		return compressedReplies;
+	}
+
+	/**
+	 * Sendet hrefs als absolute URL (http://host:port/pfad) statt als absoluten Pfad.
+	 */
+	synchronized void setAbsoluteHrefs(boolean absoluteHrefs) {
+		this.absoluteHrefs = absoluteHrefs;
+	}
+
+	/**
+	 * Beantwortet Bulk-Requests mit dem Status, 0 für normale Verarbeitung.
+	 */
+	synchronized void setBulkStatus(int bulkStatus) {
+		this.bulkStatus = bulkStatus;
+	}
+
+	/**
+	 * Meldet für die Datei im Bulk-Ergebnis einen Fehler, statt sie zu speichern.
+	 */
+	synchronized void failBulk(String relPath) {
+		bulkFailures.add(absolute(relPath));
+	}
+
+	/**
+	 * Die nächsten count PATCH-Requests ab dem Offset fromOffset übernehmen nur die ersten keepBytes Bytes
+	 * und antworten mit 500.
+	 */
+	synchronized void failPatches(long fromOffset, int count, long keepBytes) {
+		this.patchFailureOffset = fromOffset;
+		this.patchFailures = count;
+		this.patchFailureKeep = keepBytes;
+	}
+
+	/**
+	 * Beantwortet Requests mit der Methode auf den Pfad mit dem Status, ohne sie auszuführen.
+	 */
+	synchronized void override(String method, String relPath, int status) {
+		overrides.put(method + " " + absolute(relPath), status);
+	}
+
+	/**
+	 * Beantwortet den nächsten Request mit der Methode auf den Pfad mit Status und Body (oder ohne, wenn null),
+	 * ohne ihn auszuführen; danach wird wieder normal geantwortet.
+	 */
+	synchronized void overrideOnce(String method, String relPath, int status, String body) {
+		Reply reply = new Reply(status);
+		if (body != null) {
+			reply.header("Content-Type", "application/xml; charset=utf-8").body(body);
+		}
+		onceOverrides.put(method + " " + absolute(relPath), reply);
+	}
+
+	/**
+	 * Beantwortet den nächsten Request mit der Methode auf den Pfad mit 503 und dem Retry-After-Header.
+	 */
+	synchronized void overloadOnce(String method, String relPath, String retryAfter) {
+		onceOverrides.put(method + " " + absolute(relPath), new Reply(503).header("Retry-After", retryAfter));
+	}
+
+	// --- Requests ---
+
+	private void handle(Request request, Response response, Callback callback) throws Exception {
+		String path = request.getHttpURI().getDecodedPath();
+		if (path.endsWith("/") && path.length() > 1) {
+			path = path.substring(0, path.length() - 1);
+		}
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (HttpField field : request.getHeaders()) {
+			headers.put(field.getName(), field.getValue());
+		}
+		// Body außerhalb der Sperre lesen, gemultiplexte Streams laufen parallel
+		byte[] body = Content.Source.asInputStream(request).readAllBytes();
+		Exchange ex = new Exchange(request.getConnectionMetaData().getProtocol(), request.getMethod(), path, headers, body);
+		Reply reply;
+		synchronized (this) {
+			exchanges.add(ex);
+			Integer status = overrides.get(ex.method() + " " + path);
+			Reply once = onceOverrides.remove(ex.method() + " " + path);
+			reply = once != null ? once : status != null ? new Reply(status) : dispatch(ex);
+			String accept = ex.header("Accept-Encoding");
+			if (compression && reply.status == 207 && reply.body != null && accept != null && accept.contains("gzip")) {
+				reply.header("Content-Encoding", "gzip").body(gzip(reply.body));
+				compressedReplies++;
+			}
+		}
+		response.setStatus(reply.status);
+		reply.headers.forEach((name, value) -> response.getHeaders().put(name, value));
+		if (reply.body != null && !ex.method().equals("HEAD")) {
+			response.write(true, ByteBuffer.wrap(reply.body), callback);
+		} else {
+			callback.succeeded();
+		}
+	}
+
+	private static final class Reply {
+		final int status;
+		final Map<String, String> headers = new HashMap<>();
+		byte[] body;
+
+		Reply(int status) {
+			this.status = status;
+		}
+
+		Reply header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		Reply body(byte[] body) {
+			this.body = body;
+			return this;
+		}
+
+		Reply body(String body) {
+			return body(body.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private Reply dispatch(Exchange ex) {
+		String path = ex.path();
+		if (path.startsWith(TUS_PREFIX)) {
+			return tus(ex);
+		}
+		return switch (ex.method()) {
+			case "OPTIONS" -> options();
+			case "PROPFIND" -> propfind(path, ex.header("Depth"));
+			case "GET", "HEAD" -> get(path, ex);
+			case "PUT" -> put(path, ex.body(), ex.header("X-OC-Mtime"));
+			case "MKCOL" -> mkcol(path);
+			case "DELETE" -> delete(path);
+			case "MOVE" -> move(path, URI.create(ex.header("Destination")).getPath());
+			case "SEARCH" -> search(ex.bodyText());
+			case "POST" -> path.equals(BULK_PATH) ? bulk(ex) : createUpload(ex);
+			default -> new Reply(405);
+		};
+	}
+
+	private Reply options() {
+		Reply reply = new Reply(200).header("DAV", "1, 2");
+		if (tus) {
+			reply.header("Tus-Version", "1.0.0").header("Tus-Resumable", "1.0.0")
+					.header("Tus-Extension", concatenation ? "creation,concatenation" : "creation");
+		}
+		return reply;
+	}
+
+	private Reply propfind(String path, String depth) {
+		if (!exists(path)) {
+			return new Reply(404);
+		}
+		if ("infinity".equals(depth) && !depthInfinity) {
+			return new Reply(403);
+		}
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">");
+		appendEntry(sb, path);
+		if (dirs.contains(path) && !"0".equals(depth)) {
+			String prefix = path + "/";
+			boolean all = "infinity".equals(depth);
+			for (String p : new TreeSet<>(allPaths())) {
+				if (p.startsWith(prefix) && (all || p.indexOf('/', prefix.length()) < 0)) {
+					appendEntry(sb, p);
+				}
+			}
+		}
+		sb.append("</d:multistatus>");
+		return new Reply(207).header("Content-Type", "application/xml; charset=utf-8").body(sb.toString());
+	}
+
+	private Reply get(String path, Exchange ex) {
+		byte[] content = files.get(path);
+		if (content == null) {
+			return new Reply(dirs.contains(path) ? 200 : 404);
+		}
+		String etag = etagOf(path);
+		if (etag.equals(ex.header("If-None-Match"))) {
+			return new Reply(304).header("ETag", etag);
+		}
+		String ifMatch = ex.header("If-Match");
+		if (ifMatch != null && !ifMatch.equals(etag)) {
+			return new Reply(412);
+		}
+		String range = ex.header("Range");
+		String ifRange = ex.header("If-Range");
+		if (ifRange != null && !ifRange.equals(etag)) {
+			// geänderte Datei: der ganze Inhalt statt des Teils
+			range = null;
+		}
+		int start = 0;
+		int end = content.length - 1;
+		int status = 200;
+		if (range != null && range.startsWith("bytes=")) {
+			String[] r = range.substring(6).split("-", -1);
+			start = Integer.parseInt(r[0]);
+			if (!r[1].isEmpty()) {
+				end = Math.min(end, Integer.parseInt(r[1]));
+			}
+			status = 206;
+		}
+		Reply reply = new Reply(status).header("ETag", etag).body(Arrays.copyOfRange(content, start, end + 1));
+		if (status == 206) {
+			reply.header("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+		}
+		return reply;
+	}
+
+	private Reply put(String path, byte[] body, String mtime) {
+		if (!dirs.contains(parent(path))) {
+			return new Reply(409);
+		}
+		boolean created = !files.containsKey(path);
+		files.put(path, body);
+		touch(path, mtime != null ? Long.parseLong(mtime) * 1000L : null);
+		return new Reply(created ? 201 : 204).header("ETag", etagOf(path));
+	}
+
+	private Reply mkcol(String path) {
+		if (exists(path)) {
+			return new Reply(405);
+		}
+		if (!dirs.contains(parent(path))) {
+			return new Reply(409);
+		}
+		dirs.add(path);
+		touch(path, null);
+		return new Reply(201);
+	}
+
+	private Reply delete(String path) {
+		if (!exists(path)) {
+			return new Reply(404);
+		}
+		files.keySet().removeIf(p -> p.equals(path) || p.startsWith(path + "/"));
+		dirs.removeIf(p -> p.equals(path) || p.startsWith(path + "/"));
+		mtimes.keySet().removeIf(p -> p.equals(path) || p.startsWith(path + "/"));
+		touch(parent(path), null);
+		return new Reply(204);
+	}
+
+	private Reply move(String source, String dest) {
+		if (!exists(source)) {
+			return new Reply(404);
+		}
+		if (!dirs.contains(parent(dest))) {
+			return new Reply(409);
+		}
+		boolean overwritten = exists(dest);
+		if (overwritten) {
+			delete(dest);
+		}
+		for (String p : new ArrayList<>(allPaths())) {
+			if (p.equals(source) || p.startsWith(source + "/")) {
+				String target = dest + p.substring(source.length());
+				if (dirs.remove(p)) {
+					dirs.add(target);
+				} else {
+					files.put(target, files.remove(p));
+				}
+				mtimes.put(target, mtimes.remove(p));
+			}
+		}
+		touch(parent(source), null);
+		touch(dest, mtimes.get(dest));
+		return new Reply(overwritten ? 204 : 201);
+	}
+
+	private static final Pattern SCOPE = Pattern.compile("<d:scope>\\s*<d:href>(.*?)</d:href>", Pattern.DOTALL);
+	private static final Pattern LITERAL = Pattern.compile("<d:literal>(.*?)</d:literal>", Pattern.DOTALL);
+
+	private Reply search(String body) {
+		if (!search) {
+			return new Reply(501);
+		}
+		Matcher scope = SCOPE.matcher(body);
+		Matcher literal = LITERAL.matcher(body);
+		if (!scope.find() || !literal.find()) {
+			return new Reply(400);
+		}
+		// der Scope ist relativ zur DAV-Wurzel, z.B. /files/u/folder
+		String folder = "/remote.php/dav" + scope.group(1);
+		long since = Instant.parse(literal.group(1)).toEpochMilli();
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?><d:multistatus xmlns:d=\"DAV:\" xmlns:oc=\"http://owncloud.org/ns\">");
+		for (String p : new TreeSet<>(allPaths())) {
+			// getlastmodified hat nur Sekunden
+			if (p.startsWith(folder + "/") && mtimes.getOrDefault(p, 0L) / 1000 * 1000 > since) {
+				appendEntry(sb, p);
+			}
+		}
+		sb.append("</d:multistatus>");
+		return new Reply(207).header("Content-Type", "application/xml; charset=utf-8").body(sb.toString());
+	}
+
+	// --- TUS ---
+
+	private Reply createUpload(Exchange ex) {
+		if (!tus || ex.header("Tus-Resumable") == null || !dirs.contains(ex.path())) {
+			return new Reply(405);
+		}
+		String concat = ex.header("Upload-Concat");
+		String mtime = ex.header("X-OC-Mtime");
+		Long mtimeMillis = mtime != null ? Long.parseLong(mtime) * 1000L : null;
+		if (concat != null && concat.startsWith("final;")) {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			List<String> ids = new ArrayList<>();
+			for (String url : concat.substring("final;".length()).trim().split(" ")) {
+				String id = URI.create(url).getPath().substring(TUS_PREFIX.length());
+				Upload part = uploads.get(id);
+				if (part == null || part.data.size() != part.length) {
+					return new Reply(400);
+				}
+				data.writeBytes(part.data.toByteArray());
+				ids.add(id);
+			}
+			ids.forEach(uploads::remove);
+			String target = ex.path() + "/" + filename(ex.header("Upload-Metadata"));
+			files.put(target, data.toByteArray());
+			touch(target, mtimeMillis);
+			return new Reply(201).header("Location", TUS_PREFIX + "final-" + nextUpload++);
+		}
+		boolean partial = "partial".equals(concat);
+		String target = partial ? null : ex.path() + "/" + filename(ex.header("Upload-Metadata"));
+		String id = Integer.toString(nextUpload++);
+		uploads.put(id, new Upload(target, Long.parseLong(ex.header("Upload-Length")), mtimeMillis));
+		return new Reply(201).header("Location", TUS_PREFIX + id).header("Tus-Resumable", "1.0.0");
+	}
+
+	private Reply tus(Exchange ex) {
+		Upload upload = uploads.get(ex.path().substring(TUS_PREFIX.length()));
+		if (upload == null) {
+			return new Reply(404);
+		}
+		switch (ex.method()) {
+			case "HEAD":
+				return new Reply(200).header("Upload-Offset", Integer.toString(upload.data.size()))
+						.header("Upload-Length", Long.toString(upload.length)).header("Cache-Control", "no-store");
+			case "PATCH":
+				if (Long.parseLong(ex.header("Upload-Offset")) != upload.data.size()) {
+					return new Reply(409);
+				}
+				byte[] body = ex.body();
+				if (patchFailures > 0 && upload.data.size() >= patchFailureOffset) {
+					// Verbindung "bricht" nach keepBytes Bytes ab
+					patchFailures--;
+					upload.data.write(body, 0, (int) Math.min(patchFailureKeep, body.length));
+					return new Reply(500);
+				}
+				if (upload.data.size() + body.length > upload.length) {
+					return new Reply(400);
+				}
+				upload.data.writeBytes(body);
+				if (upload.target != null && upload.data.size() == upload.length) {
+					uploads.values().remove(upload);
+					files.put(upload.target, upload.data.toByteArray());
+					touch(upload.target, upload.mtime);
+				}
+				return new Reply(204).header("Upload-Offset", Integer.toString(upload.data.size()));
+			default:
+				return new Reply(405);
+		}
+	}
+
+	private static String filename(String metadata) {
+		for (String pair : metadata.split(",")) {
+			String[] kv = pair.trim().split(" ");
+			if (kv[0].equals("filename")) {
+				return new String(Base64.getDecoder().decode(kv[1]), StandardCharsets.UTF_8);
+			}
+		}
+		throw new IllegalArgumentException("Kein Dateiname in Upload-Metadata: " + metadata);
+	}
+
+	// --- Bulk ---
+
+	private Reply bulk(Exchange ex) {
+		if (bulkStatus != 0) {
+			return new Reply(bulkStatus);
+		}
+		String contentType = ex.header("Content-Type");
+		int idx = contentType != null ? contentType.indexOf("boundary=") : -1;
+		if (idx < 0 || !contentType.startsWith("multipart/related")) {
+			return new Reply(400);
+		}
+		byte[] delimiter = ("--" + contentType.substring(idx + "boundary=".length())).getBytes(StandardCharsets.ISO_8859_1);
+		byte[] body = ex.body();
+		StringBuilder json = new StringBuilder("{");
+		int pos = indexOf(body, delimiter, 0);
+		while (pos >= 0) {
+			pos += delimiter.length;
+			if (body[pos] == '-' && body[pos + 1] == '-') {
+				break;
+			}
+			pos += 2;
+			Map<String, String> partHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			while (true) {
+				int eol = indexOf(body, new byte[] { '\r', '\n' }, pos);
+				String line = new String(body, pos, eol - pos, StandardCharsets.UTF_8);
+				pos = eol + 2;
+				if (line.isEmpty()) {
+					break;
+				}
+				int colon = line.indexOf(':');
+				partHeaders.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+			int length = Integer.parseInt(partHeaders.get("Content-Length"));
+			byte[] content = Arrays.copyOfRange(body, pos, pos + length);
+			pos = indexOf(body, delimiter, pos + length);
+			boolean md5Ok = HexFormat.of().formatHex(md5(content)).equals(partHeaders.get("X-File-MD5"));
+			partHeaders.put("md5-ok", Boolean.toString(md5Ok));
+			bulkParts.add(partHeaders);
+			String filePath = partHeaders.get("X-File-Path");
+			String target = USER_ROOT + filePath;
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append('"').append(filePath).append("\":");
+			if (!md5Ok || bulkFailures.contains(target) || !dirs.contains(parent(target))) {
+				json.append("{\"error\":true,\"message\":\"Upload failed\"}");
+				continue;
+			}
+			files.put(target, content);
+			touch(target, Long.parseLong(partHeaders.get("X-File-Mtime")) * 1000L);
+			json.append("{\"error\":false,\"etag\":\"").append(etagOf(target).replace("\"", "\\\"")).append("\"}");
+		}
+		json.append('}');
+		return new Reply(200).header("Content-Type", "application/json").body(json.toString());
+	}
+
+	private static int indexOf(byte[] data, byte[] pattern, int from) {
+		outer: for (int i = from; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static byte[] md5(byte[] data) {
+		try {
+			return MessageDigest.getInstance("MD5").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// --- Hilfsmethoden ---
+
+	private boolean exists(String path) {
+		return dirs.contains(path) || files.containsKey(path);
+	}
+
+	private Set<String> allPaths() {
+		Set<String> all = new HashSet<>(dirs);
+		all.addAll(files.keySet());
+		return all;
+	}
+
+	/**
+	 * Setzt die mtime der Ressource (null für jetzt) und aller Elternverzeichnisse unterhalb des Benutzerverzeichnisses.
+	 */
+	private void touch(String path, Long mtime) {
+		long now = System.currentTimeMillis();
+		mtimes.put(path, mtime != null ? mtime : now);
+		for (String dir = parent(path); dir.startsWith(USER_ROOT); dir = parent(dir)) {
+			mtimes.put(dir, now);
+		}
+	}
+
+	/**
+	 * ETag aus Inhalt bzw. bei Verzeichnissen aus dem ganzen Teilbaum, ändert sich also mit jeder Änderung darunter.
+	 */
+	private String etagOf(String path) {
+		if (files.containsKey(path)) {
+			return "\"" + Integer.toHexString(Arrays.hashCode(files.get(path)) * 31 + Long.hashCode(mtimes.getOrDefault(path, 0L))) + "\"";
+		}
+		int h = path.hashCode();
+		for (String p : new TreeSet<>(allPaths())) {
+			if (p.startsWith(path + "/")) {
+				h = h * 31 + p.hashCode();
+				if (files.containsKey(p)) {
+					h = h * 31 + Arrays.hashCode(files.get(p));
+				}
+			}
+		}
+		return "\"d" + Integer.toHexString(h) + "\"";
+	}
+
+	private void appendEntry(StringBuilder sb, String path) {
+		boolean dir = dirs.contains(path);
+		String lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(mtimes.getOrDefault(path, 0L)).atZone(ZoneOffset.UTC));
+		String host = absoluteHrefs ? "http://localhost:" + connector.getLocalPort() : "";
+		sb.append("<d:response><d:href>").append(host).append(encode(path)).append(dir ? "/" : "").append("</d:href><d:propstat><d:prop>")
+				.append("<d:getetag>").append(etagOf(path).replace("\"", "&quot;")).append("</d:getetag>")
+				.append("<d:getlastmodified>").append(lastModified).append("</d:getlastmodified>");
+		if (dir) {
+			sb.append("<d:resourcetype><d:collection/></d:resourcetype>");
+		} else {
+			byte[] content = files.get(path);
+			sb.append("<d:resourcetype/><d:getcontentlength>").append(content.length).append("</d:getcontentlength>")
+					.append("<oc:checksums><oc:checksum>MD5:").append(HexFormat.of().formatHex(md5(content))).append("</oc:checksum></oc:checksums>");
+		}
+		sb.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>");
+	}
+
+	/**
+	 * Prozent-Kodierung wie bei ownCloud/Nextcloud: alles außer den ungeschützten Zeichen und "/" als UTF-8-Bytes.
+	 */
+	private static String encode(String path) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~/".indexOf(c) >= 0) {
+				sb.append(c);
+			} else {
+				sb.append('%').append(String.format("%02X", (int) c));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static byte[] gzip(byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+			gz.write(data);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	private static String absolute(String relPath) {
+		if (relPath.isEmpty()) {
+			return USER_ROOT;
+		}
+		return USER_ROOT + (relPath.startsWith("/") ? relPath : "/" + relPath);
+	}
+
+	private static String parent(String path) {
+		return path.substring(0, Math.max(0, path.lastIndexOf('/')));
+	}
+
+}
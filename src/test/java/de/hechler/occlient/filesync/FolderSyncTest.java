@@ -0,0 +1,241 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FolderSyncTest {
+
+	private static final long HOUR = 60L * 60 * 1000;
+	private static final long CLOCK_SKEW_MS = 5L * 60 * 1000;
+	private static final long OLD = System.currentTimeMillis() / 1000 * 1000 - 48 * HOUR;
+
+	@TempDir
+	Path tmp;
+
+	private DavStandIn server;
+	private OpenCloudClient client;
+	private Path stateDir;
+	private Path local;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new DavStandIn();
+		for (String path : List.of("r/a/x.txt", "r/b/y.txt", "r/c/z.txt")) {
+			putOld(path, "old " + path);
+		}
+		stateDir = tmp.resolve("state");
+		local = tmp.resolve("local");
+		OpenCloudClient.TransferSettings d = OpenCloudClient.TransferSettings.DEFAULTS;
+		client = new OpenCloudClient(server.url(), "u", "p", OpenCloudClient.HttpSettings.DEFAULTS,
+				new OpenCloudClient.TransferSettings(d.thresholdBytes(), d.chunkSize(), d.parallelUploads(), stateDir.toString(),
+						d.segmentThresholdBytes(), d.parallelDownloads(), d.bulkMaxFiles(), d.bulkMaxBytes(), d.bulkFileMaxBytes()));
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	/**
+	 * Ändert eine Datei so, dass weder sie noch ihre Verzeichnisse unterhalb von r neuer erscheinen.
+	 */
+	private void putOld(String path, String content) {
+		server.putFile(path, content.getBytes(StandardCharsets.UTF_8), OLD);
+		for (String p = path; p.contains("/"); p = p.substring(0, p.lastIndexOf('/'))) {
+			server.setMtime(p, OLD);
+		}
+	}
+
+	private String local(String path) throws Exception {
+		return Files.readString(local.resolve(path));
+	}
+
+	private List<String> propfindPaths() {
+		return server.exchanges("PROPFIND").stream().map(DavStandIn.Exchange::path).toList();
+	}
+
+	@Test
+	void syncsOnlyChangedDirectoriesUntilTheFullWalkIsDue() throws Exception {
+		FolderSync sync = new FolderSync(client);
+		long start1 = System.currentTimeMillis();
+		sync.syncLocalFolder(local.toString(), "r", null, null);
+		long end1 = System.currentTimeMillis();
+		assertEquals("old r/c/z.txt", local("c/z.txt"));
+
+		// geändert, für SEARCH sichtbar
+		server.putFile("r/b/y.txt", "new y".getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+		// geändert, aber mit alter mtime: fällt erst beim vollständigen Abgleich auf
+		putOld("r/c/z.txt", "new z");
+		server.setMtime("r", System.currentTimeMillis());
+		server.clearExchanges();
+
+		sync.syncLocalFolder(local.toString(), "r", null, null);
+
+		List<DavStandIn.Exchange> searches = server.exchanges("SEARCH");
+		assertEquals(1, searches.size());
+		String body = searches.get(0).bodyText();
+		assertTrue(body.contains("<d:basicsearch>"), body);
+		assertTrue(body.contains("<d:scope><d:href>/files/u/r</d:href><d:depth>infinity</d:depth></d:scope>"), body);
+		Matcher literal = Pattern.compile("<d:gt><d:prop><d:getlastmodified/></d:prop><d:literal>(.*?)</d:literal></d:gt>").matcher(body);
+		assertTrue(literal.find(), body);
+		long since = Instant.parse(literal.group(1)).toEpochMilli();
+		assertTrue(since >= start1 - CLOCK_SKEW_MS && since <= end1 - CLOCK_SKEW_MS, "seit dem letzten Sync abzüglich Uhrenabweichung");
+		assertEquals("new y", local("b/y.txt"));
+		assertEquals("old r/c/z.txt", local("c/z.txt"), "nur die gemeldeten Verzeichnisse werden abgeglichen");
+		assertFalse(propfindPaths().contains(DavStandIn.USER_ROOT + "/r/a"));
+		assertFalse(propfindPaths().contains(DavStandIn.USER_ROOT + "/r/c"));
+
+		// letzter vollständiger Abgleich vor mehr als 24 Stunden
+		EtagStore etags = EtagStore.load(stateDir.toString(), local.toString());
+		long lastSync = etags.getLastSync();
+		etags.setLastSync(lastSync - 25 * HOUR, true);
+		etags.setLastSync(lastSync, false);
+		etags.save();
+		server.clearExchanges();
+
+		sync.syncLocalFolder(local.toString(), "r", null, null);
+
+		assertEquals(0, server.exchanges("SEARCH").size());
+		assertTrue(propfindPaths().contains(DavStandIn.USER_ROOT + "/r/c"));
+		assertEquals("new z", local("c/z.txt"));
+		assertTrue(EtagStore.load(stateDir.toString(), local.toString()).getLastFullSync() >= end1);
+	}
+
+	private DavStandIn.Exchange get(String path) {
+		List<DavStandIn.Exchange> gets = server.exchanges("GET").stream().filter(ex -> ex.path().equals(DavStandIn.USER_ROOT + "/" + path)).toList();
+		assertEquals(1, gets.size(), path);
+		return gets.get(0);
+	}
+
+	@Test
+	void resumesAnInterruptedDownloadOnlyWhileTheEtagMatches() throws Exception {
+		Files.createDirectories(local.resolve("a"));
+		Files.createDirectories(local.resolve("b"));
+		// vom letzten Lauf, die Remote-Datei ist unverändert: nur der Rest wird geholt
+		Files.writeString(local.resolve("a/x.txt.tmp"), "OLD ");
+		Files.writeString(local.resolve("a/x.txt.tmp.etag"), server.etag("r/a/x.txt"));
+		// vom letzten Lauf, die Remote-Datei hat sich seitdem geändert
+		Files.writeString(local.resolve("b/y.txt.tmp"), "stale content");
+		Files.writeString(local.resolve("b/y.txt.tmp.etag"), "\"stale\"");
+
+		new FolderSync(client).syncLocalFolder(local.toString(), "r", null, null);
+
+		DavStandIn.Exchange resumed = get("r/a/x.txt");
+		assertEquals("bytes=4-", resumed.header("Range"));
+		assertEquals(server.etag("r/a/x.txt"), resumed.header("If-Range"));
+		assertEquals("OLD r/a/x.txt", local("a/x.txt"), "der vorhandene Teil wurde nicht erneut geladen");
+		DavStandIn.Exchange restarted = get("r/b/y.txt");
+		assertNull(restarted.header("Range"));
+		assertEquals("old r/b/y.txt", local("b/y.txt"));
+		for (String leftover : List.of("a/x.txt.tmp", "a/x.txt.tmp.etag", "b/y.txt.tmp", "b/y.txt.tmp.etag")) {
+			assertFalse(Files.exists(local.resolve(leftover)), leftover);
+		}
+	}
+
+	private Map<String, OpenCloudClient.FileInfo> manifest(String remoteFolder) {
+		Map<String, List<OpenCloudClient.FileInfo>> tree = new SyncManifest(client).loadTree(remoteFolder, client.getFileInfo(remoteFolder), null);
+		assertNotNull(tree, "Manifest veröffentlicht und aktuell");
+		Map<String, OpenCloudClient.FileInfo> entries = new HashMap<>();
+		tree.forEach((dir, children) -> children.forEach(fi -> entries.put(dir.isEmpty() ? fi.name() : dir + "/" + fi.name(), fi)));
+		return entries;
+	}
+
+	@Test
+	void writesTheManifestDuringTheUploadWithoutRelisting() throws Exception {
+		Files.createDirectories(local.resolve("a/b"));
+		Files.createDirectories(local.resolve("d"));
+		Files.writeString(local.resolve("a/b/new.txt"), "new");
+		Files.writeString(local.resolve("d/keep.txt"), "keep");
+		Files.writeString(local.resolve("top.txt"), "top");
+		FolderSync sync = new FolderSync(client);
+
+		sync.syncRemoteFolder("u", local.toString(), null, null);
+
+		Map<String, OpenCloudClient.FileInfo> entries = manifest("u");
+		assertEquals(Set.of("a", "a/b", "a/b/new.txt", "d", "d/keep.txt", "top.txt"), entries.keySet());
+		for (String file : List.of("a/b/new.txt", "d/keep.txt", "top.txt")) {
+			assertEquals(server.etag("u/" + file), entries.get(file).etag(), file);
+			assertEquals(HexFormat.of().formatHex(ChecksumUtil.calculateMD5bytes(local(file))), entries.get(file).md5(), file);
+		}
+		// neu angelegt, die ETag vor dem Upload gibt es nicht
+		assertNull(entries.get("a").etag());
+		for (DavStandIn.Exchange ex : server.exchanges("PROPFIND")) {
+			assertNotEquals("infinity", ex.header("Depth"), ex.path());
+		}
+
+		// nichts geändert: kein neues Manifest
+		server.clearExchanges();
+		sync.syncRemoteFolder("u", local.toString(), null, null);
+		assertTrue(server.exchanges("PUT").isEmpty());
+
+		Files.writeString(local.resolve("a/b/new.txt"), "changed");
+		server.clearExchanges();
+		sync.syncRemoteFolder("u", local.toString(), null, null);
+
+		entries = manifest("u");
+		assertEquals(server.etag("u/a/b/new.txt"), entries.get("a/b/new.txt").etag());
+		assertEquals(server.etag("u/d"), entries.get("d").etag(), "unverändertes Verzeichnis behält die ETag aus dem Listing");
+		assertNull(entries.get("a").etag(), "Änderung darunter");
+		assertNull(entries.get("a/b").etag(), "Änderung darin");
+		List<String> puts = server.exchanges("PUT").stream().map(DavStandIn.Exchange::path).toList();
+		assertEquals(List.of(DavStandIn.USER_ROOT + "/u/a/b/new.txt", DavStandIn.USER_ROOT + "/u/" + SyncManifest.FILE_NAME), puts);
+	}
+
+	private List<String> deletePaths() {
+		return server.exchanges("DELETE").stream().map(ex -> ex.path().substring(DavStandIn.USER_ROOT.length() + 1)).toList();
+	}
+
+	@Test
+	void deletesEntryByEntryOnlyWhenTheRecursiveDeleteFailsForSomeEntries() throws Exception {
+		Files.createDirectories(local.resolve("a"));
+		Files.writeString(local.resolve("a/x.txt"), "old r/a/x.txt");
+		server.overrideOnce("DELETE", "r/b", 207, "<?xml version=\"1.0\"?><d:multistatus xmlns:d=\"DAV:\"><d:response>"
+				+ "<d:href>" + DavStandIn.USER_ROOT + "/r/b/y.txt</d:href><d:status>HTTP/1.1 423 Locked</d:status></d:response></d:multistatus>");
+		// schon gelöscht, etwa von einem anderen Client
+		server.overrideOnce("DELETE", "r/c", 404, null);
+
+		new FolderSync(client).syncRemoteFolder("r", local.toString(), null, null);
+
+		List<String> deletes = deletePaths();
+		assertEquals(List.of("r/b", "r/b/y.txt", "r/b"), deletes.stream().filter(p -> p.startsWith("r/b")).toList());
+		assertEquals(List.of("r/c"), deletes.stream().filter(p -> p.startsWith("r/c")).toList(), "404 gilt als gelöscht");
+		assertNull(server.file("r/b/y.txt"));
+		assertNotNull(server.file("r/a/x.txt"));
+	}
+
+	@Test
+	void keepsTheTreeWhenTheRecursiveDeleteFailsOtherwise() throws Exception {
+		Files.createDirectories(local.resolve("a"));
+		Files.writeString(local.resolve("a/x.txt"), "old r/a/x.txt");
+		server.overrideOnce("DELETE", "r/b", 500, null);
+
+		new FolderSync(client).syncRemoteFolder("r", local.toString(), null, null);
+
+		assertEquals(List.of("r/b"), deletePaths().stream().filter(p -> p.startsWith("r/b")).toList(), "kein Löschen Eintrag für Eintrag");
+		assertNotNull(server.file("r/b/y.txt"));
+		assertNull(server.file("r/c/z.txt"));
+	}
+
+}
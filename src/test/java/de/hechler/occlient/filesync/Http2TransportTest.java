@@ -0,0 +1,95 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.sardine.impl.SardineException;
+
+class Http2TransportTest {
+
+	private DavStandIn server;
+	private OpenCloudClient client;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new DavStandIn();
+		OpenCloudClient.HttpSettings d = OpenCloudClient.HttpSettings.DEFAULTS;
+		OpenCloudClient.HttpSettings settings = new OpenCloudClient.HttpSettings(d.maxConnections(), d.maxConnectionsPerRoute(),
+				d.connectTimeoutMs(), d.socketTimeoutMs(), d.keepAliveMs(), d.tlsSessionCacheSize(), d.tlsSessionTimeoutSec(), true, 0);
+		client = new OpenCloudClient(server.url(), "u", "p", settings);
+		// Upgrade auf h2c mit dem ersten Request ohne Body
+		assertTrue(client.exists(""));
+		server.clearExchanges();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	void runsWebDavVerbsOverH2c() throws Exception {
+		byte[] content = "hello h2c".getBytes(StandardCharsets.UTF_8);
+		server.putFile("dir/old.txt", "old".getBytes(StandardCharsets.UTF_8), 1_000_000L);
+
+		client.uploadFile("dir/a.txt", content);
+		List<OpenCloudClient.FileInfo> listing = client.listFiles("dir");
+		try (InputStream in = client.downloadFile("dir/a.txt")) {
+			assertArrayEquals(content, in.readAllBytes());
+		}
+		client.move("dir/a.txt", "dir/b.txt");
+		client.delete("dir/old.txt");
+
+		assertEquals(List.of("a.txt", "old.txt"), listing.stream().map(OpenCloudClient.FileInfo::name).sorted().toList());
+		assertArrayEquals(content, server.file("dir/b.txt"));
+		assertNull(server.file("dir/a.txt"));
+		assertNull(server.file("dir/old.txt"));
+		List<String> methods = server.exchanges().stream().map(DavStandIn.Exchange::method).distinct().toList();
+		assertTrue(methods.containsAll(List.of("PUT", "PROPFIND", "GET", "MOVE", "DELETE")), methods.toString());
+		for (DavStandIn.Exchange ex : server.exchanges()) {
+			assertEquals("HTTP/2.0", ex.protocol(), ex.method() + " " + ex.path());
+		}
+	}
+
+	@Test
+	void existsIsFalseOnlyOn404() {
+		server.putFile("present.txt", new byte[1], 1_000_000L);
+		server.override("HEAD", "broken.txt", 500);
+		server.override("HEAD", "forbidden.txt", 403);
+
+		assertTrue(client.exists("present.txt"));
+		assertFalse(client.exists("missing.txt"));
+		RuntimeException e = assertThrows(RuntimeException.class, () -> client.exists("broken.txt"));
+		assertEquals(500, ((SardineException) e.getCause()).getStatusCode());
+		e = assertThrows(RuntimeException.class, () -> client.exists("forbidden.txt"));
+		assertEquals(403, ((SardineException) e.getCause()).getStatusCode());
+	}
+
+	@Test
+	void decodesACompressedMultistatusOverH2c() {
+		server.putFile("dir/ä b.txt", new byte[1], 1_000_000L);
+		server.putFile("dir/sub/c%.txt", new byte[1], 1_000_000L);
+		server.setCompression(true);
+		server.setAbsoluteHrefs(true);
+
+		List<OpenCloudClient.FileInfo> listing = client.listFiles("dir");
+
+		assertEquals(List.of("sub", "ä b.txt"), listing.stream().map(OpenCloudClient.FileInfo::name).sorted().toList());
+		assertEquals(1, server.compressedReplies());
+		assertEquals("HTTP/2.0", server.exchanges("PROPFIND").get(0).protocol());
+	}
+
+}
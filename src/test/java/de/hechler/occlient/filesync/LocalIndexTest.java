@@ -0,0 +1,150 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LocalIndexTest {
+
+	private static final List<String> FILES = List.of("a.txt", "d.txt", "d/b.txt", "d/e/c.txt");
+
+	@TempDir
+	Path tmp;
+
+	private Path stateDir;
+	private Path local;
+	private ChecksumCache checksums;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		stateDir = tmp.resolve("state");
+		local = tmp.resolve("local");
+		for (String file : FILES) {
+			Files.createDirectories(local.resolve(file).getParent());
+			Files.writeString(local.resolve(file), "content of " + file);
+		}
+		checksums = ChecksumCache.load(stateDir.toString(), 100);
+	}
+
+	private LocalIndex load() {
+		return LocalIndex.load(stateDir.toString(), local.toString(), null, checksums);
+	}
+
+	private LocalIndex indexWithEtags() {
+		LocalIndex index = load();
+		for (String file : FILES) {
+			index.putEtag(file, local.resolve(file), "etag-" + file);
+		}
+		return index;
+	}
+
+	private List<String> stateFiles() throws Exception {
+		try (Stream<Path> files = Files.list(stateDir)) {
+			return files.map(p -> p.getFileName().toString()).filter(name -> name.startsWith("index-")).sorted().toList();
+		}
+	}
+
+	private String baseName() {
+		return "index-" + HexFormat.of().formatHex(ChecksumUtil.calculateMD5bytes(local.toAbsolutePath().normalize().toString()));
+	}
+
+	@Test
+	void keepsEntriesAcrossSavesUntilTheFileChanges() throws Exception {
+		LocalIndex index = indexWithEtags();
+		String md5 = index.getPlainMd5("d/b.txt", local.resolve("d/b.txt"));
+		index.save();
+		index.putEtag("a.txt", local.resolve("a.txt"), "etag-a2");
+		index.save();
+
+		assertEquals(List.of(baseName() + "-2.bin"), stateFiles(), "nur die neueste Generation bleibt");
+		LocalIndex loaded = load();
+		assertEquals("etag-a2", loaded.getEtag("a.txt", local.resolve("a.txt")));
+		assertEquals("etag-d/e/c.txt", loaded.getEtag("d/e/c.txt", local.resolve("d/e/c.txt")));
+		assertEquals(md5, loaded.getPlainMd5("d/b.txt", local.resolve("d/b.txt")));
+		assertEquals(4, loaded.countEtagsUnder(""));
+
+		Files.writeString(local.resolve("d/b.txt"), "changed");
+		assertNull(loaded.getEtag("d/b.txt", local.resolve("d/b.txt")));
+	}
+
+	@Test
+	void ignoresWhatACrashedSaveLeftBehind() throws Exception {
+		LocalIndex index = indexWithEtags();
+		index.save();
+		// Absturz beim Schreiben der nächsten Generation
+		Files.write(stateDir.resolve(baseName() + "-2.bin.tmp"), new byte[] { 1, 2, 3 });
+
+		assertEquals("etag-a.txt", load().getEtag("a.txt", local.resolve("a.txt")));
+
+		// Absturz nach dem Umbenennen, vor dem Löschen der alten Generation
+		Files.copy(stateDir.resolve(baseName() + "-1.bin"), stateDir.resolve(baseName() + "-0.bin"));
+		index.putEtag("a.txt", local.resolve("a.txt"), "etag-a2");
+		index.save();
+		assertEquals("etag-a2", load().getEtag("a.txt", local.resolve("a.txt")));
+
+		// eine beschädigte Generation gilt als leerer Index und wird beim Speichern ersetzt
+		Files.write(stateDir.resolve(baseName() + "-3.bin"), new byte[64]);
+		LocalIndex damaged = load();
+		assertNull(damaged.getEtag("a.txt", local.resolve("a.txt")));
+		damaged.putEtag("a.txt", local.resolve("a.txt"), "etag-a3");
+		damaged.save();
+		assertEquals(List.of(baseName() + "-4.bin"), stateFiles());
+		assertEquals("etag-a3", load().getEtag("a.txt", local.resolve("a.txt")));
+	}
+
+	@Test
+	void migratesTheOldPropertiesIndex() throws Exception {
+		Path file = local.resolve("d/b.txt");
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		Properties props = new Properties();
+		props.setProperty("//passphrase", "-");
+		props.setProperty("d/b.txt", attrs.size() + "|" + attrs.lastModifiedTime().toMillis() + "|" + attrs.fileKey() + "|-|-|\"e|1\"");
+		Files.createDirectories(stateDir);
+		try (OutputStream out = Files.newOutputStream(stateDir.resolve(baseName() + ".properties"))) {
+			props.store(out, null);
+		}
+
+		LocalIndex index = load();
+		assertEquals("\"e|1\"", index.getEtag("d/b.txt", file));
+		index.save();
+
+		assertEquals(List.of(baseName() + "-1.bin"), stateFiles());
+		assertEquals("\"e|1\"", load().getEtag("d/b.txt", file));
+	}
+
+	@Test
+	void removesAcrossTheSavedIndexAndPendingChanges() throws Exception {
+		LocalIndex index = indexWithEtags();
+		index.save();
+		Files.writeString(local.resolve("d/f.txt"), "new");
+		index.putEtag("d/f.txt", local.resolve("d/f.txt"), "etag-f");
+
+		index.remove("d/e");
+		assertEquals(2, index.countEtagsUnder("d"));
+		index.retainChildren("", Set.of("d", "d.txt"));
+		assertEquals(3, index.countEtagsUnder(""));
+		assertNull(index.getEtag("a.txt", local.resolve("a.txt")));
+		index.remove("d");
+		assertEquals(1, index.countEtagsUnder(""), "d.txt liegt nicht unter d");
+		index.save();
+
+		LocalIndex loaded = load();
+		assertEquals(1, loaded.countEtagsUnder(""));
+		assertEquals("etag-d.txt", loaded.getEtag("d.txt", local.resolve("d.txt")));
+		assertEquals(List.of(baseName() + "-2.bin"), stateFiles());
+	}
+
+}
@@ -0,0 +1,209 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OpenCloudClientTest {
+
+	private static final long MTIME = 1_700_000_000_000L;
+	private static final Map<String, List<String>> TREE = Map.of(
+			"", List.of("a.txt", "d", "f"),
+			"d", List.of("b.txt", "e"),
+			"d/e", List.of("c.txt"),
+			"f", List.of("g.txt"));
+
+	@TempDir
+	Path tmp;
+
+	private DavStandIn server;
+	private OpenCloudClient client;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new DavStandIn();
+		client = new OpenCloudClient(server.url(), "u", "p");
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	private void putTree() {
+		for (String path : List.of("t/a.txt", "t/d/b.txt", "t/d/e/c.txt", "t/f/g.txt")) {
+			server.putFile(path, path.getBytes(StandardCharsets.UTF_8), MTIME);
+		}
+	}
+
+	private static Map<String, List<String>> names(Map<String, List<OpenCloudClient.FileInfo>> tree) {
+		Map<String, List<String>> names = new TreeMap<>();
+		tree.forEach((dir, entries) -> names.put(dir, entries.stream().map(OpenCloudClient.FileInfo::name).sorted().toList()));
+		return names;
+	}
+
+	@Test
+	void listsTheTreeWithOneDepthInfinityPropfind() {
+		putTree();
+
+		assertEquals(new TreeMap<>(TREE), names(client.listTree("t")));
+
+		List<DavStandIn.Exchange> propfinds = server.exchanges("PROPFIND");
+		assertEquals(1, propfinds.size());
+		assertEquals("infinity", propfinds.get(0).header("Depth"));
+	}
+
+	@Test
+	void crawlsLevelByLevelWhenDepthInfinityIsRefused() {
+		putTree();
+		server.setDepthInfinity(false);
+
+		assertEquals(new TreeMap<>(TREE), names(client.listTree("t")));
+
+		List<String> crawled = server.exchanges("PROPFIND").stream().filter(ex -> "1".equals(ex.header("Depth")))
+				.map(ex -> ex.path().substring(DavStandIn.USER_ROOT.length())).sorted().toList();
+		assertEquals(List.of("/t", "/t/d", "/t/d/e", "/t/f"), crawled);
+	}
+
+	@Test
+	void createDirectoriesAcceptsAnExistingDirectoryButNotAFile() {
+		putTree();
+
+		client.createDirectories("t/d/e");
+		assertTrue(client.exists("t/d/e"));
+		server.clearExchanges();
+		client.createDirectories("t/d/e");
+		assertTrue(server.exchanges().isEmpty(), "bekanntes Verzeichnis, kein Request");
+
+		RuntimeException e = assertThrows(RuntimeException.class, () -> client.createDirectories("t/a.txt"));
+		assertEquals(405, OpenCloudClient.statusOf(e));
+		server.clearExchanges();
+		assertThrows(RuntimeException.class, () -> client.createDirectories("t/a.txt/sub"));
+		assertFalse(server.exchanges("MKCOL").isEmpty(), "die Datei wurde nicht als Verzeichnis vermerkt");
+	}
+
+	@Test
+	void readsEncodedAndAbsoluteHrefsFromACompressedMultistatus() {
+		List<String> odd = List.of("ä#1.txt", "100%.txt", "x+y&z.txt", "sp ace");
+		for (String name : odd) {
+			server.putFile("t/" + name + (name.endsWith(".txt") ? "" : "/a b.txt"), name.getBytes(StandardCharsets.UTF_8), MTIME);
+		}
+		server.setCompression(true);
+		server.setAbsoluteHrefs(true);
+
+		List<String> sorted = odd.stream().sorted().toList();
+		assertEquals(sorted, client.listFiles("t").stream().map(OpenCloudClient.FileInfo::name).sorted().toList());
+		assertEquals(new TreeMap<>(Map.of("", sorted, "sp ace", List.of("a b.txt"))), names(client.listTree("t")));
+
+		assertEquals(2, server.compressedReplies());
+		for (DavStandIn.Exchange ex : server.exchanges("PROPFIND")) {
+			assertTrue(ex.header("Accept-Encoding").contains("gzip"), ex.path());
+		}
+	}
+
+	@Test
+	void resumesWithIfRangeAndRestartsWhenTheEtagChanged() throws Exception {
+		server.putFile("t/f.txt", "0123456789".getBytes(StandardCharsets.UTF_8), MTIME);
+		String etag = server.etag("t/f.txt");
+
+		OpenCloudClient.RangedDownload dl = client.downloadFile("t/f.txt", 4, etag);
+		try (InputStream in = dl.content()) {
+			assertTrue(dl.partial());
+			assertEquals("456789", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertEquals(etag, dl.etag());
+
+		// inzwischen geändert: der Server schickt die ganze neue Datei
+		server.putFile("t/f.txt", "abcdefghijkl".getBytes(StandardCharsets.UTF_8), MTIME);
+		dl = client.downloadFile("t/f.txt", 4, etag);
+		try (InputStream in = dl.content()) {
+			assertFalse(dl.partial());
+			assertEquals("abcdefghijkl", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		assertEquals(server.etag("t/f.txt"), dl.etag());
+		List<DavStandIn.Exchange> gets = server.exchanges("GET");
+		assertEquals(List.of("bytes=4-", "bytes=4-"), gets.stream().map(ex -> ex.header("Range")).toList());
+		assertEquals(List.of(etag, etag), gets.stream().map(ex -> ex.header("If-Range")).toList());
+	}
+
+	@Test
+	void writesParallelSegmentsToTheirPositions() throws Exception {
+		byte[] content = new byte[3 * 1024 * 1024 + 123];
+		new Random(1).nextBytes(content);
+		server.putFile("t/big.bin", content, MTIME);
+		String etag = server.etag("t/big.bin");
+		Path target = tmp.resolve("big.bin");
+		// länger als die Remote-Datei, muss abgeschnitten werden
+		Files.write(target, new byte[content.length + 4096]);
+		OpenCloudClient.TransferSettings d = OpenCloudClient.TransferSettings.DEFAULTS;
+		OpenCloudClient segmented = new OpenCloudClient(server.url(), "u", "p", OpenCloudClient.HttpSettings.DEFAULTS,
+				new OpenCloudClient.TransferSettings(d.thresholdBytes(), d.chunkSize(), d.parallelUploads(), tmp.resolve("state").toString(),
+						1024 * 1024, 4, d.bulkMaxFiles(), d.bulkMaxBytes(), d.bulkFileMaxBytes()));
+		try {
+			assertTrue(segmented.downloadFileSegmented("t/big.bin", target, content.length, etag));
+			assertArrayEquals(content, Files.readAllBytes(target));
+
+			// drei Segmente, lückenlos und ohne Überlappung
+			List<long[]> ranges = new ArrayList<>();
+			for (DavStandIn.Exchange ex : server.exchanges("GET")) {
+				assertEquals(etag, ex.header("If-Match"));
+				Matcher m = Pattern.compile("bytes=(\\d+)-(\\d+)").matcher(ex.header("Range"));
+				assertTrue(m.matches(), ex.header("Range"));
+				ranges.add(new long[] { Long.parseLong(m.group(1)), Long.parseLong(m.group(2)) });
+			}
+			ranges.sort(Comparator.comparingLong(r -> r[0]));
+			assertEquals(3, ranges.size());
+			long next = 0;
+			for (long[] range : ranges) {
+				assertEquals(next, range[0]);
+				next = range[1] + 1;
+			}
+			assertEquals(content.length, next);
+
+			// inzwischen geändert: If-Match schlägt fehl
+			RuntimeException e = assertThrows(RuntimeException.class,
+					() -> segmented.downloadFileSegmented("t/big.bin", target, content.length, "\"stale\""));
+			assertEquals(412, OpenCloudClient.statusOf(e));
+			// unter der Schwelle lädt der Aufrufer normal herunter
+			assertFalse(segmented.downloadFileSegmented("t/big.bin", target, 1024 * 1024 - 1, etag));
+		} finally {
+			segmented.close();
+		}
+	}
+
+	@Test
+	void retriesAnOverloadedListingAfterRetryAfter() {
+		putTree();
+		server.overloadOnce("PROPFIND", "t", "1");
+
+		long start = System.nanoTime();
+		List<OpenCloudClient.FileInfo> listing = client.listFiles("t");
+		long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+		assertEquals(TREE.get(""), listing.stream().map(OpenCloudClient.FileInfo::name).sorted().toList());
+		assertEquals(2, server.exchanges("PROPFIND").size());
+		assertTrue(elapsedMs >= 900, "Retry-After: 1 abgewartet, " + elapsedMs + " ms");
+	}
+
+}
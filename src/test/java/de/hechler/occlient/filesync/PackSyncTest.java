@@ -0,0 +1,136 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PackSyncTest {
+
+	private static final long MTIME = 1_700_000_000_000L;
+	private static final String SEGMENTS = DavStandIn.USER_ROOT + "/p/segments/";
+
+	@TempDir
+	Path tmp;
+
+	private DavStandIn server;
+	private OpenCloudClient client;
+	private PackSync pack;
+	private Path source;
+	private Path target;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new DavStandIn();
+		OpenCloudClient.TransferSettings d = OpenCloudClient.TransferSettings.DEFAULTS;
+		client = new OpenCloudClient(server.url(), "u", "p", OpenCloudClient.HttpSettings.DEFAULTS,
+				new OpenCloudClient.TransferSettings(d.thresholdBytes(), d.chunkSize(), d.parallelUploads(), tmp.resolve("state").toString(),
+						d.segmentThresholdBytes(), d.parallelDownloads(), d.bulkMaxFiles(), d.bulkMaxBytes(), d.bulkFileMaxBytes()));
+		pack = new PackSync(client);
+		source = tmp.resolve("source");
+		target = tmp.resolve("target");
+		for (int i = 0; i < 20; i++) {
+			write(source.resolve("d" + i % 4 + "/f" + i + ".txt"), ("small " + i).getBytes(StandardCharsets.UTF_8));
+		}
+		// ab 1 MiB in einem eigenen Segment
+		for (int i = 0; i < 2; i++) {
+			byte[] big = new byte[1024 * 1024 + i];
+			Arrays.fill(big, (byte) ('a' + i));
+			write(source.resolve("big" + i + ".bin"), big);
+		}
+		Files.createDirectories(source.resolve("empty"));
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	private static void write(Path file, byte[] content) throws Exception {
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(MTIME));
+	}
+
+	private static Map<String, String> tree(Path root) throws Exception {
+		Map<String, String> tree = new TreeMap<>();
+		try (Stream<Path> paths = Files.walk(root)) {
+			for (Path p : paths.filter(p -> !p.equals(root)).toList()) {
+				String rel = root.relativize(p).toString().replace('\\', '/');
+				tree.put(rel, Files.isDirectory(p) ? "dir" : Files.size(p) + "|" + Files.getLastModifiedTime(p).toMillis()
+						+ "|" + ChecksumUtil.calculateMD5(p));
+			}
+		}
+		return tree;
+	}
+
+	private List<String> segmentGets() {
+		return server.exchanges("GET").stream().map(DavStandIn.Exchange::path).filter(p -> p.startsWith(SEGMENTS)).toList();
+	}
+
+	@Test
+	void roundTripsAndDownloadsOnlyChangedSegments() throws Exception {
+		pack.upload(source.toString(), "p", null, null);
+		assertEquals(3, client.listFiles("p/segments").size());
+		pack.download(target.toString(), "p", null, null);
+		assertEquals(tree(source), tree(target));
+
+		write(source.resolve("d1/f1.txt"), "changed content".getBytes(StandardCharsets.UTF_8));
+		pack.upload(source.toString(), "p", null, null);
+		// nur berührt: gleicher Inhalt, andere mtime
+		Files.setLastModifiedTime(target.resolve("big0.bin"), FileTime.fromMillis(MTIME + 3_600_000L));
+		write(target.resolve("d0/extra.txt"), "extra".getBytes(StandardCharsets.UTF_8));
+		server.clearExchanges();
+
+		pack.download(target.toString(), "p", null, null);
+
+		assertEquals(1, segmentGets().size(), segmentGets().toString());
+		assertEquals(tree(source), tree(target));
+		assertEquals(3, client.listFiles("p/segments").size(), "das alte Segment wurde gelöscht");
+	}
+
+	@Test
+	void roundTripsEncrypted() throws Exception {
+		pack.upload(source.toString(), "p", null, "secret");
+		assertThrows(RuntimeException.class, () -> pack.download(target.resolve("plain").toString(), "p", null, null), "Index ist verschlüsselt");
+
+		pack.download(target.toString(), "p", null, "secret");
+
+		assertEquals(tree(source), tree(target));
+	}
+
+	@Test
+	void keepsLocalEntriesWhenASegmentFails() throws Exception {
+		pack.upload(source.toString(), "p", null, null);
+		pack.download(target.toString(), "p", null, null);
+		write(source.resolve("d2/f2.txt"), "changed content".getBytes(StandardCharsets.UTF_8));
+		pack.upload(source.toString(), "p", null, null);
+		for (OpenCloudClient.FileInfo fi : client.listFiles("p/segments")) {
+			server.override("GET", "p/segments/" + fi.name(), 500);
+		}
+		write(target.resolve("extra.txt"), "extra".getBytes(StandardCharsets.UTF_8));
+
+		RuntimeException e = assertThrows(RuntimeException.class, () -> pack.download(target.toString(), "p", null, null));
+
+		assertTrue(e.getMessage().startsWith("1 Segmente"), e.getMessage());
+		assertTrue(Files.exists(target.resolve("extra.txt")), "nichts gelöscht");
+		assertArrayEquals("small 2".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(target.resolve("d2/f2.txt")));
+	}
+
+}
@@ -0,0 +1,102 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SyncPlanTest {
+
+	@TempDir
+	Path tmp;
+
+	@Test
+	void roundTripsFieldsWithSeparatorsAndEscapes() {
+		SyncPlan plan = new SyncPlan(false, "C:\\daten\tlokal", "remote/100%");
+		plan.add(new SyncPlan.Operation(SyncPlan.Type.DOWNLOAD, "a\tb/zeile\nzwei\r.txt", null, 42, 1_700_000_000_000L, "\"e\t1\"", "abc", "-"));
+		plan.add(SyncPlan.Operation.move("-", "%41 ä"));
+		plan.add(SyncPlan.Operation.createDir(""));
+		SyncPlan other = new SyncPlan(true, "l", "r");
+		other.add(SyncPlan.Operation.upload("x.txt", 5));
+		Path file = tmp.resolve("plan.txt");
+
+		SyncPlan.writeAll(file, List.of(plan, other));
+		List<SyncPlan> read = SyncPlan.readAll(file);
+
+		assertEquals(2, read.size());
+		SyncPlan p = read.get(0);
+		assertEquals(false, p.isUpload());
+		assertEquals(plan.getLocalFolder(), p.getLocalFolder());
+		assertEquals(plan.getRemoteFolder(), p.getRemoteFolder());
+		assertEquals(plan.getOperations(), p.getOperations());
+		assertNull(p.getOperations().get(1).ifNoneMatch());
+		assertEquals(other.getOperations(), read.get(1).getOperations());
+	}
+
+	@Test
+	void rejectsUnreadableLinesWithTheirLineNumber() throws Exception {
+		Path file = tmp.resolve("plan.txt");
+		String header = "ocsync-plan 2\nmapping\tdownload\tl\tr\nDELETE\t-1\t-1\t-\t-\t-\t-\ta\n";
+		for (String line : List.of("DELETE\t-1\t-1\t-\t-\t-\ta", "DELETE\tx\t-1\t-\t-\t-\t-\ta", "REMOVE\t-1\t-1\t-\t-\t-\t-\ta",
+				"DELETE\t-1\t-1\t-\t-\t-\t-\t../a", "DELETE\t-1\t-1\t-\t-\t-\t-\ta%2", "mapping\tsideways\tl\tr")) {
+			Files.writeString(file, header + line + "\n", StandardCharsets.UTF_8);
+			RuntimeException e = assertThrows(RuntimeException.class, () -> SyncPlan.readAll(file), line);
+			assertTrue(e.getMessage().contains("Zeile 4: "), e.getMessage());
+		}
+	}
+
+	@Test
+	void failsForPlansWithoutAMappingInTheConfig() throws Exception {
+		Path file = tmp.resolve("plan.txt");
+		SyncPlan.writeAll(file, List.of(new SyncPlan(false, "l", "r"), new SyncPlan(false, "l2", "r2")));
+		PlanSession session = new PlanSession(new SyncPlan.Options(false, null, file));
+		SyncConfig.SyncEntry mapping = new SyncConfig.SyncEntry();
+		mapping.localFolder = "l";
+		mapping.remoteFolder = "r";
+
+		RuntimeException e = assertThrows(RuntimeException.class, () -> session.checkMappings(false, List.of(mapping)));
+		assertTrue(e.getMessage().contains("'r2' -> 'l2'") && !e.getMessage().contains("'r' -> 'l'"), e.getMessage());
+		assertThrows(RuntimeException.class, () -> session.checkMappings(true, List.of(mapping)), "falsche Richtung");
+	}
+
+	@Test
+	void executesDeletesThenDirectoriesParentFirstThenTransfers() throws Exception {
+		try (DavStandIn server = new DavStandIn()) {
+			server.putFile("r/old/x.txt", "x".getBytes(StandardCharsets.UTF_8), 1_700_000_000_000L);
+			Path local = tmp.resolve("local");
+			Files.createDirectories(local.resolve("n/m"));
+			Files.writeString(local.resolve("n/m/f.txt"), "new");
+			SyncPlan plan = new SyncPlan(true, local.toString(), "r");
+			plan.add(SyncPlan.Operation.upload("n/m/f.txt", Files.getLastModifiedTime(local.resolve("n/m/f.txt")).toMillis()));
+			plan.add(SyncPlan.Operation.createDir("n/m"));
+			plan.add(SyncPlan.Operation.createDir("n"));
+			plan.add(SyncPlan.Operation.delete("old"));
+			// mit dem Verzeichnis gelöscht
+			plan.add(SyncPlan.Operation.delete("old/x.txt"));
+			Path file = tmp.resolve("plan.txt");
+			SyncPlan.writeAll(file, List.of(plan));
+			OpenCloudClient.TransferSettings d = OpenCloudClient.TransferSettings.DEFAULTS;
+			OpenCloudClient client = new OpenCloudClient(server.url(), "u", "p", OpenCloudClient.HttpSettings.DEFAULTS,
+					new OpenCloudClient.TransferSettings(d.thresholdBytes(), d.chunkSize(), d.parallelUploads(), tmp.resolve("state").toString(),
+							d.segmentThresholdBytes(), d.parallelDownloads(), d.bulkMaxFiles(), d.bulkMaxBytes(), d.bulkFileMaxBytes()));
+			try {
+				assertTrue(new FolderSync(client).execute(SyncPlan.readAll(file).get(0), null));
+			} finally {
+				client.close();
+			}
+
+			List<String> changes = server.exchanges().stream().filter(ex -> List.of("DELETE", "MKCOL", "PUT").contains(ex.method()))
+					.map(ex -> ex.method() + " " + ex.path().substring(DavStandIn.USER_ROOT.length() + 1)).toList();
+			assertEquals(List.of("DELETE r/old", "MKCOL r/n", "MKCOL r/n/m", "PUT r/n/m/f.txt"), changes);
+		}
+	}
+
+}
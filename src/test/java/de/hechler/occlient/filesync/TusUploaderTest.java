@@ -0,0 +1,131 @@
+package de.hechler.occlient.filesync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TusUploaderTest {
+
+	private static final int CHUNK_SIZE = 1024;
+	private static final long MTIME = 1_700_000_000_000L;
+
+	@TempDir
+	Path tmp;
+
+	private DavStandIn server;
+	private OpenCloudClient client;
+	private Path stateDir;
+	private Path file;
+	private byte[] content;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server = new DavStandIn();
+		server.enableTus(true);
+		stateDir = tmp.resolve("state");
+		content = new byte[5000];
+		new Random(42).nextBytes(content);
+		file = tmp.resolve("big.bin");
+		Files.write(file, content);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		if (client != null) {
+			client.close();
+		}
+		server.close();
+	}
+
+	private TusUploader uploader(int parallelUploads) {
+		OpenCloudClient.TransferSettings settings = new OpenCloudClient.TransferSettings(0, CHUNK_SIZE, parallelUploads, stateDir.toString(),
+				64L * 1024 * 1024, 1, 100, 10L * 1024 * 1024, 1024L * 1024);
+		client = new OpenCloudClient(server.url(), "u", "p", OpenCloudClient.HttpSettings.DEFAULTS, settings);
+		TusUploader tus = new TusUploader(client, server.url(), settings);
+		assertTrue(tus.isSupported());
+		return tus;
+	}
+
+	private void upload(TusUploader tus) throws IOException {
+		tus.upload(server.url() + "big.bin", new FileUploadEntity(file, null), MTIME);
+	}
+
+	private List<Long> patchOffsets() {
+		return server.exchanges("PATCH").stream().map(e -> Long.parseLong(e.header("Upload-Offset"))).toList();
+	}
+
+	private long stateFiles() throws IOException {
+		if (!Files.isDirectory(stateDir)) {
+			return 0;
+		}
+		try (Stream<Path> s = Files.list(stateDir)) {
+			return s.filter(p -> p.toString().endsWith(".properties")).count();
+		}
+	}
+
+	@Test
+	void resumesFromPersistedState() throws Exception {
+		TusUploader tus = uploader(1);
+		// der erste Chunk kommt an, der zweite scheitert bei jedem Versuch
+		server.failPatches(CHUNK_SIZE, 3, 0);
+		assertThrows(IOException.class, () -> upload(tus));
+		assertEquals(1, stateFiles());
+		assertEquals(1, server.exchanges("POST").size());
+		assertEquals(1, server.pendingUploads());
+
+		server.clearExchanges();
+		upload(uploader(1));
+
+		assertEquals(0, server.exchanges("POST").size(), "der Upload aus der Statusdatei wird fortgesetzt");
+		assertEquals(CHUNK_SIZE, patchOffsets().get(0));
+		assertArrayEquals(content, server.file("big.bin"));
+		assertEquals(0, stateFiles());
+	}
+
+	@Test
+	void retriesFailedChunkFromServerOffset() throws Exception {
+		TusUploader tus = uploader(1);
+		// der erste PATCH bricht nach 300 Bytes ab
+		server.failPatches(0, 1, 300);
+		upload(tus);
+
+		List<DavStandIn.Exchange> exchanges = server.exchanges();
+		int failed = exchanges.indexOf(server.exchanges("PATCH").get(0));
+		assertEquals("HEAD", exchanges.get(failed + 1).method(), "nach dem Fehler wird der Offset abgefragt");
+		assertEquals(List.of(0L, 300L, 1324L, 2348L, 3372L, 4396L), patchOffsets());
+		assertEquals(CHUNK_SIZE, server.exchanges("PATCH").get(1).body().length);
+		assertArrayEquals(content, server.file("big.bin"));
+		assertEquals(MTIME, server.mtime("big.bin"));
+		assertEquals(0, stateFiles());
+	}
+
+	@Test
+	void concatenatesPartsWithMtime() throws Exception {
+		upload(uploader(2));
+
+		List<DavStandIn.Exchange> posts = server.exchanges("POST");
+		assertEquals(3, posts.size());
+		assertEquals("partial", posts.get(0).header("Upload-Concat"));
+		assertEquals("partial", posts.get(1).header("Upload-Concat"));
+		DavStandIn.Exchange concat = posts.get(2);
+		assertTrue(concat.header("Upload-Concat").startsWith("final;"));
+		assertEquals(Long.toString(MTIME / 1000L), concat.header("X-OC-Mtime"));
+		assertArrayEquals(content, server.file("big.bin"));
+		assertEquals(MTIME, server.mtime("big.bin"));
+		assertEquals(0, server.pendingUploads());
+	}
+
+}